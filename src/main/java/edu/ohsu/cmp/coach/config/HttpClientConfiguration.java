@@ -0,0 +1,25 @@
+package edu.ohsu.cmp.coach.config;
+
+import edu.ohsu.cmp.coach.http.HttpClientManager;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class HttpClientConfiguration {
+
+    public HttpClientConfiguration(@Value("${http.client.max-total:" + HttpClientManager.DEFAULT_MAX_TOTAL + "}") int maxTotal,
+                                   @Value("${http.client.max-per-route:" + HttpClientManager.DEFAULT_MAX_PER_ROUTE + "}") int maxPerRoute,
+                                   @Value("${http.client.connect-timeout-ms:" + HttpClientManager.DEFAULT_CONNECT_TIMEOUT_MILLIS + "}") int connectTimeoutMillis,
+                                   @Value("${http.client.connection-request-timeout-ms:" + HttpClientManager.DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS + "}") int connectionRequestTimeoutMillis,
+                                   @Value("${http.client.socket-timeout-ms:" + HttpClientManager.DEFAULT_SOCKET_TIMEOUT_MILLIS + "}") int socketTimeoutMillis,
+                                   @Value("${http.client.keep-alive-ms:" + HttpClientManager.DEFAULT_KEEP_ALIVE_MILLIS + "}") long keepAliveMillis) {
+        HttpClientManager.configure(maxTotal, maxPerRoute, connectTimeoutMillis, connectionRequestTimeoutMillis,
+                socketTimeoutMillis, keepAliveMillis);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        HttpClientManager.shutdown();
+    }
+}
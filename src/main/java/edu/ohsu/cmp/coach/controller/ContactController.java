@@ -89,7 +89,7 @@ public class ContactController extends BaseController {
     }
 
     private Map<String, String> buildTokenMap(String sessionId) throws DataException {
-        BloodPressureSummaryModel summaryModel = new BloodPressureSummaryModel(bpService.getBloodPressureReadings(sessionId));
+        BloodPressureSummaryModel summaryModel = new BloodPressureSummaryModel(bpService.getBloodPressureSeries(sessionId));
         Map<String, String> map = new LinkedHashMap<>();
         map.put(TOKEN_READINGS_COUNT, String.valueOf(summaryModel.getRecentHomeBPReadingsCount()));
         map.put(TOKEN_DAYS_COUNT, String.valueOf(summaryModel.getRecentHomeBPReadingsDayCount()));
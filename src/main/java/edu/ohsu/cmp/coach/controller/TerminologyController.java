@@ -0,0 +1,29 @@
+package edu.ohsu.cmp.coach.controller;
+
+import edu.ohsu.cmp.coach.model.TerminologyStatusModel;
+import edu.ohsu.cmp.coach.service.MedicationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+
+/**
+ * Terminology readiness, for use by load balancer and orchestrator readiness probes.  Responds 503 until medications
+ * can be classified, whether from the local ValueSet snapshot or from the database
+ */
+@Controller
+@RequestMapping("/terminology")
+public class TerminologyController {
+    @Autowired
+    private MedicationService medicationService;
+
+    @GetMapping(value="status", produces="application/json")
+    public ResponseEntity<TerminologyStatusModel> getStatus() {
+        TerminologyStatusModel status = medicationService.getTerminologyStatus();
+        return new ResponseEntity<>(status, status.isReady() ?
+                HttpStatus.OK :
+                HttpStatus.SERVICE_UNAVAILABLE);
+    }
+}
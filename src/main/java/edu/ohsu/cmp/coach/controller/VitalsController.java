@@ -7,6 +7,7 @@ import edu.ohsu.cmp.coach.model.*;
 import edu.ohsu.cmp.coach.service.BloodPressureService;
 import edu.ohsu.cmp.coach.service.HypotensionAdverseEventService;
 import edu.ohsu.cmp.coach.service.PulseService;
+import edu.ohsu.cmp.coach.service.WritebackOutbox;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Observation;
@@ -42,6 +43,9 @@ public class VitalsController extends BaseController {
     @Autowired
     private HypotensionAdverseEventService hypotensionAdverseEventService;
 
+    @Autowired
+    private WritebackOutbox writebackOutbox;
+
     @GetMapping(value={"", "/"})
     public String view(HttpSession session, Model model) throws DataException {
         setCommonViewComponents(session.getId(), model);
@@ -143,4 +147,14 @@ public class VitalsController extends BaseController {
 
         return new ResponseEntity<>(list, HttpStatus.OK);
     }
+
+    @PostMapping("writeback-status")
+    public ResponseEntity<WritebackStatusModel> getWritebackStatus(HttpSession session) {
+        return new ResponseEntity<>(writebackOutbox.getStatus(session.getId()), HttpStatus.OK);
+    }
+
+    @PostMapping("replay-writeback")
+    public ResponseEntity<Integer> replayWriteback(HttpSession session) {
+        return new ResponseEntity<>(writebackOutbox.replay(session.getId()), HttpStatus.OK);
+    }
 }
@@ -25,15 +25,17 @@ public class Summary {
     private Boolean twoMostRecentBPsInCrisis;
     private Boolean twoMostRecentBPsInLowCrisis;
     private String notes;
+    private String fingerprint;
     private Date createdDate;
 
-    @OneToMany(fetch = FetchType.EAGER, mappedBy = "summary", cascade = CascadeType.ALL)
+    // child rows are inserted by SummaryService in JDBC batches, so aren't cascaded on persist
+    @OneToMany(fetch = FetchType.EAGER, mappedBy = "summary", cascade = CascadeType.REMOVE)
     private Set<SummaryRecommendation> recommendations;
 
-    @OneToMany(fetch = FetchType.EAGER, mappedBy = "summary", cascade = CascadeType.ALL)
+    @OneToMany(fetch = FetchType.EAGER, mappedBy = "summary", cascade = CascadeType.REMOVE)
     private Set<SummaryOngoingAdverseEvent> ongoingAdverseEvents;
 
-    @OneToMany(fetch = FetchType.EAGER, mappedBy = "summary", cascade = CascadeType.ALL)
+    @OneToMany(fetch = FetchType.EAGER, mappedBy = "summary", cascade = CascadeType.REMOVE)
     private Set<SummaryActiveAntihtnMeds> activeAntihtnMeds;
 
     protected Summary() {
@@ -169,6 +171,17 @@ public class Summary {
         this.notes = notes;
     }
 
+    /**
+     * @return a hash of this summary's content, used to detect whether it differs from the last one written
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
     public Date getCreatedDate() {
         return createdDate;
     }
@@ -51,7 +51,10 @@ public class ValueSet {
         this.revisionDate = revisionDate;
     }
 
-    public void update(ValueSet vs) {
+    /**
+     * updates everything but concepts
+     */
+    public void updateMetadata(ValueSet vs) {
         setDisplayName(vs.getDisplayName());
         setVersion(vs.getVersion());
         setSource(vs.getSource());
@@ -60,7 +63,6 @@ public class ValueSet {
         setBinding(vs.getBinding());
         setStatus(vs.getStatus());
         setRevisionDate(vs.getRevisionDate());
-        setConcepts(vs.getConcepts());
     }
 
     @Override
@@ -0,0 +1,168 @@
+package edu.ohsu.cmp.coach.entity;
+
+import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.model.PendingWriteback;
+import edu.ohsu.cmp.coach.model.WritebackOutboxStatus;
+
+import jakarta.persistence.*;
+import java.util.Date;
+
+/**
+ * A vitals reading waiting to be written to the EHR.  Entries are deleted once written.  An entry that can't be
+ * written after the configured number of attempts is marked FAILED, and is retained until it's replayed.
+ */
+@Entity
+@Table(name = "writeback_outbox")
+public class WritebackOutboxEntry {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private Long patId;
+    private String idempotencyKey;
+
+    @Enumerated(EnumType.STRING)
+    private PendingWriteback.Type vitalsType;
+
+    @Enumerated(EnumType.STRING)
+    private FhirStrategy strategy;
+
+    private String description;
+    private String bundle;
+
+    @Enumerated(EnumType.STRING)
+    private WritebackOutboxStatus status;
+
+    private Integer attempts;
+    private Date nextAttemptDate;
+    private String lastError;
+    private Date createdDate;
+
+    protected WritebackOutboxEntry() {
+    }
+
+    public WritebackOutboxEntry(Long patId, PendingWriteback pending, String bundle) {
+        this.patId = patId;
+        this.idempotencyKey = pending.getIdempotencyKey();
+        this.vitalsType = pending.getType();
+        this.strategy = pending.getStrategy();
+        this.description = pending.getDescription();
+        this.bundle = bundle;
+        this.status = WritebackOutboxStatus.PENDING;
+        this.attempts = 0;
+        this.createdDate = new Date();
+        this.nextAttemptDate = createdDate;
+    }
+
+    @Override
+    public String toString() {
+        return "WritebackOutboxEntry{" +
+                "id=" + id +
+                ", patId=" + patId +
+                ", idempotencyKey='" + idempotencyKey + '\'' +
+                ", vitalsType=" + vitalsType +
+                ", strategy=" + strategy +
+                ", description='" + description + '\'' +
+                ", status=" + status +
+                ", attempts=" + attempts +
+                ", nextAttemptDate=" + nextAttemptDate +
+                ", createdDate=" + createdDate +
+                '}';
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getPatId() {
+        return patId;
+    }
+
+    public void setPatId(Long patId) {
+        this.patId = patId;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public PendingWriteback.Type getVitalsType() {
+        return vitalsType;
+    }
+
+    public void setVitalsType(PendingWriteback.Type vitalsType) {
+        this.vitalsType = vitalsType;
+    }
+
+    public FhirStrategy getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(FhirStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public String getBundle() {
+        return bundle;
+    }
+
+    public void setBundle(String bundle) {
+        this.bundle = bundle;
+    }
+
+    public WritebackOutboxStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(WritebackOutboxStatus status) {
+        this.status = status;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    public Date getNextAttemptDate() {
+        return nextAttemptDate;
+    }
+
+    public void setNextAttemptDate(Date nextAttemptDate) {
+        this.nextAttemptDate = nextAttemptDate;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public Date getCreatedDate() {
+        return createdDate;
+    }
+
+    public void setCreatedDate(Date createdDate) {
+        this.createdDate = createdDate;
+    }
+}
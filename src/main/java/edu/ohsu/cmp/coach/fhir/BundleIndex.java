@@ -0,0 +1,161 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.hl7.fhir.r4.model.*;
+
+import java.util.*;
+
+/**
+ * An index of the resources in one or more Bundles, built in a single pass as resources are added.  Resources are
+ * indexed by type, and by every key they may be referenced by (absolute and relative id, and identifiers; see
+ * FhirUtil.buildKeys).  Observations are also grouped by the Encounter they reference, and classified against the
+ * configured codings (see CodingClassifier) as they're added, so that consumers needn't rescan the Bundle or
+ * rebuild keys to pair readings with their Encounters.  Not thread-safe while resources are being added.
+ */
+public class BundleIndex {
+    private final CodingClassifier classifier;
+
+    private final Set<Resource> resources = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Class<? extends Resource>, List<Resource>> typeMap = new LinkedHashMap<>();
+    private final Map<String, Resource> keyMap = new HashMap<>();
+    private final Map<Observation, Integer> classificationMap = new IdentityHashMap<>();
+
+    // IMPORTANT: each logical Encounter's keys are associated with THE SAME list of Observations
+    private final Map<String, List<Observation>> encounterObservationsMap = new HashMap<>();
+
+    public BundleIndex(CodingClassifier classifier) {
+        this.classifier = classifier;
+    }
+
+    public BundleIndex(Bundle bundle, CodingClassifier classifier) {
+        this(classifier);
+        addAll(bundle);
+    }
+
+    public BundleIndex addAll(Bundle bundle) {
+        if (bundle != null && bundle.hasEntry()) {
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.hasResource()) {
+                    add(entry.getResource());
+                }
+            }
+        }
+        return this;
+    }
+
+    public BundleIndex add(Resource resource) {
+        if (resource == null || ! resources.add(resource)) return this;
+
+        typeMap.computeIfAbsent(resource.getClass(), k -> new ArrayList<>()).add(resource);
+
+        for (String key : FhirUtil.buildKeys(resource.getId(), getIdentifiers(resource))) {
+            keyMap.putIfAbsent(key, resource);
+        }
+
+        if (resource instanceof Observation) {
+            Observation o = (Observation) resource;
+            classificationMap.put(o, classifier.classify(o.getCode()));
+            if (o.hasEncounter()) {
+                addToEncounterObservationsMap(o);
+            }
+        }
+
+        return this;
+    }
+
+    public int size() {
+        return resources.size();
+    }
+
+    /**
+     * @return the indexed resources of the specified type, in the order they were added
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Resource> List<T> getResources(Class<T> type) {
+        List<Resource> list = typeMap.get(type);
+        return list != null ?
+                Collections.unmodifiableList((List<T>) list) :
+                Collections.emptyList();
+    }
+
+    /**
+     * @return the indexed resource of the specified type that reference refers to, or null if there isn't one
+     */
+    public <T extends Resource> T getResource(Reference reference, Class<T> type) {
+        for (String key : FhirUtil.buildKeys(reference)) {
+            Resource resource = keyMap.get(key);
+            if (type.isInstance(resource)) {
+                return type.cast(resource);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the CodingClassifier classification of o's code, as of when it was added
+     */
+    public int getClassification(Observation o) {
+        Integer classification = classificationMap.get(o);
+        return classification != null ?
+                classification :
+                classifier.classify(o.getCode());
+    }
+
+    /**
+     * @return the indexed Observations that reference encounter, by any of its keys, in the order they were added
+     */
+    public List<Observation> getObservations(Encounter encounter) {
+        // Observations may reference the same Encounter by different keys without any one of them having referenced
+        // it by all of them, so gather every distinct list the Encounter's keys are associated with
+        Set<List<Observation>> lists = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Observation> observations = new ArrayList<>();
+        for (String key : FhirUtil.buildKeys(encounter.getId(), encounter.getIdentifier())) {
+            List<Observation> list = encounterObservationsMap.get(key);
+            if (list != null && lists.add(list)) {
+                observations.addAll(list);
+            }
+        }
+        return observations;
+    }
+
+    private void addToEncounterObservationsMap(Observation observation) {
+        List<String> keys = FhirUtil.buildKeys(observation.getEncounter());
+        if (keys.isEmpty()) return;
+
+        // first, see if the map already contains a list for any of this Observation's keys
+        List<Observation> list = null;
+        for (String key : keys) {
+            list = encounterObservationsMap.get(key);
+            if (list != null) break;
+        }
+
+        // if not, create one.  either way, associate it with any of the keys it isn't associated with yet; they all
+        // refer to the same logical Encounter
+        if (list == null) {
+            list = new ArrayList<>();
+        }
+        for (String key : keys) {
+            encounterObservationsMap.putIfAbsent(key, list);
+        }
+
+        list.add(observation);
+    }
+
+    private List<Identifier> getIdentifiers(Resource resource) {
+        if (resource instanceof Encounter)          return ((Encounter) resource).getIdentifier();
+        else if (resource instanceof Observation)   return ((Observation) resource).getIdentifier();
+        else if (resource instanceof Goal)          return ((Goal) resource).getIdentifier();
+        else if (resource instanceof Patient)       return ((Patient) resource).getIdentifier();
+        else if (resource instanceof Medication)    return ((Medication) resource).getIdentifier();
+        else                                        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "BundleIndex{" +
+                "resources=" + resources.size() +
+                ", keys=" + keyMap.size() +
+                ", observations=" + classificationMap.size() +
+                '}';
+    }
+}
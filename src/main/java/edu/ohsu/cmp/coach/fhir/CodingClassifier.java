@@ -0,0 +1,102 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Encounter;
+
+/**
+ * Classifies Observation codes and Encounters against the codings configured in FhirConfigManager, in a single pass
+ * per resource.  Classifications are returned as a bitmask of the constants below, so that e.g. an Observation code
+ * can be tested for panel, systolic, diastolic and protocol codings at once.  Built once, by FhirConfigManager.
+ */
+public class CodingClassifier {
+    public static final int BP_PANEL =      1;
+    public static final int BP_SYSTOLIC =   1 << 1;
+    public static final int BP_DIASTOLIC =  1 << 2;
+    public static final int PROTOCOL =      1 << 3;
+    public static final int PULSE =         1 << 4;
+    public static final int OFFICE =        1 << 5;
+    public static final int HOME =          1 << 6;
+
+    // Encounter class and type specifications
+    private static final int OFFICE_IN =        1;
+    private static final int OFFICE_NOT_IN =    1 << 1;
+    private static final int HOME_IN =          1 << 2;
+    private static final int HOME_NOT_IN =      1 << 3;
+
+    private final CodingMatcher observationCodeMatcher;
+    private final CodingMatcher encounterClassMatcher;
+    private final CodingMatcher encounterTypeMatcher;
+
+    public CodingClassifier(FhirConfigManager fcm) {
+        observationCodeMatcher = new CodingMatcher()
+                .add(fcm.getBpPanelCodings(), BP_PANEL)
+                .add(fcm.getBpSystolicCodings(), BP_SYSTOLIC)
+                .add(fcm.getBpDiastolicCodings(), BP_DIASTOLIC)
+                .add(fcm.getProtocolCoding(), PROTOCOL)
+                .add(fcm.getPulseCodings(), PULSE)
+                .add(fcm.getBpOfficeCodings(), OFFICE)
+                .add(fcm.getBpHomeCodings(), HOME);
+
+        encounterClassMatcher = new CodingMatcher()
+                .add(fcm.getEncounterOfficeClassInCodings(), OFFICE_IN)
+                .add(fcm.getEncounterOfficeClassNotInCodings(), OFFICE_NOT_IN)
+                .add(fcm.getEncounterHomeClassInCodings(), HOME_IN)
+                .add(fcm.getEncounterHomeClassNotInCodings(), HOME_NOT_IN);
+
+        encounterTypeMatcher = new CodingMatcher()
+                .add(fcm.getEncounterOfficeTypeInCodings(), OFFICE_IN)
+                .add(fcm.getEncounterOfficeTypeNotInCodings(), OFFICE_NOT_IN)
+                .add(fcm.getEncounterHomeTypeInCodings(), HOME_IN)
+                .add(fcm.getEncounterHomeTypeNotInCodings(), HOME_NOT_IN);
+    }
+
+    public static boolean is(int classification, int bits) {
+        return (classification & bits) != 0;
+    }
+
+    /**
+     * @return the BP_PANEL, BP_SYSTOLIC, BP_DIASTOLIC, PROTOCOL, PULSE, OFFICE and HOME bits of the codings cc
+     * matches.  OFFICE and HOME here refer to the configured BP office and home codings
+     */
+    public int classify(CodeableConcept cc) {
+        return observationCodeMatcher.match(cc);
+    }
+
+    /**
+     * @return the OFFICE and HOME bits of e, per the configured Encounter class and type codings.  see EncounterMatcher
+     */
+    public int classify(Encounter e) {
+        if (e == null) return 0;
+
+        int classBits = e.hasClass_() ?
+                encounterClassMatcher.match(e.getClass_()) :
+                0;
+
+        int typeBits = 0;
+        if (e.hasType()) {
+            for (CodeableConcept type : e.getType()) {
+                typeBits |= encounterTypeMatcher.match(type);
+            }
+        }
+
+        int classification = 0;
+        if (matches(classBits, typeBits, OFFICE_IN, OFFICE_NOT_IN)) classification |= OFFICE;
+        if (matches(classBits, typeBits, HOME_IN, HOME_NOT_IN)) classification |= HOME;
+        return classification;
+    }
+
+    /**
+     * an Encounter matches if, for each of class and type, it matches an "in" coding (if any are configured) and
+     * doesn't match a "not in" coding
+     */
+    private boolean matches(int classBits, int typeBits, int in, int notIn) {
+        int configuredClassBits = encounterClassMatcher.getConfiguredBits();
+        int configuredTypeBits = encounterTypeMatcher.getConfiguredBits();
+
+        if (is(configuredClassBits, in) && ! is(classBits, in)) return false;
+        if (is(configuredClassBits, notIn) && is(classBits, notIn)) return false;
+        if (is(configuredTypeBits, in) && ! is(typeBits, in)) return false;
+        if (is(configuredTypeBits, notIn) && is(typeBits, notIn)) return false;
+        return true;
+    }
+}
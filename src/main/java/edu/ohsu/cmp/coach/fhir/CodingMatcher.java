@@ -0,0 +1,113 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled set of Coding specifications, each associated with one or more bits.  match() returns the bits of every
+ * specification a Coding matches, with the same semantics as FhirUtil.codingMatches.  Specifications with both a
+ * system and a code are looked up by hash, as are those with only a code; the few that have no code are checked
+ * individually.  Specifications are added when the matcher is built, after which it may be shared between threads.
+ */
+public class CodingMatcher {
+    private static final class Spec {
+        private final Coding coding;
+        private final int bits;
+
+        private Spec(Coding coding, int bits) {
+            this.coding = coding;
+            this.bits = bits;
+        }
+    }
+
+    private final Map<String, Integer> systemCodeMap = new HashMap<>();
+    private final Map<String, List<Spec>> codeOnlyMap = new HashMap<>();
+    private final List<Spec> wildcardList = new ArrayList<>();
+    private int configuredBits = 0;
+
+    public CodingMatcher add(Coding spec, int bits) {
+        if (spec == null) return this;
+
+        if (spec.hasSystem() && spec.hasCode()) {
+            // display isn't considered when both system and code are specified
+            systemCodeMap.merge(toKey(spec.getSystem(), spec.getCode()), bits, (a, b) -> a | b);
+
+        } else if (spec.hasCode()) {
+            codeOnlyMap.computeIfAbsent(spec.getCode(), k -> new ArrayList<>()).add(new Spec(spec, bits));
+
+        } else {
+            wildcardList.add(new Spec(spec, bits));
+        }
+
+        configuredBits |= bits;
+        return this;
+    }
+
+    public CodingMatcher add(List<Coding> specs, int bits) {
+        if (specs != null) {
+            for (Coding spec : specs) {
+                add(spec, bits);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the bits of every specification that has been added
+     */
+    public int getConfiguredBits() {
+        return configuredBits;
+    }
+
+    /**
+     * @return the bits of every specification c matches, or 0 if it matches none
+     */
+    public int match(Coding c) {
+        if (c == null) return 0;
+
+        int bits = 0;
+
+        if (c.hasCode()) {
+            if (c.hasSystem()) {
+                Integer b = systemCodeMap.get(toKey(c.getSystem(), c.getCode()));
+                if (b != null) bits |= b;
+            }
+
+            List<Spec> list = codeOnlyMap.get(c.getCode());
+            if (list != null) {
+                for (Spec spec : list) {
+                    if (FhirUtil.codingMatches(c, spec.coding)) bits |= spec.bits;
+                }
+            }
+        }
+
+        for (Spec spec : wildcardList) {
+            if (FhirUtil.codingMatches(c, spec.coding)) bits |= spec.bits;
+        }
+
+        return bits;
+    }
+
+    /**
+     * @return the bits of every specification any of cc's Codings matches, or 0 if they match none
+     */
+    public int match(CodeableConcept cc) {
+        if (cc == null || ! cc.hasCoding()) return 0;
+
+        int bits = 0;
+        for (Coding c : cc.getCoding()) {
+            bits |= match(c);
+        }
+        return bits;
+    }
+
+    private static String toKey(String system, String code) {
+        return system + "|" + code;
+    }
+}
@@ -30,6 +30,16 @@ public class CompositeBundle {
         }
     }
 
+    /**
+     * adds the entries of the specified Bundle to this CompositeBundle without copying them.  only use this for
+     * Bundles that won't be used or modified elsewhere, e.g. freshly retrieved search result pages
+     */
+    public void adopt(Bundle page) {
+        if (page != null && page.hasEntry()) {
+            bundle.getEntry().addAll(page.getEntry());
+        }
+    }
+
     public Bundle getBundle() {
         return bundle;
     }
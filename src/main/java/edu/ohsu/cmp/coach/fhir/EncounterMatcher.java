@@ -26,9 +26,27 @@ public class EncounterMatcher {
         this.doLogging = doLogging;
     }
 
+    /**
+     * @return the CodingClassifier.OFFICE and CodingClassifier.HOME bits of e
+     */
+    public int classify(Encounter e) {
+        if (isDetailLogging()) {
+            int classification = 0;
+            if (isOfficeEncounter(e)) classification |= CodingClassifier.OFFICE;
+            if (isHomeEncounter(e)) classification |= CodingClassifier.HOME;
+            return classification;
+        }
+
+        return fcm.getCodingClassifier().classify(e);
+    }
+
     public boolean isOfficeEncounter(Encounter e) {
-        StringBuilder sb = doLogging && logger.isDebugEnabled() ? new StringBuilder() : null;
-        if (sb != null) sb.append("isOffice?(").append(e.getId()).append("): ");
+        if ( ! isDetailLogging() ) {
+            return CodingClassifier.is(fcm.getCodingClassifier().classify(e), CodingClassifier.OFFICE);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("isOffice?(").append(e.getId()).append("): ");
 
         boolean rval = e != null && encounterMatches(sb, e,
                 fcm.getEncounterOfficeClassInCodings(),
@@ -37,14 +55,18 @@ public class EncounterMatcher {
                 fcm.getEncounterOfficeTypeNotInCodings()
         );
 
-        if (sb != null) logger.debug(sb.toString());
+        logger.debug(sb.toString());
 
         return rval;
     }
 
     public boolean isHomeEncounter(Encounter e) {
-        StringBuilder sb = doLogging && logger.isDebugEnabled() ? new StringBuilder() : null;
-        if (sb != null) sb.append("isHome?(").append(e.getId()).append("): ");
+        if ( ! isDetailLogging() ) {
+            return CodingClassifier.is(fcm.getCodingClassifier().classify(e), CodingClassifier.HOME);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("isHome?(").append(e.getId()).append("): ");
 
         boolean rval = e != null && encounterMatches(sb, e,
                 fcm.getEncounterHomeClassInCodings(),
@@ -53,11 +75,19 @@ public class EncounterMatcher {
                 fcm.getEncounterHomeTypeNotInCodings()
         );
 
-        if (sb != null) logger.debug(sb.toString());
+        logger.debug(sb.toString());
 
         return rval;
     }
 
+    /**
+     * matching is done with the compiled CodingClassifier, except when logging match details, which only the
+     * uncompiled matching below can describe
+     */
+    private boolean isDetailLogging() {
+        return doLogging && logger.isDebugEnabled();
+    }
+
     private boolean encounterMatches(StringBuilder sb, Encounter e, List<Coding> classIn, List<Coding> classNotIn, List<Coding> typeIn, List<Coding> typeNotIn) {
         if (classIn != null && ! classIn.isEmpty()) {
             if (sb != null) sb.append("classInMatch? ");
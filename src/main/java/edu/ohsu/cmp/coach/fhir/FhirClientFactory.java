@@ -0,0 +1,79 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds FHIR clients from the application's shared FhirContext, reusing clients for the same server URL and
+ * bearer token.  Unused clients are evicted after a period of inactivity.
+ */
+@Component
+public class FhirClientFactory {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final class ClientKey {
+        private final String serverUrl;
+        private final String bearerToken;
+
+        private ClientKey(String serverUrl, String bearerToken) {
+            this.serverUrl = serverUrl;
+            this.bearerToken = bearerToken;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ClientKey that = (ClientKey) o;
+            return Objects.equals(serverUrl, that.serverUrl) && Objects.equals(bearerToken, that.bearerToken);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serverUrl, bearerToken);
+        }
+    }
+
+    private final Cache<ClientKey, IGenericClient> cache;
+
+    public FhirClientFactory(@Value("${socket.timeout:300000}") int socketTimeout,
+                             @Value("${fhir.client-cache.max-size:1000}") long maxSize,
+                             @Value("${fhir.client-cache.expire-after-access-minutes:60}") long expireAfterAccessMinutes) {
+
+        // initializes the shared context at startup, rather than on the first patient launch
+        FhirUtil.getFhirContext().getRestfulClientFactory().setSocketTimeout(socketTimeout);
+
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(expireAfterAccessMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+    }
+
+    public IGenericClient getClient(String serverUrl, String bearerToken) {
+        return cache.get(new ClientKey(serverUrl, bearerToken), k -> FhirUtil.buildClient(k.serverUrl, k.bearerToken));
+    }
+
+    /**
+     * discards any client built for the specified server URL and bearer token, e.g. when the token is revoked
+     */
+    public void invalidate(String serverUrl, String bearerToken) {
+        cache.invalidate(new ClientKey(serverUrl, bearerToken));
+    }
+
+    @Scheduled(fixedDelayString = "${fhir.client-cache.stats-log-interval-ms:900000}",
+            initialDelayString = "${fhir.client-cache.stats-log-interval-ms:900000}")
+    public void logStats() {
+        logger.info("FHIR client cache: size=" + cache.estimatedSize() + ", " + cache.stats());
+    }
+}
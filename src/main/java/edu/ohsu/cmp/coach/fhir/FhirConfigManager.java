@@ -78,6 +78,8 @@ public class FhirConfigManager {
     private Boolean drinkingGetValueFromComponent = null;
     private Coding drinkingComponentCoding = null;
 
+    private volatile CodingClassifier codingClassifier = null;
+
     public Coding getEncounterClassHomeCoding() {   // ambulatory class to attach to crafted home encounters
         if (encounterClassHomeCoding == null) {
             encounterClassHomeCoding = buildCoding(env.getProperty("encounter.class.home.coding"));
@@ -397,6 +399,16 @@ public class FhirConfigManager {
         return PROCEDURE_COUNSELING_CODING;
     }
 
+    /**
+     * @return a classifier compiled from the codings above, for classifying many resources efficiently
+     */
+    public CodingClassifier getCodingClassifier() {
+        if (codingClassifier == null) {
+            codingClassifier = new CodingClassifier(this);
+        }
+        return codingClassifier;
+    }
+
 
 ///////////////////////////////////////////////////////////////////
 // private methods
@@ -0,0 +1,37 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.util.List;
+
+/**
+ * Adds the Content-Length of each FHIR response to the FhirSearchStats bound to the current thread, if any
+ */
+public class FhirResponseSizeInterceptor implements IClientInterceptor {
+    public static final FhirResponseSizeInterceptor INSTANCE = new FhirResponseSizeInterceptor();
+
+    private FhirResponseSizeInterceptor() {
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest theRequest) {
+        // nothing to do
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse theResponse) {
+        FhirSearchStats stats = FhirSearchStats.getCurrent();
+        if (stats != null) {
+            List<String> values = theResponse.getHeaders("Content-Length");
+            if (values != null && ! values.isEmpty()) {
+                long length = NumberUtils.toLong(values.get(0), -1);
+                if (length > 0) {
+                    stats.recordBytes(length);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pages, entries and bytes retrieved by a single FHIR search, across all of its pages.  Bytes are counted by
+ * FhirResponseSizeInterceptor for requests made while these stats are bound to the current thread.
+ */
+public class FhirSearchStats {
+    private static final ThreadLocal<FhirSearchStats> CURRENT = new ThreadLocal<>();
+
+    private final String query;
+    private final long startMillis;
+    private final AtomicInteger pages = new AtomicInteger();
+    private final AtomicInteger entries = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public FhirSearchStats(String query) {
+        this.query = query;
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    public static FhirSearchStats getCurrent() {
+        return CURRENT.get();
+    }
+
+    public void bind() {
+        CURRENT.set(this);
+    }
+
+    public void unbind() {
+        CURRENT.remove();
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public int getPages() {
+        return pages.get();
+    }
+
+    public int getEntries() {
+        return entries.get();
+    }
+
+    /**
+     * @return the number of bytes received, as reported by the server.  responses that don't specify their length
+     * (e.g. chunked responses) are not counted
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startMillis;
+    }
+
+    public void recordPage(Bundle page) {
+        pages.incrementAndGet();
+        if (page != null && page.hasEntry()) {
+            entries.addAndGet(page.getEntry().size());
+        }
+    }
+
+    void recordBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+    @Override
+    public String toString() {
+        return "pages=" + getPages() +
+                ", entries=" + getEntries() +
+                ", bytes=" + getBytes() +
+                ", took " + getElapsedMillis() + "ms";
+    }
+}
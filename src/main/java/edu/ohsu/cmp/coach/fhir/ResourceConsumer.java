@@ -0,0 +1,13 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.model.ResourceWithBundle;
+
+/**
+ * Receives resources from a streaming FHIR search, one at a time as each page arrives.  The bundle associated with
+ * each resource is the page on which it was returned, which will also contain any resources _include'd with it.
+ */
+@FunctionalInterface
+public interface ResourceConsumer {
+    void accept(ResourceWithBundle resourceWithBundle) throws DataException;
+}
@@ -1,6 +1,8 @@
 package edu.ohsu.cmp.coach.fhir.transform;
 
 import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.BundleIndex;
+import edu.ohsu.cmp.coach.fhir.CodingClassifier;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
 import edu.ohsu.cmp.coach.model.*;
 import edu.ohsu.cmp.coach.util.FhirUtil;
@@ -30,8 +32,6 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
 //    private static final DateFormat FHIR_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
     private static final DateFormat FHIR_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
 
-    protected static final String NO_ENCOUNTERS_KEY = null; // intentionally instantiated with null value
-
     public static final String OBSERVATION_CATEGORY_SYSTEM = "http://terminology.hl7.org/CodeSystem/observation-category";
     public static final String OBSERVATION_CATEGORY_CODE = "vital-signs";
 
@@ -243,12 +243,86 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
         return query + "&date=ge{now-" + lookbackPeriod + "}";
     }
 
+    @Override
+    public String getWritebackIdempotencyKey(Bundle outgoingBundle) {
+        if (outgoingBundle == null) return null;
+
+        // the UUID note that groups the Observations written for a reading identifies it, where present.  otherwise,
+        // the temporary ID of its first new Observation does.  the protocol Observation is skipped, as it may be
+        // shared by several readings
+        Coding protocolCoding = workspace.getFhirConfigManager().getProtocolCoding();
+        List<Observation> list = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : outgoingBundle.getEntry()) {
+            if (entry.getResource() instanceof Observation) {
+                Observation o = (Observation) entry.getResource();
+                if ( ! FhirUtil.hasCoding(o.getCode(), protocolCoding) ) {
+                    String uuid = getUUIDFromNote(o);
+                    if (uuid != null) return uuid;
+                    list.add(o);
+                }
+            }
+        }
+        for (Observation o : list) {
+            if (FhirUtil.isUUID(o.getId())) {
+                return o.getId();
+            }
+        }
+        return null;
+    }
+
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     @Override
     public List<BloodPressureModel> transformIncomingBloodPressureReadings(Bundle bundle) throws DataException {
         if (bundle == null) return null;
 
+        if (logger.isDebugEnabled()) {
+            logger.debug("in transformIncomingBloodPressureReadings()");
+            logger.debug("bundle contains the following resources:");
+            int i = 0;
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.hasResource()) {
+                    logger.debug(i + " : " + entry.getResource().getClass().getSimpleName() + " (" + entry.getResource().getId() + ")");
+                    i++;
+                }
+            }
+        }
+
+        return transformIncomingBloodPressureReadings(buildBundleIndex(bundle));
+    }
+
+    @Override
+    public List<BloodPressureModel> transformIncomingBloodPressureReadings(BundleIndex index) throws DataException {
+        return transformIncomingBloodPressureReadings(index, getAllEncounters(index));
+    }
+
+    @Override
+    public IncomingResourceTransform<BloodPressureModel> newIncomingBloodPressureReadingsTransform() {
+        // retains only the Observations and Encounters needed to pair readings, not the pages they arrived on
+        return new IncomingResourceTransform<>() {
+            private final BundleIndex index = new BundleIndex(workspace.getFhirConfigManager().getCodingClassifier());
+
+            @Override
+            public void accept(ResourceWithBundle resourceWithBundle) {
+                Resource resource = resourceWithBundle.getResource();
+                if (resource instanceof Observation || resource instanceof Encounter) {
+                    index.add(resource);
+                }
+            }
+
+            @Override
+            public List<BloodPressureModel> getResult() throws DataException {
+                return transformIncomingBloodPressureReadings(index, getAllEncounters(index));
+            }
+        };
+    }
+
+    /**
+     * @param index the incoming Observations
+     * @param encounters all Encounters with which Observations may be associated
+     */
+    protected List<BloodPressureModel> transformIncomingBloodPressureReadings(BundleIndex index,
+                                                                              List<Encounter> encounters) throws DataException {
         FhirConfigManager fcm = workspace.getFhirConfigManager();
 
         List<Coding> bpPanelCodings = fcm.getBpPanelCodings();
@@ -257,15 +331,6 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
 
         if (logger.isDebugEnabled()) {
             try {
-                logger.debug("in transformIncomingBloodPressureReadings()");
-                logger.debug("bundle contains the following resources:");
-                int i = 0;
-                for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                    if (entry.hasResource()) {
-                        logger.debug(i + " : " + entry.getResource().getClass().getSimpleName() + " (" + entry.getResource().getId() + ")");
-                        i++;
-                    }
-                }
                 logger.debug("bpPanelCodings:");
                 for (Coding c : bpPanelCodings) {
                     logger.debug("- system=" + c.getSystem() + ", code=" + c.getCode() + ", display=" + c.getDisplay());
@@ -284,15 +349,14 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
             }
         }
 
-        Map<String, List<Observation>> encounterObservationsMap = buildEncounterObservationsMap(bundle);
-
         List<BloodPressureModel> list = new ArrayList<>();
+        Set<Observation> processed = Collections.newSetFromMap(new IdentityHashMap<>());
 
-        for (Encounter encounter : getAllEncounters(bundle)) {
+        for (Encounter encounter : encounters) {
             logger.debug("processing Encounter: " + encounter.getId());
 
-            // these Observations get popped / removed from the map
-            List<Observation> encounterObservations = getObservationsFromMap(encounter, encounterObservationsMap);
+            // these Observations are marked processed
+            List<Observation> encounterObservations = takeObservations(index, encounter, processed);
 
             if (encounterObservations == null) {
                 logger.debug("no Observations found for Encounter " + encounter.getId() + " - skipping -");
@@ -308,10 +372,12 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
             for (Observation o : encounterObservations) {
                 logger.debug("processing Observation " + o.getId() + " for Encounter " + encounter.getId());
 
+                int classification = index.getClassification(o);
+
                 if ( ! o.hasCode() ) {
                     logger.warn("observation " + o.getId() + " missing code, this is unexpected - skipping -");
 
-                } else if (FhirUtil.hasCoding(o.getCode(), systolicCodings) && o.hasValueQuantity()) {
+                } else if (CodingClassifier.is(classification, CodingClassifier.BP_SYSTOLIC) && o.hasValueQuantity()) {
                     String key = getObservationMatchKey(o);
                     if ( ! map.containsKey(key) ) {
                         map.put(key, new SystolicDiastolicPair());
@@ -319,7 +385,7 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
                     map.get(key).setSystolicObservation(o);
                     logger.debug("observation " + o.getId() + " has systolic coding; added to SystolicDiastolicPair map with key=" + key);
 
-                } else if (FhirUtil.hasCoding(o.getCode(), diastolicCodings) && o.hasValueQuantity()) {
+                } else if (CodingClassifier.is(classification, CodingClassifier.BP_DIASTOLIC) && o.hasValueQuantity()) {
                     String key = getObservationMatchKey(o);
                     if ( ! map.containsKey(key) ) {
                         map.put(key, new SystolicDiastolicPair());
@@ -327,11 +393,11 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
                     map.get(key).setDiastolicObservation(o);
                     logger.debug("observation " + o.getId() + " has diastolic coding; added to SystolicDiastolicPair map with key=" + key);
 
-                } else if (FhirUtil.hasCoding(o.getCode(), bpPanelCodings) && o.hasComponent() && o.getComponent().size() >= 2) {
+                } else if (CodingClassifier.is(classification, CodingClassifier.BP_PANEL) && o.hasComponent() && o.getComponent().size() >= 2) {
                     bpObservationList.add(o);
                     logger.debug("observation " + o.getId() + " has panel coding; expecting both systolic and diastolic to be present");
 
-                } else if (protocol == null && FhirUtil.hasCoding(o.getCode(), fcm.getProtocolCoding())) {
+                } else if (protocol == null && CodingClassifier.is(classification, CodingClassifier.PROTOCOL)) {
                     protocol = o;
                     logger.debug("observation " + o.getId() + " has protocol coding; will associate with encounter " +
                             encounter.getId());
@@ -405,50 +471,48 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
 
         Map<String, SystolicDiastolicPair> sdpMap = new LinkedHashMap<>();
 
-        for (List<Observation> observationsList : encounterObservationsMap.values()) {
-//        if (encounterObservationsMap.containsKey(NO_ENCOUNTERS_KEY)) {
+        for (Observation o : getRemainingObservations(index, processed)) {
+            try {
+                if (o.hasCode()) {
+                    int classification = index.getClassification(o);
 
-            for (Observation o : observationsList) { //encounterObservationsMap.remove(NO_ENCOUNTERS_KEY)) {
-                try {
-                    if (o.hasCode()) {
-                        if (FhirUtil.hasCoding(o.getCode(), bpPanelCodings) && o.hasComponent() && o.getComponent().size() >= 2) {
-                            logger.debug("bpObservation = " + o.getId() + " (no encounter) (effectiveDateTime=" +
-                                    o.getEffectiveDateTimeType().getValueAsString() + ")");
-
-                            try {
-                                list.add(buildBloodPressureModel(o));
-
-                            } catch (DataException e) {
-                                logger.warn("caught " + e.getClass().getSimpleName() +
-                                        " building BloodPressureModel from Observation with id=" + o.getId() + " - " +
-                                        e.getMessage() + " - skipping -");
-                            }
-
-                        } else if (FhirUtil.hasCoding(o.getCode(), systolicCodings) && o.hasValueQuantity()) {
-                            String key = getObservationMatchKey(o);
-                            if (!sdpMap.containsKey(key)) {
-                                sdpMap.put(key, new SystolicDiastolicPair());
-                            }
-                            sdpMap.get(key).setSystolicObservation(o);
-
-                        } else if (FhirUtil.hasCoding(o.getCode(), diastolicCodings) && o.hasValueQuantity()) {
-                            String key = getObservationMatchKey(o);
-                            if (!sdpMap.containsKey(key)) {
-                                sdpMap.put(key, new SystolicDiastolicPair());
-                            }
-                            sdpMap.get(key).setDiastolicObservation(o);
-
-                        } else {
-                            logger.debug("did not process Observation " + o.getId() + " - invalid coding or unexpected resource structure");
+                    if (CodingClassifier.is(classification, CodingClassifier.BP_PANEL) && o.hasComponent() && o.getComponent().size() >= 2) {
+                        logger.debug("bpObservation = " + o.getId() + " (no encounter) (effectiveDateTime=" +
+                                o.getEffectiveDateTimeType().getValueAsString() + ")");
+
+                        try {
+                            list.add(buildBloodPressureModel(o));
+
+                        } catch (DataException e) {
+                            logger.warn("caught " + e.getClass().getSimpleName() +
+                                    " building BloodPressureModel from Observation with id=" + o.getId() + " - " +
+                                    e.getMessage() + " - skipping -");
                         }
 
+                    } else if (CodingClassifier.is(classification, CodingClassifier.BP_SYSTOLIC) && o.hasValueQuantity()) {
+                        String key = getObservationMatchKey(o);
+                        if (!sdpMap.containsKey(key)) {
+                            sdpMap.put(key, new SystolicDiastolicPair());
+                        }
+                        sdpMap.get(key).setSystolicObservation(o);
+
+                    } else if (CodingClassifier.is(classification, CodingClassifier.BP_DIASTOLIC) && o.hasValueQuantity()) {
+                        String key = getObservationMatchKey(o);
+                        if (!sdpMap.containsKey(key)) {
+                            sdpMap.put(key, new SystolicDiastolicPair());
+                        }
+                        sdpMap.get(key).setDiastolicObservation(o);
+
                     } else {
-                        logger.debug("did not process Observation " + o.getId() + " - no coding");
+                        logger.debug("did not process Observation " + o.getId() + " - invalid coding or unexpected resource structure");
                     }
 
-                } catch (Exception e) {
-                    logger.error("caught " + e.getClass().getName() + " processing Observation with id=" + o.getId() + " - " + e.getMessage(), e);
+                } else {
+                    logger.debug("did not process Observation " + o.getId() + " - no coding");
                 }
+
+            } catch (Exception e) {
+                logger.error("caught " + e.getClass().getName() + " processing Observation with id=" + o.getId() + " - " + e.getMessage(), e);
             }
         }
 
@@ -520,97 +584,44 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
         }
     }
 
-    protected Map<String, List<Observation>> buildEncounterObservationsMap(Bundle bundle) {
-        Map<String, List<Observation>> map = new HashMap<>();
-        if (bundle.hasEntry()) {
-            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.hasResource() && entry.getResource() instanceof Observation) {
-                    Observation observation = (Observation) entry.getResource();
-                    if (observation.hasEncounter()) {
-                        List<String> keys = buildKeys(observation.getEncounter());
-
-                        // IMPORTANT:
-                        // we want to associate THE SAME list with each key, NOT separate instances of identical lists
-
-                        List<Observation> list = null;
-
-                        // first, see if the map already contains a list for this key
-                        for (String key : keys) {
-                            if (map.containsKey(key)) {
-                                list = map.get(key);
-                                break;
-                            }
-                        }
-
-                        // if a list was found, it COULD BE the case that there are new keys with which to associate
-                        // this list, defined on this Observation.  we KNOW that the list is associated with at least one
-                        // of these keys, so it should be safe to assume they all refer to the same logical Encounter.
-                        // do that now
-                        if (list != null) {
-                            for (String key : keys) {
-                                if ( ! map.containsKey(key) ) {
-                                    map.put(key, list);
-                                }
-                            }
-                        }
-
-                        // otherwise, if no list was found for any keys, create a new list and associate it with each
-                        // of the keys
-                        if (list == null) {
-                            list = new ArrayList<>();
-                            for (String key : keys) {
-                                map.put(key, list);
-                            }
-                        }
+    @Override
+    public List<PulseModel> transformIncomingPulseReadings(Bundle bundle) throws DataException {
+        if (bundle == null) return null;
+        return transformIncomingPulseReadings(buildBundleIndex(bundle));
+    }
 
-                        map.get(keys.get(0)).add(observation);
+    @Override
+    public BundleIndex buildBundleIndex(Bundle bundle) {
+        return new BundleIndex(bundle, workspace.getFhirConfigManager().getCodingClassifier());
+    }
 
-                    } else {
-                        List<Observation> list = map.get(NO_ENCOUNTERS_KEY);
-                        if (list == null) {
-                            list = new ArrayList<>();
-                            map.put(NO_ENCOUNTERS_KEY, list);
-                        }
-                        list.add(observation);
-                    }
-                }
+    /**
+     * marks all unprocessed Observations associated with the specified Encounter as processed.
+     * @return those Observations, or null if there aren't any
+     */
+    protected List<Observation> takeObservations(BundleIndex index, Encounter encounter, Set<Observation> processed) {
+        List<Observation> list = new ArrayList<>();
+        for (Observation o : index.getObservations(encounter)) {
+            if (processed.add(o)) {
+                list.add(o);
             }
         }
-        return map;
+        return list.isEmpty() ? null : list;
     }
 
     /**
-     * pops all Observations from the provided Map associated with the specified Encounter.
-     * @param encounter
-     * @param map
-     * @return
+     * @return the Observations in index that haven't been processed, whether or not they reference an Encounter
      */
-    protected List<Observation> getObservationsFromMap(Encounter encounter, Map<String, List<Observation>> map) {
-        List<Observation> list = null;
-        for (String key : buildKeys(encounter.getId(), encounter.getIdentifier())) {
-            if (map.containsKey(key)) {     // the same exact list may be represented multiple times for different keys.
-                if (list == null) {         // we only care about the first
-                    list = map.remove(key);
-                } else {
-                    map.remove(key);
-                }
+    protected List<Observation> getRemainingObservations(BundleIndex index, Set<Observation> processed) {
+        List<Observation> list = new ArrayList<>();
+        for (Observation o : index.getResources(Observation.class)) {
+            if ( ! processed.contains(o) ) {
+                list.add(o);
             }
         }
         return list;
     }
 
-    protected List<String> buildKeys(Reference reference) {
-        return FhirUtil.buildKeys(reference);
-    }
-
-    protected List<String> buildKeys(String id, Identifier identifier) {
-        return FhirUtil.buildKeys(id, identifier);
-    }
-
-    protected List<String> buildKeys(String id, List<Identifier> identifiers) {
-        return FhirUtil.buildKeys(id, identifiers);
-    }
-
     protected String genTemporaryId() {
         return UUIDUtil.getRandomUUID();
     }
@@ -704,7 +715,11 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
 
     // most Encounters will be in the workspace cache, but newly created ones will not be in there yet,
     // although they *will* be in the bundle passed in as a parameter.  so consolidate those into one list
-    protected List<Encounter> getAllEncounters(Bundle bundle) {
+    protected List<Encounter> getAllEncounters(BundleIndex index) {
+        return getAllEncounters(index.getResources(Encounter.class));
+    }
+
+    protected List<Encounter> getAllEncounters(List<Encounter> additionalEncounters) {
         List<Encounter> list = new ArrayList<>();
 
         Set<String> foundIds = new HashSet<>();
@@ -713,15 +728,10 @@ public abstract class BaseVendorTransformer implements VendorTransformer {
             foundIds.add(encounter.getId());
         }
 
-        if (bundle != null && bundle.hasEntry()) {
-            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.hasResource() && entry.getResource() instanceof Encounter) {
-                    Encounter encounter = (Encounter) entry.getResource();
-                    if ( ! foundIds.contains(encounter.getId()) ) {
-                        list.add(encounter);
-                        foundIds.add(encounter.getId());
-                    }
-                }
+        for (Encounter encounter : additionalEncounters) {
+            if ( ! foundIds.contains(encounter.getId()) ) {
+                list.add(encounter);
+                foundIds.add(encounter.getId());
             }
         }
 
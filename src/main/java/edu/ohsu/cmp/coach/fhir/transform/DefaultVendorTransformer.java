@@ -1,6 +1,8 @@
 package edu.ohsu.cmp.coach.fhir.transform;
 
 import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.BundleIndex;
+import edu.ohsu.cmp.coach.fhir.CodingClassifier;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
 import edu.ohsu.cmp.coach.model.BloodPressureModel;
@@ -20,6 +22,8 @@ import java.util.*;
 public class DefaultVendorTransformer extends BaseVendorTransformer implements VendorTransformer {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    private static final String WRITEBACK_IDENTIFIER_SYSTEM = "urn:ietf:rfc:3986";
+
     public DefaultVendorTransformer(UserWorkspace workspace) {
         super(workspace);
     }
@@ -31,13 +35,24 @@ public class DefaultVendorTransformer extends BaseVendorTransformer implements V
 
         // prepare bundle for POSTing resources
         // ONLY permit NEW resources (i.e. those with UUID identifiers) to pass
-        // based on the reasonable assumption that we NEVER want to update existing resources
+        // based on the reasonable assumption that we NEVER want to update existing resources.
+        // resources are created conditionally on an identifier derived from their UUID, so that a resource
+        // written more than once (e.g. when a writeback is retried after a lost response) is only created once
         for (Bundle.BundleEntryComponent sourceEntry : bundle.getEntry()) {
-            if (FhirUtil.isUUID(sourceEntry.getResource().getId())) {
+            String id = sourceEntry.getResource().getId();
+            if (FhirUtil.isUUID(id)) {
                 Bundle.BundleEntryComponent entry = sourceEntry.copy();
-                entry.setRequest(new Bundle.BundleEntryRequestComponent()
+                Bundle.BundleEntryRequestComponent request = new Bundle.BundleEntryRequestComponent()
                         .setMethod(Bundle.HTTPVerb.POST)
-                        .setUrl(sourceEntry.getResource().fhirType()));
+                        .setUrl(sourceEntry.getResource().fhirType());
+
+                if (entry.getResource() instanceof DomainResource) {
+                    Identifier identifier = buildWritebackIdentifier(id);
+                    addIdentifier((DomainResource) entry.getResource(), identifier);
+                    request.setIfNoneExist("identifier=" + identifier.getSystem() + "|" + identifier.getValue());
+                }
+
+                entry.setRequest(request);
                 bundleToTransact.getEntry().add(entry);
             }
         }
@@ -47,7 +62,8 @@ public class DefaultVendorTransformer extends BaseVendorTransformer implements V
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
         Bundle responseBundle = fhirService.transact(fcc, strategy, bundleToTransact, true);
 
-        // remove any responses that didn't result in a 201 Created response
+        // remove any responses that didn't result in a 201 Created response, or a 200 OK response, which is what a
+        // conditional create returns if the resource was created by an earlier attempt
         Iterator<Bundle.BundleEntryComponent> iter = responseBundle.getEntry().iterator();
         while (iter.hasNext()) {
             Bundle.BundleEntryComponent entry = iter.next();
@@ -55,6 +71,9 @@ public class DefaultVendorTransformer extends BaseVendorTransformer implements V
                 Bundle.BundleEntryResponseComponent response = entry.getResponse();
                 if (response.hasStatus() && response.getStatus().equals("201 Created")) {
                     logger.debug("successfully created " + response.getLocation());
+
+                } else if (response.hasStatus() && response.getStatus().equals("200 OK")) {
+                    logger.debug("previously created " + response.getLocation());
                 } else {
                     logger.warn("got status = " + response.getStatus() + " attempting to write " + entry + " - removing");
                     iter.remove();
@@ -65,6 +84,33 @@ public class DefaultVendorTransformer extends BaseVendorTransformer implements V
         return responseBundle;
     }
 
+    private Identifier buildWritebackIdentifier(String uuid) {
+        return new Identifier()
+                .setSystem(WRITEBACK_IDENTIFIER_SYSTEM)
+                .setValue("urn:uuid:" + uuid);
+    }
+
+    private void addIdentifier(DomainResource resource, Identifier identifier) {
+        if (resource instanceof Observation) {
+            ((Observation) resource).addIdentifier(identifier);
+
+        } else if (resource instanceof Encounter) {
+            ((Encounter) resource).addIdentifier(identifier);
+        }
+    }
+
+    @Override
+    public int getMaxWritebackBatchSize() {
+        // any number of readings may be written in a single transaction; the configured limit applies
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean isWritebackIdempotent() {
+        // resources are created conditionally on their identifiers, and the transaction is all-or-nothing
+        return true;
+    }
+
     @Override
     protected BloodPressureModel buildBloodPressureModel(Encounter encounter, Observation bpObservation, Observation protocolObservation) throws DataException {
         return new BloodPressureModel(encounter, bpObservation, protocolObservation, workspace.getFhirConfigManager());
@@ -200,26 +246,22 @@ public class DefaultVendorTransformer extends BaseVendorTransformer implements V
 
     /**
      * Transforms incoming Pulse Observations in an idealized manner.
-     * @param bundle a Bundle of FHIR Resources including Pulse and special-circumstance Observations with
-     *               optional Encounters.
+     * @param index an index of FHIR Resources including Pulse and special-circumstance Observations with
+     *              optional Encounters.
      * @return a List of one or more populated PulseModel objects.
      * @throws DataException
      */
     @Override
-    public List<PulseModel> transformIncomingPulseReadings(Bundle bundle) throws DataException {
-        if (bundle == null) return null;
-
-        Map<String, List<Observation>> encounterObservationsMap = buildEncounterObservationsMap(bundle);
+    public List<PulseModel> transformIncomingPulseReadings(BundleIndex index) throws DataException {
         FhirConfigManager fcm = workspace.getFhirConfigManager();
 
         List<PulseModel> list = new ArrayList<>();
+        Set<Observation> processed = Collections.newSetFromMap(new IdentityHashMap<>());
 
-        // todo : outer loop should iterate over encounterObservationsMap, ignoring items where the key is null
-
-        for (Encounter encounter : getAllEncounters(bundle)) {
+        for (Encounter encounter : getAllEncounters(index)) {
             logger.debug("processing Encounter: " + encounter.getId());
 
-            List<Observation> encounterObservations = getObservationsFromMap(encounter, encounterObservationsMap);
+            List<Observation> encounterObservations = takeObservations(index, encounter, processed);
 
             if (encounterObservations != null) {
                 logger.debug("building Observations for Encounter " + encounter.getId());
@@ -227,18 +269,15 @@ public class DefaultVendorTransformer extends BaseVendorTransformer implements V
                 List<Observation> pulseObservationList = new ArrayList<>();    // potentially many per encounter
                 Observation protocolObservation = null;
 
-                Iterator<Observation> iter = encounterObservations.iterator();
-                while (iter.hasNext()) {
-                    Observation o = iter.next();
-                    if (FhirUtil.hasCoding(o.getCode(), fcm.getPulseCodings())) {
+                for (Observation o : encounterObservations) {
+                    int classification = index.getClassification(o);
+                    if (CodingClassifier.is(classification, CodingClassifier.PULSE)) {
                         logger.debug("pulseObservation = " + o.getId() + " (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
                         pulseObservationList.add(o);
-                        iter.remove();
 
-                    } else if (protocolObservation == null && FhirUtil.hasCoding(o.getCode(), fcm.getProtocolCoding())) {
+                    } else if (protocolObservation == null && CodingClassifier.is(classification, CodingClassifier.PROTOCOL)) {
                         logger.debug("protocolObservation = " + o.getId() + " (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
                         protocolObservation = o;
-                        iter.remove();
                     }
                 }
 
@@ -262,33 +301,29 @@ public class DefaultVendorTransformer extends BaseVendorTransformer implements V
         // there may be pulse observations in the system that aren't tied to any encounters.  we still want to capture these
         // of course, we can't associate any other observations with them (e.g. protocol), but whatever.  better than nothing
 
-        for (Map.Entry<String, List<Observation>> entry : encounterObservationsMap.entrySet()) {
-            if (entry.getValue() != null) {
-                for (Observation o : entry.getValue()) {
-                    try {
-                        if (o.hasCode()) {
-                            if (FhirUtil.hasCoding(o.getCode(), fcm.getPulseCodings())) {
-                                logger.debug("pulseObservation = " + o.getId() + " (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
-                                try {
-                                    list.add(new PulseModel(o, fcm));
-                                } catch (DataException e) {
-                                    logger.warn("caught " + e.getClass().getName() +
-                                            " building Pulse from Observation with id=" + o.getId() + " - " +
-                                            e.getMessage() + " - skipping -");
-                                }
-
-                            } else {
-                                logger.debug("did not process Observation " + o.getId() + " - invalid coding");
-                            }
-
-                        } else {
-                            logger.debug("did not process Observation " + o.getId() + " - no coding");
+        for (Observation o : getRemainingObservations(index, processed)) {
+            try {
+                if (o.hasCode()) {
+                    if (CodingClassifier.is(index.getClassification(o), CodingClassifier.PULSE)) {
+                        logger.debug("pulseObservation = " + o.getId() + " (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
+                        try {
+                            list.add(new PulseModel(o, fcm));
+                        } catch (DataException e) {
+                            logger.warn("caught " + e.getClass().getName() +
+                                    " building Pulse from Observation with id=" + o.getId() + " - " +
+                                    e.getMessage() + " - skipping -");
                         }
 
-                    } catch (Exception e) {
-                        logger.error("caught " + e.getClass().getName() + " processing Observation with id=" + o.getId() + " - " + e.getMessage(), e);
+                    } else {
+                        logger.debug("did not process Observation " + o.getId() + " - invalid coding");
                     }
+
+                } else {
+                    logger.debug("did not process Observation " + o.getId() + " - no coding");
                 }
+
+            } catch (Exception e) {
+                logger.error("caught " + e.getClass().getName() + " processing Observation with id=" + o.getId() + " - " + e.getMessage(), e);
             }
         }
 
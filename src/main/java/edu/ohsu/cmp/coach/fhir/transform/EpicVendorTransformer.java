@@ -2,6 +2,7 @@ package edu.ohsu.cmp.coach.fhir.transform;
 
 import edu.ohsu.cmp.coach.exception.CaseNotHandledException;
 import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.CodingClassifier;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
 import edu.ohsu.cmp.coach.model.BloodPressureModel;
 import edu.ohsu.cmp.coach.model.PulseModel;
@@ -37,8 +38,8 @@ public class EpicVendorTransformer extends SpecialVendorTransformer implements V
                 .setDisplay("vital-signs");
 
         if (bpObservation.hasCode()) {
-            CodeableConcept code = bpObservation.getCode();
-            if (type == ResourceType.SYSTOLIC && FhirUtil.hasCoding(code, fcm.getBpSystolicCodings())) {
+            int classification = fcm.getCodingClassifier().classify(bpObservation.getCode());
+            if (type == ResourceType.SYSTOLIC && CodingClassifier.is(classification, CodingClassifier.BP_SYSTOLIC)) {
                 for (Coding c : fcm.getBpSystolicCodings()) {
                     // Epic flowsheet Observations may only include urn:oid Codings
                     if (c.hasSystem() && c.getSystem().startsWith(URN_OID_PREFIX)) {
@@ -47,7 +48,7 @@ public class EpicVendorTransformer extends SpecialVendorTransformer implements V
                 }
                 o.setValue(bpObservation.getValueQuantity());
 
-            } else if (type == ResourceType.DIASTOLIC && FhirUtil.hasCoding(code, fcm.getBpDiastolicCodings())) {
+            } else if (type == ResourceType.DIASTOLIC && CodingClassifier.is(classification, CodingClassifier.BP_DIASTOLIC)) {
                 for (Coding c : fcm.getBpDiastolicCodings()) {
                     // Epic flowsheet Observations may only include urn:oid Codings
                     if (c.hasSystem() && c.getSystem().startsWith(URN_OID_PREFIX)) {
@@ -56,7 +57,7 @@ public class EpicVendorTransformer extends SpecialVendorTransformer implements V
                 }
                 o.setValue(bpObservation.getValueQuantity());
 
-            } else if (FhirUtil.hasCoding(code, fcm.getBpPanelCodings())) {
+            } else if (CodingClassifier.is(classification, CodingClassifier.BP_PANEL)) {
                 if (bpObservation.hasComponent()) {
                     if (type == ResourceType.SYSTOLIC) {
                         for (Coding c : fcm.getBpSystolicCodings()) {
@@ -0,0 +1,14 @@
+package edu.ohsu.cmp.coach.fhir.transform;
+
+import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.ResourceConsumer;
+
+import java.util.List;
+
+/**
+ * Accumulates resources as they are streamed from a FHIR search, and builds models from them once the search has
+ * completed
+ */
+public interface IncomingResourceTransform<T> extends ResourceConsumer {
+    List<T> getResult() throws DataException;
+}
@@ -2,6 +2,8 @@ package edu.ohsu.cmp.coach.fhir.transform;
 
 import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.BundleIndex;
+import edu.ohsu.cmp.coach.fhir.CodingClassifier;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
 import edu.ohsu.cmp.coach.model.*;
@@ -15,10 +17,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 public abstract class SpecialVendorTransformer extends BaseVendorTransformer {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -70,6 +69,20 @@ public abstract class SpecialVendorTransformer extends BaseVendorTransformer {
         return responseBundle;
     }
 
+    @Override
+    public int getMaxWritebackBatchSize() {
+        // resources are posted one at a time, and writeRemote() gives up at the first failure, so combining readings
+        // saves nothing and lets one bad reading prevent others from being written
+        return 1;
+    }
+
+    @Override
+    public boolean isWritebackIdempotent() {
+        // resources are posted unconditionally, one at a time, so writing a Bundle again re-creates any of its
+        // resources that were written before
+        return false;
+    }
+
     @Override
     protected BloodPressureModel buildBloodPressureModel(Encounter encounter, Observation bpObservation, Observation protocolObservation) throws DataException {
         FhirConfigManager fcm = workspace.getFhirConfigManager();
@@ -217,18 +230,16 @@ public abstract class SpecialVendorTransformer extends BaseVendorTransformer {
     }
 
     @Override
-    public List<PulseModel> transformIncomingPulseReadings(Bundle bundle) throws DataException {
-        if (bundle == null) return null;
-
-        Map<String, List<Observation>> encounterObservationsMap = buildEncounterObservationsMap(bundle);
+    public List<PulseModel> transformIncomingPulseReadings(BundleIndex index) throws DataException {
         FhirConfigManager fcm = workspace.getFhirConfigManager();
 
         List<PulseModel> list = new ArrayList<>();
+        Set<Observation> processed = Collections.newSetFromMap(new IdentityHashMap<>());
 
-        for (Encounter encounter : getAllEncounters(bundle)) {
+        for (Encounter encounter : getAllEncounters(index)) {
             logger.debug("processing Encounter: " + encounter.getId());
 
-            List<Observation> encounterObservations = getObservationsFromMap(encounter, encounterObservationsMap);
+            List<Observation> encounterObservations = takeObservations(index, encounter, processed);
 
             if (encounterObservations != null) {
                 logger.debug("building Observations for Encounter " + encounter.getId());
@@ -236,18 +247,15 @@ public abstract class SpecialVendorTransformer extends BaseVendorTransformer {
                 List<Observation> pulseObservationList = new ArrayList<>();    // potentially many per encounter
                 Observation protocolObservation = null;
 
-                Iterator<Observation> iter = encounterObservations.iterator();
-                while (iter.hasNext()) {
-                    Observation o = iter.next();
-                    if (FhirUtil.hasCoding(o.getCode(), fcm.getPulseCodings())) {
+                for (Observation o : encounterObservations) {
+                    int classification = index.getClassification(o);
+                    if (CodingClassifier.is(classification, CodingClassifier.PULSE)) {
                         logger.debug("pulseObservation = " + o.getId() + " (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
                         pulseObservationList.add(o);
-                        iter.remove();
 
-                    } else if (protocolObservation == null && FhirUtil.hasCoding(o.getCode(), fcm.getProtocolCoding())) {
+                    } else if (protocolObservation == null && CodingClassifier.is(classification, CodingClassifier.PROTOCOL)) {
                         logger.debug("protocolObservation = " + o.getId() + " (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
                         protocolObservation = o;
-                        iter.remove();
                     }
                 }
 
@@ -277,27 +285,23 @@ public abstract class SpecialVendorTransformer extends BaseVendorTransformer {
         // there may be pulse Observations in the system that aren't tied to any Encounters.  we still want to capture these
         // of course, we can't associate any other Observations with them (e.g. protocol), but whatever.  better than nothing
 
-        for (Map.Entry<String, List<Observation>> entry : encounterObservationsMap.entrySet()) {
-            if (entry.getValue() != null) {
-                for (Observation o : entry.getValue()) {
-                    if (o.hasCode() && FhirUtil.hasCoding(o.getCode(), fcm.getPulseCodings())) {
-                        logger.debug("pulseObservation = " + o.getId() + " (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
-                        PulseModel pm = new PulseModel(o, fcm);
+        for (Observation o : getRemainingObservations(index, processed)) {
+            if (o.hasCode() && CodingClassifier.is(index.getClassification(o), CodingClassifier.PULSE)) {
+                logger.debug("pulseObservation = " + o.getId() + " (effectiveDateTime=" + o.getEffectiveDateTimeType().getValueAsString() + ")");
+                PulseModel pm = new PulseModel(o, fcm);
 
-                        // for "special" vendors, protocol information is represented in a custom-serialized note on the
-                        // Observation resource if no Observation resource for the protocol exists
+                // for "special" vendors, protocol information is represented in a custom-serialized note on the
+                // Observation resource if no Observation resource for the protocol exists
 
-                        Boolean followedProtocol = getFollowedProtocolFromNote(o, fcm);
-                        if (followedProtocol != null) {
-                            pm.setFollowedProtocol(followedProtocol);
-                        }
+                Boolean followedProtocol = getFollowedProtocolFromNote(o, fcm);
+                if (followedProtocol != null) {
+                    pm.setFollowedProtocol(followedProtocol);
+                }
 
-                        list.add(pm);
+                list.add(pm);
 
-                    } else {
-                        logger.debug("did not process Observation " + o.getId());
-                    }
-                }
+            } else {
+                logger.debug("did not process Observation " + o.getId());
             }
         }
 
@@ -1,6 +1,7 @@
 package edu.ohsu.cmp.coach.fhir.transform;
 
 import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.BundleIndex;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
 import edu.ohsu.cmp.coach.model.BloodPressureModel;
 import edu.ohsu.cmp.coach.model.GoalModel;
@@ -28,10 +29,37 @@ public interface VendorTransformer {
 
     Bundle writeRemote(String sessionId, FhirStrategy strategy, FHIRService fhirService, Bundle bundle) throws Exception;
 
+    /**
+     * @return the maximum number of vitals readings whose outgoing Bundles may be combined into a single call to
+     * writeRemote()
+     */
+    int getMaxWritebackBatchSize();
+
+    /**
+     * @return true if writeRemote() can safely be called again with a Bundle that was already written, in whole or
+     * in part, without creating any of its resources more than once
+     */
+    boolean isWritebackIdempotent();
+
+    /**
+     * @return a key that identifies the reading represented by outgoingBundle, which is stable across attempts to
+     * write it, or null if none can be determined
+     */
+    String getWritebackIdempotencyKey(Bundle outgoingBundle);
+
+    /**
+     * @return an index of bundle's resources, from which BP and pulse readings can both be transformed without
+     * indexing bundle again
+     */
+    BundleIndex buildBundleIndex(Bundle bundle);
+
     List<BloodPressureModel> transformIncomingBloodPressureReadings(Bundle bundle) throws DataException;
+    List<BloodPressureModel> transformIncomingBloodPressureReadings(BundleIndex index) throws DataException;
+    IncomingResourceTransform<BloodPressureModel> newIncomingBloodPressureReadingsTransform();
     Bundle transformOutgoingBloodPressureReading(BloodPressureModel model) throws DataException;
 
     List<PulseModel> transformIncomingPulseReadings(Bundle bundle) throws DataException;
+    List<PulseModel> transformIncomingPulseReadings(BundleIndex index) throws DataException;
     Bundle transformOutgoingPulseReading(PulseModel model) throws DataException;
 
     List<GoalModel> transformIncomingGoals(Bundle bundle) throws DataException;
@@ -0,0 +1,109 @@
+package edu.ohsu.cmp.coach.http;
+
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the single, connection-pooled HttpClient used by all HttpRequests.  Connections are kept alive and reused
+ * across requests to the same host, so that repeated calls to CQF-Ruler, VSAC, REDCap, Omron etc. don't each pay
+ * for a new TCP / TLS handshake.
+ */
+public class HttpClientManager {
+    private static final Logger logger = LoggerFactory.getLogger(HttpClientManager.class);
+
+    public static final int DEFAULT_MAX_TOTAL = 200;
+    public static final int DEFAULT_MAX_PER_ROUTE = 64;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 300000;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+
+    private static PoolingHttpClientConnectionManager connectionManager = null;
+    private static CloseableHttpClient client = null;
+
+    /**
+     * (Re)builds the shared client with the specified settings.  Any previously built client is closed.
+     */
+    public static synchronized void configure(int maxTotal, int maxPerRoute, int connectTimeoutMillis,
+                                              int connectionRequestTimeoutMillis, int socketTimeoutMillis,
+                                              long keepAliveMillis) {
+        shutdown();
+
+        logger.info("building pooled HTTP client (maxTotal=" + maxTotal + ", maxPerRoute=" + maxPerRoute +
+                ", connectTimeout=" + connectTimeoutMillis + "ms, connectionRequestTimeout=" +
+                connectionRequestTimeoutMillis + "ms, socketTimeout=" + socketTimeoutMillis + "ms, keepAlive=" +
+                keepAliveMillis + "ms)");
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity(2000);
+
+        // storer 2022-09-16 - the standard cookie spec resolves "Invalid 'expires' attribute" warnings from
+        //                     ResponseProcessCookies.  see: https://www.lenar.io/invalid-cookie-header-invalid-expires-attribute/
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setCookieSpec(CookieSpecs.STANDARD)
+                .setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+                .setSocketTimeout(socketTimeoutMillis)
+                .build();
+
+        // honor the server's Keep-Alive header if it sends one, but never hold an idle connection longer than
+        // keepAliveMillis
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ?
+                    Math.min(duration, keepAliveMillis) :
+                    keepAliveMillis;
+        };
+
+        // cookie management is disabled since this client is shared by every user session.  prior to pooling, each
+        // request built its own client, so cookies were never carried from one request to the next anyway.
+        // content compression (gzip, deflate) is enabled by default - responses are transparently decompressed
+        client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .disableCookieManagement()
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public static synchronized CloseableHttpClient getClient() {
+        if (client == null) {
+            configure(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                    DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS, DEFAULT_SOCKET_TIMEOUT_MILLIS, DEFAULT_KEEP_ALIVE_MILLIS);
+        }
+        return client;
+    }
+
+    public static synchronized PoolStats getPoolStats() {
+        return connectionManager != null ?
+                connectionManager.getTotalStats() :
+                null;
+    }
+
+    public static synchronized void shutdown() {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                logger.warn("caught " + e.getClass().getName() + " closing HTTP client - " + e.getMessage(), e);
+            }
+            client = null;
+            connectionManager = null;
+        }
+    }
+}
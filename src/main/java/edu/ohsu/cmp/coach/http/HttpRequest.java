@@ -4,20 +4,12 @@ import org.apache.commons.codec.EncoderException;
 import org.apache.commons.codec.net.URLCodec;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
-import org.apache.http.client.config.CookieSpecs;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -38,19 +30,14 @@ public class HttpRequest {
     }
 
     public HttpResponse get(String url, Map<String, String> urlParams, Map<String, String> requestHeaders) throws IOException {
-        if (urlParams != null && ! urlParams.isEmpty()) {
-            url += "?" + buildURLEncodedParams(urlParams);
-        }
-
-        HttpGet httpget = new HttpGet(url);
-
-        if (requestHeaders != null) {
-            for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
-                httpget.setHeader(entry.getKey(), entry.getValue());
-            }
-        }
+        return execute(buildGet(url, urlParams, requestHeaders));
+    }
 
-        return execute(httpget);
+    /**
+     * Executes a GET request without reading the response body.  The caller must close the returned response.
+     */
+    public HttpStreamResponse getStreaming(String url, Map<String, String> urlParams, Map<String, String> requestHeaders) throws IOException {
+        return executeStreaming(buildGet(url, urlParams, requestHeaders));
     }
 
     public HttpResponse post(String url) throws IOException {
@@ -70,6 +57,43 @@ public class HttpRequest {
     }
 
     public HttpResponse post(String url, Map<String, String> urlParams, Map<String, String> requestHeaders, String body) throws IOException {
+        return execute(buildPost(url, urlParams, requestHeaders, body));
+    }
+
+    /**
+     * Executes a POST request with the specified entity as its body, e.g. a WriterEntity to stream the body rather
+     * than build it in memory first
+     */
+    public HttpResponse post(String url, Map<String, String> urlParams, Map<String, String> requestHeaders, HttpEntity body) throws IOException {
+        HttpPost httppost = buildPost(url, urlParams, requestHeaders, (String) null);
+        httppost.setEntity(body);
+        return execute(httppost);
+    }
+
+    /**
+     * Executes a POST request without reading the response body.  The caller must close the returned response.
+     */
+    public HttpStreamResponse postStreaming(String url, Map<String, String> urlParams, Map<String, String> requestHeaders, Map<String, String> bodyParams) throws IOException {
+        return executeStreaming(buildPost(url, urlParams, requestHeaders, buildURLEncodedParams(bodyParams)));
+    }
+
+    private HttpGet buildGet(String url, Map<String, String> urlParams, Map<String, String> requestHeaders) {
+        if (urlParams != null && ! urlParams.isEmpty()) {
+            url += "?" + buildURLEncodedParams(urlParams);
+        }
+
+        HttpGet httpget = new HttpGet(url);
+
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+                httpget.setHeader(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return httpget;
+    }
+
+    private HttpPost buildPost(String url, Map<String, String> urlParams, Map<String, String> requestHeaders, String body) throws IOException {
         if (urlParams != null && ! urlParams.isEmpty()) {
             url += "?" + buildURLEncodedParams(urlParams);
         }
@@ -86,54 +110,17 @@ public class HttpRequest {
             httppost.setEntity(new StringEntity(body));
         }
 
-        return execute(httppost);
+        return httppost;
     }
 
     private HttpResponse execute(HttpUriRequest request) throws IOException {
-        StringBuilder sb = new StringBuilder();
-
-// storer 2022-09-16 - modifying creation of httpclient to resolve the following experienced errors:
-// 2022-09-16 14:30:05.427 [scheduling-1] WARN  o.a.h.c.p.ResponseProcessCookies [ResponseProcessCookies.java:130] Invalid
-//      cookie header: "Set-Cookie: <cookie>; Expires=Fri, 23 Sep 2022 21:30:05 GMT; Path=/". Invalid 'expires' attribute:
-//      Fri, 23 Sep 2022 21:30:05 GMT
-// see: https://www.lenar.io/invalid-cookie-header-invalid-expires-attribute/
-//        CloseableHttpClient httpclient = HttpClients.createDefault();
-        RequestConfig requestConfig = RequestConfig.custom()
-                .setCookieSpec(CookieSpecs.STANDARD)
-                .build();
-        CloseableHttpClient httpclient = HttpClientBuilder.create()
-                .setDefaultRequestConfig(requestConfig)
-                .build();
-
-        CloseableHttpResponse response = httpclient.execute(request);
-
-        int code = response.getStatusLine().getStatusCode();
-
-        try {
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                InputStream is = entity.getContent();
-                InputStreamReader isr = null;
-                BufferedReader br = null;
-                try {
-                    isr = new InputStreamReader(is);
-                    br = new BufferedReader(isr);
-                    int c = 0;
-                    while ((c = br.read()) != -1) {
-                        sb.append((char) c);
-                    }
-
-                } finally {
-                    try { if (br != null) br.close(); } catch (Exception e) { }
-                    try { if (isr != null) isr.close(); } catch (Exception e) { }
-                }
-            }
-
-        } finally {
-            try { response.close(); } catch (Exception e) { }
+        try (HttpStreamResponse response = executeStreaming(request)) {
+            return new HttpResponse(response.getResponseCode(), response.getResponseBody());
         }
+    }
 
-        return new HttpResponse(code, sb.toString());
+    private HttpStreamResponse executeStreaming(HttpUriRequest request) throws IOException {
+        return new HttpStreamResponse(HttpClientManager.getClient().execute(request));
     }
 
     private String buildURLEncodedParams(Map<String, String> params) {
@@ -0,0 +1,82 @@
+package edu.ohsu.cmp.coach.http;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An HTTP response whose body has not yet been read.  The body may be consumed as a stream (e.g. handed directly to a
+ * JSON parser), or read in full.  Must be closed when finished, which returns the connection to the pool.
+ */
+public class HttpStreamResponse implements Closeable {
+    private final CloseableHttpResponse response;
+    private final int responseCode;
+
+    HttpStreamResponse(CloseableHttpResponse response) {
+        this.response = response;
+        this.responseCode = response.getStatusLine().getStatusCode();
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public boolean isSuccessful() {
+        return responseCode >= 200 && responseCode <= 299;
+    }
+
+    public InputStream getContent() throws IOException {
+        HttpEntity entity = response.getEntity();
+        return entity != null ?
+                entity.getContent() :
+                new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * @return a Reader over the response body, decoded using the charset specified by the response, or UTF-8 if none
+     */
+    public Reader getReader() throws IOException {
+        return new InputStreamReader(getContent(), getCharset());
+    }
+
+    public String getResponseBody() throws IOException {
+        HttpEntity entity = response.getEntity();
+        return entity != null ?
+                EntityUtils.toString(entity, StandardCharsets.UTF_8) :
+                "";
+    }
+
+    private Charset getCharset() {
+        HttpEntity entity = response.getEntity();
+        if (entity != null && entity.getContentType() != null) {
+            try {
+                ContentType contentType = ContentType.get(entity);
+                if (contentType != null && contentType.getCharset() != null) {
+                    return contentType.getCharset();
+                }
+            } catch (RuntimeException e) {
+                // unparseable content type - fall through to default
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            EntityUtils.consume(response.getEntity());  // drain anything left unread so the connection can be reused
+        } finally {
+            response.close();
+        }
+    }
+}
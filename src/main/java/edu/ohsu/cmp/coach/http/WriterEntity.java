@@ -0,0 +1,64 @@
+package edu.ohsu.cmp.coach.http;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A request body that is written directly to the connection as it is sent, rather than being built in memory
+ * first.  The body may be written more than once (e.g. if the request is retried), so writer must produce the same
+ * content each time it is called.
+ */
+public class WriterEntity extends AbstractHttpEntity {
+    @FunctionalInterface
+    public interface BodyWriter {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    private final BodyWriter bodyWriter;
+    private final Charset charset;
+
+    public WriterEntity(BodyWriter bodyWriter, ContentType contentType) {
+        this.bodyWriter = bodyWriter;
+        this.charset = contentType.getCharset() != null ?
+                contentType.getCharset() :
+                StandardCharsets.UTF_8;
+        setContentType(contentType.toString());
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * builds the entire body in memory.  only intended for diagnostics; requests are sent by way of writeTo
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outStream, charset));
+        bodyWriter.writeTo(writer);
+        writer.flush();     // don't close, the connection owns the stream
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -15,6 +15,9 @@ public class ApplicationStartupListener implements ApplicationListener<Applicati
 
     @Override
     public void onApplicationEvent(ApplicationReadyEvent event) {
-        medicationService.refreshAntihypertensiveMedicationValueSets();
+        // classify medications from the local snapshot or the stored ValueSets right away, and bring ValueSets up to
+        // date from VSAC without holding up startup
+        medicationService.initializeValueSetIndex();
+        medicationService.refreshAntihypertensiveMedicationValueSetsInBackground();
     }
 }
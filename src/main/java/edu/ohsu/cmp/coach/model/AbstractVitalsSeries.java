@@ -0,0 +1,107 @@
+package edu.ohsu.cmp.coach.model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A compact, columnar copy of a list of vitals readings, sorted newest first.  Reading times and values are stored
+ * in primitive arrays and flags in bitsets, so that statistics can be calculated without walking the readings
+ * themselves.  The readings are retained so that individual readings can be retrieved by index.
+ * @param <T> the type of reading
+ */
+public abstract class AbstractVitalsSeries<T extends AbstractVitalsModel> {
+    private static final Comparator<AbstractVitalsModel> NEWEST_FIRST =
+            (o1, o2) -> o1.getReadingDate().compareTo(o2.getReadingDate()) * -1;
+
+    private final List<T> readings;
+    private final int size;
+    private final long[] timestamps;
+    private final BitSet homeReadings;
+    private final BitSet followedProtocol;
+
+    protected AbstractVitalsSeries(List<T> list) {
+        List<T> sorted = list;
+        if ( ! isNewestFirst(list) ) {
+            sorted = new ArrayList<>(list);
+            sorted.sort(NEWEST_FIRST);
+        }
+
+        this.readings = sorted;
+        this.size = sorted.size();
+        this.timestamps = new long[size];
+        this.homeReadings = new BitSet(size);
+        this.followedProtocol = new BitSet(size);
+
+        for (int i = 0; i < size; i ++) {
+            T item = sorted.get(i);
+            timestamps[i] = item.getReadingDate().getTime();
+            if (item.isHomeReading()) homeReadings.set(i);
+            if (Boolean.TRUE.equals(item.getFollowedProtocol())) followedProtocol.set(i);
+        }
+    }
+
+    /**
+     * creates a series consisting of the newest size readings of other, sharing its arrays
+     */
+    protected AbstractVitalsSeries(AbstractVitalsSeries<T> other, int size) {
+        this.readings = other.readings;
+        this.size = Math.max(0, Math.min(size, other.size));
+        this.timestamps = other.timestamps;
+        this.homeReadings = other.homeReadings;
+        this.followedProtocol = other.followedProtocol;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public T getReading(int i) {
+        checkIndex(i);
+        return readings.get(i);
+    }
+
+    public long getTimestamp(int i) {
+        checkIndex(i);
+        return timestamps[i];
+    }
+
+    public boolean isHomeReading(int i) {
+        checkIndex(i);
+        return homeReadings.get(i);
+    }
+
+    public boolean isFollowedProtocol(int i) {
+        checkIndex(i);
+        return followedProtocol.get(i);
+    }
+
+    /**
+     * @return the index of the first (i.e. newest) reading taken strictly before timestamp, or size() if none
+     */
+    public int indexOfFirstBefore(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] >= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    protected void checkIndex(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException("index " + i + " out of bounds for size " + size);
+    }
+
+    private static boolean isNewestFirst(List<? extends AbstractVitalsModel> list) {
+        for (int i = 1; i < list.size(); i ++) {
+            if (NEWEST_FIRST.compare(list.get(i - 1), list.get(i)) > 0) return false;
+        }
+        return true;
+    }
+}
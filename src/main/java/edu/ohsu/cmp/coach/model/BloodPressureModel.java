@@ -222,10 +222,18 @@ public class BloodPressureModel extends AbstractVitalsModel {
     }
 
     public boolean isLow() {
-        return systolic.getValue() < 90 || diastolic.getValue() < 60;
+        return isLow(systolic.getValue(), diastolic.getValue());
     }
 
     public boolean isHigh() {
-        return systolic.getValue() >= 180 || diastolic.getValue() >= 120;
+        return isHigh(systolic.getValue(), diastolic.getValue());
+    }
+
+    public static boolean isLow(int systolic, int diastolic) {
+        return systolic < 90 || diastolic < 60;
+    }
+
+    public static boolean isHigh(int systolic, int diastolic) {
+        return systolic >= 180 || diastolic >= 120;
     }
 }
@@ -0,0 +1,56 @@
+package edu.ohsu.cmp.coach.model;
+
+import java.util.List;
+
+/**
+ * A columnar series of blood pressure readings, newest first.  See AbstractVitalsSeries.
+ */
+public class BloodPressureSeries extends AbstractVitalsSeries<BloodPressureModel> {
+    private final short[] systolic;
+    private final short[] diastolic;
+
+    public BloodPressureSeries(List<BloodPressureModel> list) {
+        super(list);
+
+        systolic = new short[size()];
+        diastolic = new short[size()];
+        for (int i = 0; i < size(); i ++) {
+            BloodPressureModel bpm = getReading(i);
+            systolic[i] = bpm.getSystolic().getValue().shortValue();
+            diastolic[i] = bpm.getDiastolic().getValue().shortValue();
+        }
+    }
+
+    private BloodPressureSeries(BloodPressureSeries other, int size) {
+        super(other, size);
+        this.systolic = other.systolic;
+        this.diastolic = other.diastolic;
+    }
+
+    /**
+     * @return a series consisting of the newest count readings in this one.  no data is copied
+     */
+    public BloodPressureSeries head(int count) {
+        return count >= size() ?
+                this :
+                new BloodPressureSeries(this, count);
+    }
+
+    public int getSystolic(int i) {
+        checkIndex(i);
+        return systolic[i];
+    }
+
+    public int getDiastolic(int i) {
+        checkIndex(i);
+        return diastolic[i];
+    }
+
+    public boolean isLow(int i) {
+        return BloodPressureModel.isLow(getSystolic(i), getDiastolic(i));
+    }
+
+    public boolean isHigh(int i) {
+        return BloodPressureModel.isHigh(getSystolic(i), getDiastolic(i));
+    }
+}
@@ -1,6 +1,5 @@
 package edu.ohsu.cmp.coach.model;
 
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -20,35 +19,34 @@ public class BloodPressureSummaryModel {
     private Integer recentHomeBPReadingsDayCount;
 
     public BloodPressureSummaryModel(List<BloodPressureModel> list) {
-        List<BloodPressureModel> bpList = new ArrayList<>();     // create a copy of list to work with, don't want to modify the original
-        bpList.addAll(list);
-        bpList.sort((o1, o2) -> o1.getReadingDate().compareTo(o2.getReadingDate()) * -1); // sort newest first
-
-        if (bpList.size() > 0) {
-            mostRecentSystolic = bpList.get(0).getSystolic().getValue();
-            mostRecentDiastolic = bpList.get(0).getDiastolic().getValue();
-            mostRecentDate = bpList.get(0).getReadingDate();
-
-            if (bpList.size() > 1) {
-                secondMostRecentSystolic = bpList.get(1).getSystolic().getValue();
-                secondMostRecentDiastolic = bpList.get(1).getDiastolic().getValue();
-                secondMostRecentDate = bpList.get(1).getReadingDate();
+        this(new BloodPressureSeries(list));    // the series is sorted newest first, the original list isn't modified
+    }
+
+    public BloodPressureSummaryModel(BloodPressureSeries series) {
+        int size = series.size();
+
+        if (size > 0) {
+            mostRecentSystolic = series.getSystolic(0);
+            mostRecentDiastolic = series.getDiastolic(0);
+            mostRecentDate = new Date(series.getTimestamp(0));
+
+            if (size > 1) {
+                secondMostRecentSystolic = series.getSystolic(1);
+                secondMostRecentDiastolic = series.getDiastolic(1);
+                secondMostRecentDate = new Date(series.getTimestamp(1));
             }
         }
 
+        // the series is sorted newest first, so readings within the timeframe are those before the first reading
+        // taken before it
         long timeframeStartTS = getStartOfDay30DaysAgoTS();
-        Long earliestHomeReadingWithinTimeframeTS = null;
-        Long latestHomeReadingWithinTimeframeTS = null;
+        int timeframeEnd = series.indexOfFirstBefore(timeframeStartTS);
+        long earliestHomeReadingWithinTimeframeTS = -1;
         recentHomeBPReadingsCount = 0;
-        for (BloodPressureModel bpm : bpList) {
-            if (bpm.isHomeReading() && bpm.getReadingDateTimestamp() >= timeframeStartTS) {
+        for (int i = 0; i < timeframeEnd; i ++) {
+            if (series.isHomeReading(i)) {
                 recentHomeBPReadingsCount++;
-                if (earliestHomeReadingWithinTimeframeTS == null || bpm.getReadingDateTimestamp() < earliestHomeReadingWithinTimeframeTS) {
-                    earliestHomeReadingWithinTimeframeTS = bpm.getReadingDateTimestamp();
-                }
-                if (latestHomeReadingWithinTimeframeTS == null || bpm.getReadingDateTimestamp() > latestHomeReadingWithinTimeframeTS) {
-                    latestHomeReadingWithinTimeframeTS = bpm.getReadingDateTimestamp();
-                }
+                earliestHomeReadingWithinTimeframeTS = series.getTimestamp(i);
             }
         }
 
@@ -60,24 +58,24 @@ public class BloodPressureSummaryModel {
         cal.set(Calendar.MILLISECOND, 0);
         long todayAtNoonTS = cal.getTimeInMillis();
 
-        recentHomeBPReadingsDayCount = earliestHomeReadingWithinTimeframeTS != null ?
+        recentHomeBPReadingsDayCount = earliestHomeReadingWithinTimeframeTS >= 0 ?
                 Math.round((float) (todayAtNoonTS - earliestHomeReadingWithinTimeframeTS) / MS_IN_DAY) :
                 30; // default to 30 days
 
 
         // calculate average using same logic as in the UI
-        List<BloodPressureModel> bpSet = buildBPSet(bpList);
-        if (bpSet != null) {
+        int bpSetSize = getBPSetSize(series);
+        if (bpSetSize > 0) {
             int totalSystolic = 0;
             int totalDiastolic = 0;
 
-            for (BloodPressureModel bpm : bpSet) {
-                totalSystolic += bpm.getSystolic().getValue();
-                totalDiastolic += bpm.getDiastolic().getValue();
+            for (int i = 0; i < bpSetSize; i ++) {
+                totalSystolic += series.getSystolic(i);
+                totalDiastolic += series.getDiastolic(i);
             }
 
-            avgSystolic = Math.round((float) totalSystolic / bpSet.size());
-            avgDiastolic = Math.round((float) totalDiastolic / bpSet.size());
+            avgSystolic = Math.round((float) totalSystolic / bpSetSize);
+            avgDiastolic = Math.round((float) totalDiastolic / bpSetSize);
         }
     }
 
@@ -144,35 +142,34 @@ public class BloodPressureSummaryModel {
         return cal.getTime().getTime();
     }
 
-    private List<BloodPressureModel> buildBPSet(List<BloodPressureModel> bpList) {
-        List<BloodPressureModel> bpSet = new ArrayList<>();
+    /**
+     * @return the number of most recent readings used to calculate the average, or 0 if there aren't enough readings
+     */
+    private int getBPSetSize(BloodPressureSeries series) {
+        int count = 0;
         double score = 0.0;
-        for (BloodPressureModel bp : bpList) {
+        for (int i = 0; i < series.size(); i ++) {
             if (score >= 4.0) break;
-            bpSet.add(bp);
-            if (bp.getSource() == ObservationSource.HOME || bp.getSource() == ObservationSource.COACH_UI || bp.getSource() == ObservationSource.OMRON) {
-                score += 0.334;
-            } else {
-                score += 1.0;
-            }
+            count ++;
+            score += series.isHomeReading(i) ? 0.334 : 1.0;
         }
-        return score > 4.0 ? bpSet : null;
+        return score > 4.0 ? count : 0;
     }
 
     public boolean isMostRecentBPCrisis() {
-        return mostRecentSystolic >= 180 || mostRecentDiastolic >= 120;
+        return BloodPressureModel.isHigh(mostRecentSystolic, mostRecentDiastolic);
     }
 
     public boolean isMostRecentBPLowCrisis() {
-        return mostRecentSystolic < 90 || mostRecentDiastolic < 60;
+        return BloodPressureModel.isLow(mostRecentSystolic, mostRecentDiastolic);
     }
 
     public boolean isSecondMostRecentBPCrisis() {
-        return secondMostRecentSystolic >= 180 || secondMostRecentDiastolic >= 120;
+        return BloodPressureModel.isHigh(secondMostRecentSystolic, secondMostRecentDiastolic);
     }
 
     public boolean isSecondMostRecentBPLowCrisis() {
-        return secondMostRecentSystolic < 90 || secondMostRecentDiastolic < 60;
+        return BloodPressureModel.isLow(secondMostRecentSystolic, secondMostRecentDiastolic);
     }
 
     public boolean twoMostRecentWithin14Days() {
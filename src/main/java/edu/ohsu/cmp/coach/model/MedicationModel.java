@@ -6,6 +6,9 @@ import edu.ohsu.cmp.coach.util.FhirUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class MedicationModel {
 
     private MedicationStatement sourceMedicationStatement;
@@ -177,6 +180,29 @@ public class MedicationModel {
         return false;
     }
 
+    /**
+     * @return the Codings that identify this medication, i.e. those against which matches() tests
+     */
+    @JsonIgnore
+    public List<Coding> getCodings() {
+        List<Coding> list = new ArrayList<>();
+        list.add(new Coding(system, code, null));
+
+        if (sourceMedicationStatement != null) {
+            list.addAll(sourceMedicationStatement.getMedicationCodeableConcept().getCoding());
+
+        } else if (sourceMedicationRequest != null) {
+            if (sourceMedicationRequest.hasMedicationCodeableConcept()) {
+                list.addAll(sourceMedicationRequest.getMedicationCodeableConcept().getCoding());
+
+            } else if (sourceMedicationRequest.hasMedicationReference() && sourceMedicationRequestMedication != null) {
+                list.addAll(sourceMedicationRequestMedication.getCode().getCoding());
+            }
+        }
+
+        return list;
+    }
+
     public String getSourceId() {
         if (sourceMedicationStatement != null && sourceMedicationStatement.hasId()) {
             return sourceMedicationStatement.getId();
@@ -0,0 +1,69 @@
+package edu.ohsu.cmp.coach.model;
+
+import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * A vitals reading waiting to be written to the EHR: the outgoing Bundle built for it, and the strategy with which
+ * it's to be written.  Pending writebacks are persisted in the writeback outbox until they're written, so the
+ * reading itself isn't retained, only a description of it for logging and auditing.
+ */
+public class PendingWriteback {
+    public enum Type {
+        BP,
+        PULSE
+    }
+
+    private Long outboxId;
+    private final String idempotencyKey;
+    private final Type type;
+    private final FhirStrategy strategy;
+    private final Bundle bundle;
+    private final String description;
+
+    public PendingWriteback(String idempotencyKey, Type type, FhirStrategy strategy, Bundle bundle, String description) {
+        this.idempotencyKey = idempotencyKey;
+        this.type = type;
+        this.strategy = strategy;
+        this.bundle = bundle;
+        this.description = description;
+    }
+
+    public Long getOutboxId() {
+        return outboxId;
+    }
+
+    public void setOutboxId(Long outboxId) {
+        this.outboxId = outboxId;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public FhirStrategy getStrategy() {
+        return strategy;
+    }
+
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public String toString() {
+        return "PendingWriteback{" +
+                "outboxId=" + outboxId +
+                ", type=" + type +
+                ", strategy=" + strategy +
+                ", description='" + description + '\'' +
+                '}';
+    }
+}
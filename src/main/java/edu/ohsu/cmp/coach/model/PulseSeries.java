@@ -0,0 +1,38 @@
+package edu.ohsu.cmp.coach.model;
+
+import java.util.List;
+
+/**
+ * A columnar series of pulse readings, newest first.  See AbstractVitalsSeries.
+ */
+public class PulseSeries extends AbstractVitalsSeries<PulseModel> {
+    private final short[] pulse;
+
+    public PulseSeries(List<PulseModel> list) {
+        super(list);
+
+        pulse = new short[size()];
+        for (int i = 0; i < size(); i ++) {
+            pulse[i] = getReading(i).getPulse().getValue().shortValue();
+        }
+    }
+
+    private PulseSeries(PulseSeries other, int size) {
+        super(other, size);
+        this.pulse = other.pulse;
+    }
+
+    /**
+     * @return a series consisting of the newest count readings in this one.  no data is copied
+     */
+    public PulseSeries head(int count) {
+        return count >= size() ?
+                this :
+                new PulseSeries(this, count);
+    }
+
+    public int getPulse(int i) {
+        checkIndex(i);
+        return pulse[i];
+    }
+}
@@ -0,0 +1,120 @@
+package edu.ohsu.cmp.coach.model;
+
+import edu.ohsu.cmp.coach.entity.Summary;
+import edu.ohsu.cmp.coach.entity.SummaryActiveAntihtnMeds;
+import edu.ohsu.cmp.coach.entity.SummaryOngoingAdverseEvent;
+import edu.ohsu.cmp.coach.entity.SummaryRecommendation;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.*;
+
+/**
+ * A hash of a Summary's content, excluding its ID, patient and creation date.  Each section of the summary is hashed
+ * separately, so that changes can be traced to the inputs responsible for them.  Child rows are hashed in sorted
+ * order, as their order isn't meaningful.
+ */
+public class SummaryFingerprint {
+    public static final String SECTION_BP = "BP";
+    public static final String SECTION_RECOMMENDATIONS = "Recommendations";
+    public static final String SECTION_ADVERSE_EVENTS = "AdverseEvents";
+    public static final String SECTION_MEDICATIONS = "Medications";
+
+    private static final String DELIM = "|";
+
+    private final Map<String, String> sections = new LinkedHashMap<>();
+    private final String value;
+
+    public SummaryFingerprint(Summary summary) {
+        sections.put(SECTION_BP, hash(Arrays.asList(
+                summary.getBpGoal(),
+                summary.getCalculatedAverageBP(),
+                summary.getBpAtOrBelowGoal(),
+                summary.getMostRecentBP(),
+                toTime(summary.getMostRecentBPDate()),
+                summary.getMostRecentBPInCrisis(),
+                summary.getMostRecentBPInLowCrisis(),
+                summary.getSecondMostRecentBP(),
+                toTime(summary.getSecondMostRecentBPDate()),
+                summary.getTwoMostRecentBPsInCrisis(),
+                summary.getTwoMostRecentBPsInLowCrisis(),
+                summary.getNotes()
+        )));
+
+        List<String> recommendations = new ArrayList<>();
+        if (summary.getRecommendations() != null) {
+            for (SummaryRecommendation sr : summary.getRecommendations()) {
+                recommendations.add(join(sr.getRecommendation(), sr.getSeverity(), sr.getCard()));
+            }
+        }
+        sections.put(SECTION_RECOMMENDATIONS, hashSorted(recommendations));
+
+        List<String> adverseEvents = new ArrayList<>();
+        if (summary.getOngoingAdverseEvents() != null) {
+            for (SummaryOngoingAdverseEvent ae : summary.getOngoingAdverseEvents()) {
+                adverseEvents.add(join(ae.getDescription(), ae.getConceptSystem(), ae.getConceptCode()));
+            }
+        }
+        sections.put(SECTION_ADVERSE_EVENTS, hashSorted(adverseEvents));
+
+        List<String> medications = new ArrayList<>();
+        if (summary.getActiveAntihtnMeds() != null) {
+            for (SummaryActiveAntihtnMeds med : summary.getActiveAntihtnMeds()) {
+                medications.add(join(med.getDescription(), med.getConceptSystem(), med.getConceptCode()));
+            }
+        }
+        sections.put(SECTION_MEDICATIONS, hashSorted(medications));
+
+        value = hash(new ArrayList<>(sections.values()));
+    }
+
+    /**
+     * @return the fingerprint, as a 64-character hex string
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the names of the sections that differ between this fingerprint and other
+     */
+    public List<String> getChangedSections(SummaryFingerprint other) {
+        List<String> list = new ArrayList<>();
+        for (Map.Entry<String, String> entry : sections.entrySet()) {
+            if ( ! entry.getValue().equals(other.sections.get(entry.getKey())) ) {
+                list.add(entry.getKey());
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+
+    private static Long toTime(Date date) {
+        return date != null ? date.getTime() : null;
+    }
+
+    private static String join(Object ... values) {
+        return join(Arrays.asList(values));
+    }
+
+    private static String join(List<?> values) {
+        StringBuilder sb = new StringBuilder();
+        for (Object o : values) {
+            String s = String.valueOf(o);
+            sb.append(s.length()).append(':').append(s).append(DELIM);    // length-prefixed, so values can't run together
+        }
+        return sb.toString();
+    }
+
+    private static String hash(List<?> values) {
+        return DigestUtils.sha256Hex(join(values));
+    }
+
+    private static String hashSorted(List<String> values) {
+        Collections.sort(values);
+        return hash(values);
+    }
+}
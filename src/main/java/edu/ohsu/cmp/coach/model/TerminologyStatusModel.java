@@ -0,0 +1,75 @@
+package edu.ohsu.cmp.coach.model;
+
+import java.util.Date;
+
+/**
+ * The state of the anti-hypertensive medication ValueSets that medications are classified against
+ */
+public class TerminologyStatusModel {
+    private final boolean ready;
+    private final String source;
+    private final int valueSetCount;
+    private final int conceptCount;
+    private final Long indexAgeMillis;
+    private final Long snapshotAgeMillis;
+    private final boolean refreshing;
+    private final Date lastRefreshed;
+
+    public TerminologyStatusModel(boolean ready, String source, int valueSetCount, int conceptCount,
+                                  Long indexAgeMillis, Long snapshotAgeMillis, boolean refreshing, Date lastRefreshed) {
+        this.ready = ready;
+        this.source = source;
+        this.valueSetCount = valueSetCount;
+        this.conceptCount = conceptCount;
+        this.indexAgeMillis = indexAgeMillis;
+        this.snapshotAgeMillis = snapshotAgeMillis;
+        this.refreshing = refreshing;
+        this.lastRefreshed = lastRefreshed;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int getValueSetCount() {
+        return valueSetCount;
+    }
+
+    public int getConceptCount() {
+        return conceptCount;
+    }
+
+    public Long getIndexAgeMillis() {
+        return indexAgeMillis;
+    }
+
+    public Long getSnapshotAgeMillis() {
+        return snapshotAgeMillis;
+    }
+
+    public boolean isRefreshing() {
+        return refreshing;
+    }
+
+    public Date getLastRefreshed() {
+        return lastRefreshed;
+    }
+
+    @Override
+    public String toString() {
+        return "TerminologyStatusModel{" +
+                "ready=" + ready +
+                ", source='" + source + '\'' +
+                ", valueSetCount=" + valueSetCount +
+                ", conceptCount=" + conceptCount +
+                ", indexAgeMillis=" + indexAgeMillis +
+                ", snapshotAgeMillis=" + snapshotAgeMillis +
+                ", refreshing=" + refreshing +
+                ", lastRefreshed=" + lastRefreshed +
+                '}';
+    }
+}
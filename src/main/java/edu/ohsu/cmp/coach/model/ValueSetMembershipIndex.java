@@ -0,0 +1,99 @@
+package edu.ohsu.cmp.coach.model;
+
+import edu.ohsu.cmp.coach.entity.Concept;
+import edu.ohsu.cmp.coach.entity.ValueSet;
+import org.hl7.fhir.r4.model.Coding;
+import org.opencds.cqf.tooling.terminology.CodeSystemLookupDictionary;
+
+import java.util.*;
+
+/**
+ * An immutable index of the concepts in a group of ValueSets, mapping each concept's code system URL and code to the
+ * OIDs of the ValueSets that contain it, so that membership can be tested with a single hash lookup per Coding.
+ */
+public class ValueSetMembershipIndex {
+    private final Map<String, Set<String>> map;
+    private final Set<String> oids;
+    private final int conceptCount;
+    private final Date created;
+
+    public static ValueSetMembershipIndex empty() {
+        return new ValueSetMembershipIndex(Collections.emptyList());
+    }
+
+    public ValueSetMembershipIndex(Collection<ValueSet> valueSets) {
+        Map<String, Set<String>> map = new HashMap<>();
+        Set<String> oids = new LinkedHashSet<>();
+        int conceptCount = 0;
+
+        for (ValueSet valueSet : valueSets) {
+            oids.add(valueSet.getOid());
+            if (valueSet.getConcepts() == null) continue;
+
+            for (Concept c : valueSet.getConcepts()) {
+                String system = CodeSystemLookupDictionary.getUrlFromOid(c.getCodeSystem());
+                map.computeIfAbsent(toKey(system, c.getCode()), k -> new HashSet<>()).add(valueSet.getOid());
+                conceptCount++;
+            }
+        }
+
+        this.map = map;
+        this.oids = Collections.unmodifiableSet(oids);
+        this.conceptCount = conceptCount;
+        this.created = new Date();
+    }
+
+    /**
+     * @return the OIDs of the indexed ValueSets that contain the concept identified by system and code
+     */
+    public Set<String> getValueSetOIDs(String system, String code) {
+        Set<String> set = map.get(toKey(system, code));
+        return set != null ?
+                Collections.unmodifiableSet(set) :
+                Collections.emptySet();
+    }
+
+    /**
+     * @return true if any of codings is in any of the ValueSets identified by oids
+     */
+    public boolean isMember(List<Coding> codings, Collection<String> oids) {
+        for (Coding c : codings) {
+            Set<String> set = map.get(toKey(c.getSystem(), c.getCode()));
+            if (set != null) {
+                for (String oid : oids) {
+                    if (set.contains(oid)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the OIDs of the ValueSets that were indexed
+     */
+    public Set<String> getOIDs() {
+        return oids;
+    }
+
+    public int getConceptCount() {
+        return conceptCount;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    @Override
+    public String toString() {
+        return "ValueSetMembershipIndex{" +
+                "oids=" + oids +
+                ", conceptCount=" + conceptCount +
+                ", keyCount=" + map.size() +
+                ", created=" + created +
+                '}';
+    }
+
+    private static String toKey(String system, String code) {
+        return system + "|" + code;
+    }
+}
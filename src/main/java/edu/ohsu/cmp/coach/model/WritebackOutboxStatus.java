@@ -0,0 +1,6 @@
+package edu.ohsu.cmp.coach.model;
+
+public enum WritebackOutboxStatus {
+    PENDING,
+    FAILED
+}
@@ -0,0 +1,37 @@
+package edu.ohsu.cmp.coach.model;
+
+/**
+ * The state of a patient's entries in the writeback outbox
+ */
+public class WritebackStatusModel {
+    private final long pending;
+    private final long failed;
+    private final Long oldestPendingAgeMillis;
+
+    public WritebackStatusModel(long pending, long failed, Long oldestPendingAgeMillis) {
+        this.pending = pending;
+        this.failed = failed;
+        this.oldestPendingAgeMillis = oldestPendingAgeMillis;
+    }
+
+    public long getPending() {
+        return pending;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public Long getOldestPendingAgeMillis() {
+        return oldestPendingAgeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "WritebackStatusModel{" +
+                "pending=" + pending +
+                ", failed=" + failed +
+                ", oldestPendingAgeMillis=" + oldestPendingAgeMillis +
+                '}';
+    }
+}
@@ -1,8 +1,8 @@
 package edu.ohsu.cmp.coach.model.cqfruler;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentials;
+import edu.ohsu.cmp.coach.util.FhirUtil;
 import edu.ohsu.cmp.coach.util.UUIDUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -10,9 +10,8 @@ import org.hl7.fhir.r4.model.Bundle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.*;
 
 public class HookRequest {
@@ -23,20 +22,20 @@ public class HookRequest {
     private String bearerToken;
     private String userId;
     private String patientId;
-    private String prefetch;
+    private List<String> prefetchParts;
 //    private Map<String, IBaseResource> prefetch;
 
     private boolean prefetchModified = false;
 
     public HookRequest(FHIRCredentials credentials) {
-        this(credentials, (List<IBaseResource>) null);
+        this(credentials, (List<IBaseResource>) null, null);
     }
 
-    public HookRequest(FHIRCredentials credentials, IBaseResource resource) {
-        this(credentials, Collections.singletonList(resource));
+    public HookRequest(FHIRCredentials credentials, IBaseResource resource, PrefetchFragmentCache fragmentCache) {
+        this(credentials, Collections.singletonList(resource), fragmentCache);
     }
 
-    public HookRequest(FHIRCredentials credentials, List<IBaseResource> prefetchList) {
+    public HookRequest(FHIRCredentials credentials, List<IBaseResource> prefetchList, PrefetchFragmentCache fragmentCache) {
         this.hookInstanceUUID = UUIDUtil.getRandomUUID();
         this.fhirServerURL = credentials.getServerURL();
         this.bearerToken = credentials.getBearerToken();
@@ -47,10 +46,11 @@ public class HookRequest {
             // need to build prefetch as a serialized string here, as we're creating multiple items
             // with additional attributes, and mustache templates just aren't complex enough to build
             // this out.  womp womp
-            FhirContext ctx = FhirContext.forR4();
-            IParser jsonParser = ctx.newJsonParser().setPrettyPrint(false);
+            // the prefetch is kept as a list of fragments, many of which are shared with PrefetchFragmentCache, so
+            // that it can be streamed to CQF Ruler without ever being assembled into a single string
+            IParser jsonParser = FhirUtil.getFhirContext().newJsonParser().setPrettyPrint(false);
 
-            List<String> list = new ArrayList<>();
+            List<String> parts = new ArrayList<>();
             int itemNo = 1;
             for (IBaseResource item : prefetchList) {
                 if (item instanceof Bundle) {
@@ -60,19 +60,32 @@ public class HookRequest {
                     }
                 }
 
-                SanitizeResponse sr = sanitize(jsonParser.encodeResourceToString(item), StandardCharsets.US_ASCII);
-                this.prefetchModified = sr.isModified();
-
-                String s = "\"item" + itemNo + "\":{" +
+                parts.add((itemNo > 1 ? ",\n" : "") + "\"item" + itemNo + "\":{" +
                         "\"response\":{\"status\":\"200 OK\"}," +
-                        "\"resource\":" + sr.getJsonSanitized() + "}";
+                        "\"resource\":");
+
+                boolean modified;
+                if (item instanceof Bundle) {
+                    modified = fragmentCache.appendBundleFragments(fhirServerURL, (Bundle) item, jsonParser, parts);
 
-                list.add(s);
+                } else {
+                    PrefetchFragmentCache.Fragment fragment = fragmentCache.getFragment(fhirServerURL, item, jsonParser);
+                    modified = fragment.isModified();
+                    parts.add(fragment.getJson());
+                }
+
+                parts.add("}");
+
+                if (modified) {
+                    this.prefetchModified = true;
+                }
 
                 itemNo ++;
             }
 
-            this.prefetch = StringUtils.join(list, ",\n");
+            if (itemNo > 1) {
+                this.prefetchParts = parts;
+            }
         }
     }
 
@@ -96,48 +109,28 @@ public class HookRequest {
         return patientId;
     }
 
-    public String getPrefetch() {
-        return prefetch;
+    public boolean hasPrefetch() {
+        return prefetchParts != null;
     }
 
-    public boolean isPrefetchModified() {
-        return prefetchModified;
+    /**
+     * @return the prefetch, assembled into a single string.  use writePrefetch to avoid building this in memory
+     */
+    public String getPrefetch() {
+        return prefetchParts != null ?
+                StringUtils.join(prefetchParts, "") :
+                null;
     }
 
-
-//////////////////////////////////////////////////////////////////////////////////////
-// private methods
-//
-
-    private SanitizeResponse sanitize(String json, Charset charset) {
-        ByteBuffer buffer = charset.encode(json);
-        String jsonSanitized = charset.decode(buffer).toString();
-
-        boolean modified = ! StringUtils.equals(json, jsonSanitized);
-        if (modified) {
-            logger.warn("JSON contains non-" + charset.name() + " characters.  Offending characters have been replaced with sentinels.");
-            logger.debug("JSON = " + json);
-            logger.debug("JSON-" + charset.name() + " = " + jsonSanitized);
+    public void writePrefetch(Writer writer) throws IOException {
+        if (prefetchParts != null) {
+            for (String part : prefetchParts) {
+                writer.write(part);
+            }
         }
-
-        return new SanitizeResponse(jsonSanitized, modified);
     }
 
-    private static final class SanitizeResponse {
-        private String jsonSanitized;
-        private boolean modified;
-
-        public SanitizeResponse(String jsonSanitized, boolean modified) {
-            this.jsonSanitized = jsonSanitized;
-            this.modified = modified;
-        }
-
-        public String getJsonSanitized() {
-            return jsonSanitized;
-        }
-
-        public boolean isModified() {
-            return modified;
-        }
+    public boolean isPrefetchModified() {
+        return prefetchModified;
     }
 }
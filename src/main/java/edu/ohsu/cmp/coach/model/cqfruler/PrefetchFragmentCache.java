@@ -0,0 +1,248 @@
+package edu.ohsu.cmp.coach.model.cqfruler;
+
+import ca.uhn.fhir.parser.IParser;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.gson.Gson;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the sanitized JSON of individual prefetch resources, so that resources that haven't changed since the
+ * last hook request needn't be encoded and sanitized again.  Only resources with a version ID are cached, keyed by
+ * server, identity and version.  Other resources, including those COACH generates itself, can't be known to be
+ * unchanged without encoding them, and so are encoded and sanitized every time.
+ */
+public class PrefetchFragmentCache {
+    private static final Logger logger = LoggerFactory.getLogger(PrefetchFragmentCache.class);
+
+    private static final Charset CHARSET = StandardCharsets.US_ASCII;
+
+    static final class Fragment {
+        private final String json;
+        private final boolean modified;
+
+        private Fragment(String json, boolean modified) {
+            this.json = json;
+            this.modified = modified;
+        }
+
+        String getJson() {
+            return json;
+        }
+
+        /**
+         * @return true if the JSON contained characters that had to be replaced in order to be transmitted
+         */
+        boolean isModified() {
+            return modified;
+        }
+    }
+
+    private final Cache<String, Fragment> cache;
+    private final Gson gson = new Gson();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong uncached = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * @param maxWeight the maximum total length of the cached JSON
+     */
+    public PrefetchFragmentCache(long maxWeight, long expireAfterAccessMinutes) {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String key, Fragment value) -> key.length() + value.json.length())
+                .expireAfterAccess(expireAfterAccessMinutes, TimeUnit.MINUTES)
+                .build();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of resources encoded without being cached, as they weren't versioned
+     */
+    public long getUncached() {
+        return uncached.get();
+    }
+
+    /**
+     * @return the total length of the JSON fragments reused from this cache, rather than built anew
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public long getSize() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + getSize() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", uncached=" + getUncached() +
+                ", bytesSaved=" + getBytesSaved();
+    }
+
+    Fragment getFragment(String serverURL, IBaseResource resource, IParser jsonParser) {
+        String identityKey = buildIdentityKey(serverURL, resource);
+        if (identityKey != null) {
+            Fragment fragment = cache.getIfPresent(identityKey);
+            if (fragment == null) {
+                fragment = sanitize(jsonParser.encodeResourceToString(resource));
+                cache.put(identityKey, fragment);
+                misses.incrementAndGet();
+
+            } else {
+                recordHit(fragment);
+            }
+            return fragment;
+        }
+
+        uncached.incrementAndGet();
+        return sanitize(jsonParser.encodeResourceToString(resource));
+    }
+
+    /**
+     * appends the JSON for a Bundle to parts, as a sequence of fragments: the Bundle's own elements, then each entry's
+     * resource, with the entry's other elements around it.  fragments are appended as-is rather than concatenated, so
+     * cached fragments aren't copied.  the Bundle itself is never cached, as its makeup differs from one request to
+     * the next
+     * @return true if any of the JSON contained characters that had to be replaced in order to be transmitted
+     */
+    boolean appendBundleFragments(String serverURL, Bundle bundle, IParser jsonParser, List<String> parts) {
+        // everything but the entries.  elements are shared with bundle rather than copied, as they're only encoded
+        Bundle shell = new Bundle();
+        shell.setIdElement(bundle.getIdElement());
+        shell.setMeta(bundle.getMeta());
+        shell.setImplicitRulesElement(bundle.getImplicitRulesElement());
+        shell.setLanguageElement(bundle.getLanguageElement());
+        shell.setIdentifier(bundle.getIdentifier());
+        shell.setType(bundle.getType());
+        shell.setTimestampElement(bundle.getTimestampElement());
+        shell.setTotalElement(bundle.getTotalElement());
+        shell.setLink(bundle.getLink());
+        shell.setSignature(bundle.getSignature());
+
+        Fragment header = sanitize(jsonParser.encodeResourceToString(shell));
+        boolean modified = header.modified;
+
+        parts.add(header.json.substring(0, header.json.lastIndexOf('}')) + ",\"entry\":[");
+
+        boolean first = true;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if ( ! entry.hasResource() ) continue;
+
+            StringBuilder sb = new StringBuilder();
+            if (first) first = false;
+            else sb.append(",");
+
+            if (entry.hasLink() || entry.hasSearch() || entry.hasRequest() || entry.hasResponse()) {
+                Fragment elements = encodeEntryElements(entry, jsonParser);
+                modified |= elements.modified;
+                String json = elements.json.substring(0, elements.json.lastIndexOf('}'));
+                sb.append(json);
+                if ( ! json.equals("{") ) sb.append(",");
+
+            } else {
+                sb.append("{");
+                if (entry.hasFullUrl()) {
+                    Fragment fullUrl = sanitize(gson.toJson(entry.getFullUrl()));
+                    modified |= fullUrl.modified;
+                    sb.append("\"fullUrl\":").append(fullUrl.json).append(",");
+                }
+            }
+            sb.append("\"resource\":");
+            parts.add(sb.toString());
+
+            Fragment fragment = getFragment(serverURL, entry.getResource(), jsonParser);
+            modified |= fragment.modified;
+            parts.add(fragment.json);
+            parts.add("}");
+        }
+
+        parts.add("]}");
+
+        return modified;
+    }
+
+    public void logStats() {
+        logger.info("prefetch fragment cache: " + this);
+    }
+
+//////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void recordHit(Fragment fragment) {
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(fragment.json.length());
+    }
+
+    /**
+     * @return a key identifying the specified version of the resource on the specified server, or null if the
+     * resource isn't versioned
+     */
+    private String buildIdentityKey(String serverURL, IBaseResource resource) {
+        if (resource.getMeta() == null || StringUtils.isBlank(resource.getMeta().getVersionId())) return null;
+        if (resource.getIdElement() == null || ! resource.getIdElement().hasIdPart()) return null;
+
+        return serverURL + "|" +
+                resource.fhirType() + "/" + resource.getIdElement().getIdPart() + "|" +
+                resource.getMeta().getVersionId() + "|" +
+                (resource.getMeta().getLastUpdated() != null ? resource.getMeta().getLastUpdated().getTime() : "");
+    }
+
+    /**
+     * @return the JSON object for entry's elements other than its resource.  elements can only be encoded as part of
+     * a resource, so entry is encoded as the only entry of an otherwise empty Bundle, and extracted from it
+     */
+    private Fragment encodeEntryElements(Bundle.BundleEntryComponent entry, IParser jsonParser) {
+        Bundle.BundleEntryComponent elements = new Bundle.BundleEntryComponent();
+        elements.setLink(entry.getLink());
+        elements.setFullUrlElement(entry.getFullUrlElement());
+        elements.setSearch(entry.getSearch());
+        elements.setRequest(entry.getRequest());
+        elements.setResponse(entry.getResponse());
+
+        Bundle wrapper = new Bundle();
+        wrapper.addEntry(elements);
+
+        String json = jsonParser.encodeResourceToString(wrapper);
+        int from = json.indexOf('[', json.indexOf("\"entry\"")) + 1;
+        int to = json.lastIndexOf(']');
+        return sanitize(json.substring(from, to));
+    }
+
+    private Fragment sanitize(String json) {
+        ByteBuffer buffer = CHARSET.encode(json);
+        String jsonSanitized = CHARSET.decode(buffer).toString();
+
+        boolean modified = ! StringUtils.equals(json, jsonSanitized);
+        if (modified) {
+            logger.warn("JSON contains non-" + CHARSET.name() + " characters.  Offending characters have been replaced with sentinels.");
+            logger.debug("JSON = " + json);
+            logger.debug("JSON-" + CHARSET.name() + " = " + jsonSanitized);
+        }
+
+        return new Fragment(jsonSanitized, modified);
+    }
+}
@@ -1,6 +1,7 @@
 package edu.ohsu.cmp.coach.repository;
 
 import edu.ohsu.cmp.coach.entity.Summary;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
@@ -10,4 +11,7 @@ import java.util.List;
 public interface SummaryRepository extends JpaRepository<Summary, Long> {
     @Query("select s from Summary s where s.patId=:patId order by s.createdDate desc")
     List<Summary> findAllByPatId(@Param("patId") Long patId);
+
+    @Query("select s.fingerprint from Summary s where s.patId=:patId order by s.createdDate desc, s.id desc")
+    List<String> findFingerprintsByPatId(@Param("patId") Long patId, Pageable pageable);
 }
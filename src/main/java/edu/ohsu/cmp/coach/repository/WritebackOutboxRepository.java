@@ -0,0 +1,48 @@
+package edu.ohsu.cmp.coach.repository;
+
+import edu.ohsu.cmp.coach.entity.WritebackOutboxEntry;
+import edu.ohsu.cmp.coach.model.WritebackOutboxStatus;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+public interface WritebackOutboxRepository extends JpaRepository<WritebackOutboxEntry, Long> {
+    @Query("select distinct e.patId from WritebackOutboxEntry e where e.patId in :patIds and e.status=:status and e.nextAttemptDate<=:now")
+    List<Long> findPatIdsWithDueEntries(@Param("patIds") Collection<Long> patIds, @Param("status") WritebackOutboxStatus status,
+                                        @Param("now") Date now);
+
+    @Query("select e from WritebackOutboxEntry e where e.patId=:patId and e.status=:status and e.nextAttemptDate<=:now order by e.id")
+    List<WritebackOutboxEntry> findDueEntries(@Param("patId") Long patId, @Param("status") WritebackOutboxStatus status,
+                                              @Param("now") Date now, Pageable pageable);
+
+    @Query("select e.idempotencyKey from WritebackOutboxEntry e where e.idempotencyKey in :keys")
+    List<String> findExistingIdempotencyKeys(@Param("keys") Collection<String> keys);
+
+    @Query("select count(e) from WritebackOutboxEntry e where e.status=:status")
+    long countByStatus(@Param("status") WritebackOutboxStatus status);
+
+    @Query("select count(e) from WritebackOutboxEntry e where e.patId=:patId and e.status=:status")
+    long countByPatIdAndStatus(@Param("patId") Long patId, @Param("status") WritebackOutboxStatus status);
+
+    @Query("select min(e.createdDate) from WritebackOutboxEntry e where e.status=:status")
+    Date findOldestCreatedDate(@Param("status") WritebackOutboxStatus status);
+
+    @Query("select min(e.createdDate) from WritebackOutboxEntry e where e.patId=:patId and e.status=:status")
+    Date findOldestCreatedDateByPatId(@Param("patId") Long patId, @Param("status") WritebackOutboxStatus status);
+
+    /**
+     * makes all of a patient's entries, including FAILED ones, due for immediate dispatch
+     * @return the number of entries affected
+     */
+    @Modifying
+    @Transactional
+    @Query("update WritebackOutboxEntry e set e.status=:pending, e.attempts=0, e.nextAttemptDate=:now where e.patId=:patId")
+    int resetAllByPatId(@Param("patId") Long patId, @Param("pending") WritebackOutboxStatus pending, @Param("now") Date now);
+}
@@ -184,6 +184,9 @@ public class AdverseEventService extends AbstractService {
             aeo.setModifiedDate(new Date());
             outcomeRepository.save(aeo);
 
+            // outcomes aren't part of the summary's adverse-event section key, so drop what it was built from
+            userWorkspaceService.get(sessionId).getSummarySections().invalidateAll();
+
             auditService.doAudit(sessionId, AuditSeverity.INFO, "registered adverse-event outcome", "outcome=" + outcome +
                     ", adverseEventIdHash=" + adverseEventIdHash);
 
@@ -0,0 +1,251 @@
+package edu.ohsu.cmp.coach.service;
+
+import edu.ohsu.cmp.coach.entity.Audit;
+import edu.ohsu.cmp.coach.repository.AuditRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers audits and writes them in JDBC batches on a single background thread, so that auditing doesn't cost the
+ * caller a transaction and database round-trip.  A batch is written once batch-size audits are waiting, or every
+ * flush-interval-ms, whichever comes first.  Audits are written in the order they were submitted.
+ * <p>
+ * The buffer is bounded.  If it's full, the overflow policy determines whether the audit is written immediately on
+ * the caller's thread (WRITE_THROUGH, the default) or dropped (DROP).  Audits still buffered at shutdown are written
+ * before the application exits.
+ */
+@Component
+public class AuditPipeline {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String INSERT_SQL = "insert into audit_data (patId, severity, event, details, created) " +
+            "values (?, ?, ?, ?, ?)";
+
+    public enum OverflowPolicy {
+        WRITE_THROUGH,
+        DROP
+    }
+
+    @Autowired
+    private AuditRepository repository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private final int capacity;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final long shutdownDrainTimeoutMillis;
+
+    private final Queue<Audit> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private final ScheduledExecutorService writer;
+
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong writtenThrough = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    public AuditPipeline(@Value("${audit.buffer-capacity:10000}") int capacity,
+                         @Value("${audit.batch-size:100}") int batchSize,
+                         @Value("${audit.flush-interval-ms:1000}") long flushIntervalMillis,
+                         @Value("${audit.overflow-policy:WRITE_THROUGH}") OverflowPolicy overflowPolicy,
+                         @Value("${audit.shutdown-drain-timeout-ms:10000}") long shutdownDrainTimeoutMillis) {
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.shutdownDrainTimeoutMillis = shutdownDrainTimeoutMillis;
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "audit-writer-" + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(this::flushAll, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        writer.shutdown();
+        try {
+            if ( ! writer.awaitTermination(shutdownDrainTimeoutMillis, TimeUnit.MILLISECONDS) ) {
+                logger.warn("audit writer did not stop within " + shutdownDrainTimeoutMillis + "ms");
+                writer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            writer.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        // the writer has stopped, so whatever remains is written here
+        logger.info("draining " + depth.get() + " buffered audit(s)");
+        flushAll();
+        logStats();
+    }
+
+    public void submit(Audit audit) {
+        submitted.incrementAndGet();
+
+        if (writer.isShutdown()) {
+            writeThrough(audit);
+            return;
+        }
+
+        int d = depth.incrementAndGet();
+        if (d > capacity) {
+            depth.decrementAndGet();
+            if (overflowPolicy == OverflowPolicy.DROP) {
+                long n = dropped.incrementAndGet();
+                if (n == 1 || n % 1000 == 0) {
+                    logger.warn("audit buffer full (capacity=" + capacity + ") - dropped " + n + " audit(s) so far, " +
+                            "including " + audit);
+                }
+
+            } else {
+                writeThrough(audit);
+            }
+            return;
+        }
+
+        queue.add(audit);
+        maxDepth.accumulateAndGet(d, Math::max);
+
+        if (d >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                writer.execute(() -> {
+                    flushRequested.set(false);
+                    flushAll();
+                });
+
+            } catch (Exception e) {
+                // rejected because the writer is shutting down; the audit will be drained by destroy()
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    public int getDepth() {
+        return depth.get();
+    }
+
+    @Override
+    public String toString() {
+        long flushes = flushCount.get();
+        return "depth=" + depth.get() +
+                ", maxDepth=" + maxDepth.get() +
+                ", capacity=" + capacity +
+                ", submitted=" + submitted.get() +
+                ", written=" + written.get() +
+                ", writtenThrough=" + writtenThrough.get() +
+                ", dropped=" + dropped.get() +
+                ", failed=" + failed.get() +
+                ", flushes=" + flushes +
+                ", avgFlushMs=" + (flushes > 0 ? (flushNanos.get() / flushes) / 1_000_000 : 0) +
+                ", maxFlushMs=" + (maxFlushNanos.get() / 1_000_000);
+    }
+
+    @Scheduled(fixedDelayString = "${audit.stats-log-interval-ms:900000}",
+            initialDelayString = "${audit.stats-log-interval-ms:900000}")
+    public void logStats() {
+        logger.info("audit pipeline: " + this);
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * writes batches until the buffer is empty.  only ever called on the writer thread, or after it has stopped
+     */
+    private void flushAll() {
+        List<Audit> batch = new ArrayList<>(batchSize);
+        Audit audit;
+        while ((audit = queue.poll()) != null) {
+            depth.decrementAndGet();
+            batch.add(audit);
+            if (batch.size() >= batchSize) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+        if ( ! batch.isEmpty() ) {
+            flush(batch);
+        }
+    }
+
+    private void flush(List<Audit> batch) {
+        List<Object[]> rows = new ArrayList<>(batch.size());
+        for (Audit audit : batch) {
+            rows.add(new Object[] {
+                    audit.getPatId(),
+                    audit.getSeverity() != null ? audit.getSeverity().name() : null,
+                    audit.getEvent(),
+                    audit.getDetails(),
+                    audit.getCreated() != null ? new Timestamp(audit.getCreated().getTime()) : null
+            });
+        }
+
+        long start = System.nanoTime();
+        try {
+            jdbcTemplate.batchUpdate(INSERT_SQL, rows);
+            written.addAndGet(batch.size());
+
+            if (logger.isDebugEnabled()) {
+                for (Audit audit : batch) {
+                    logger.debug("generated " + audit);
+                }
+            }
+
+        } catch (Exception e) {
+            failed.addAndGet(batch.size());
+            logger.error("caught " + e.getClass().getName() + " attempting to write batch of " + batch.size() +
+                    " audit(s) - " + e.getMessage(), e);
+            for (Audit audit : batch) {
+                logger.error("failed to create " + audit);
+            }
+
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            flushCount.incrementAndGet();
+            flushNanos.addAndGet(elapsed);
+            maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    private void writeThrough(Audit audit) {
+        try {
+            repository.save(audit);
+            writtenThrough.incrementAndGet();
+            logger.debug("generated " + audit);
+
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.error("caught " + e.getClass().getName() + " attempting to create " + audit + " - " + e.getMessage(), e);
+        }
+    }
+}
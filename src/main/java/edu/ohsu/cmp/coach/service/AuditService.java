@@ -3,7 +3,7 @@ package edu.ohsu.cmp.coach.service;
 import edu.ohsu.cmp.coach.entity.Audit;
 import edu.ohsu.cmp.coach.entity.MyPatient;
 import edu.ohsu.cmp.coach.model.AuditSeverity;
-import edu.ohsu.cmp.coach.repository.AuditRepository;
+import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import edu.ohsu.cmp.coach.workspace.UserWorkspaceService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,12 +18,12 @@ public class AuditService {
     private UserWorkspaceService userWorkspaceService;
 
     @Autowired
-    private AuditRepository repository;
+    private AuditPipeline pipeline;
 
     public void doAudit(String sessionId, AuditSeverity severity, String action) {
-        if (userWorkspaceService.exists(sessionId)) {
-            Long patId = userWorkspaceService.get(sessionId).getInternalPatientId();
-            doAudit(new Audit(patId, severity, action));
+        UserWorkspace workspace = userWorkspaceService.getIfPresent(sessionId);
+        if (workspace != null) {
+            doAudit(new Audit(workspace.getInternalPatientId(), severity, action));
 
         } else {
             logger.warn("attempted to generate audit for nonexistent session " + sessionId + ": severity=" + severity +
@@ -32,9 +32,9 @@ public class AuditService {
     }
 
     public void doAudit(String sessionId, AuditSeverity severity, String action, String details) {
-        if (userWorkspaceService.exists(sessionId)) {
-            Long patId = userWorkspaceService.get(sessionId).getInternalPatientId();
-            doAudit(new Audit(patId, severity, action, details));
+        UserWorkspace workspace = userWorkspaceService.getIfPresent(sessionId);
+        if (workspace != null) {
+            doAudit(new Audit(workspace.getInternalPatientId(), severity, action, details));
 
         } else {
             logger.warn("attempted to generate audit for nonexistent session " + sessionId + ": severity=" + severity +
@@ -51,18 +51,10 @@ public class AuditService {
     }
 
 
+    /**
+     * audits are written asynchronously, in batches; see AuditPipeline
+     */
     private void doAudit(Audit audit) {
-        try {
-            if (logger.isDebugEnabled()) {
-                Audit generatedAudit = repository.save(audit);
-                logger.debug("generated " + generatedAudit);
-
-            } else {
-                repository.save(audit);
-            }
-
-        } catch (Exception e) {
-            logger.error("caught " + e.getClass().getName() + " attempting to create " + audit + " - " + e.getMessage(), e);
-        }
+        pipeline.submit(audit);
     }
 }
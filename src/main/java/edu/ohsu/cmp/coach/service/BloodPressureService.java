@@ -4,53 +4,68 @@ import edu.ohsu.cmp.coach.entity.HomeBloodPressureReading;
 import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.exception.ScopeException;
-import edu.ohsu.cmp.coach.fhir.CompositeBundle;
-import edu.ohsu.cmp.coach.fhir.FhirStrategy;
-import edu.ohsu.cmp.coach.fhir.transform.VendorTransformer;
+import edu.ohsu.cmp.coach.fhir.FhirSearchStats;
+import edu.ohsu.cmp.coach.fhir.transform.IncomingResourceTransform;
 import edu.ohsu.cmp.coach.model.AuditSeverity;
 import edu.ohsu.cmp.coach.model.BloodPressureModel;
+import edu.ohsu.cmp.coach.model.BloodPressureSeries;
+import edu.ohsu.cmp.coach.model.PendingWriteback;
+import edu.ohsu.cmp.coach.model.ResourceWithBundle;
 import edu.ohsu.cmp.coach.util.FhirUtil;
+import edu.ohsu.cmp.coach.workspace.BloodPressureTimeline;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Coding;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 @Service
 public class BloodPressureService extends AbstractService {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    @Value("${fhir.bp-writeback-strategy}")
-    private FhirStrategy writebackStrategy;
-
     @Autowired
     private EHRService ehrService;
 
     @Autowired
     private HomeBloodPressureReadingService hbprService;
 
+    @Autowired
+    private VitalsWritebackService vitalsWritebackService;
+
+    @Autowired
+    private WritebackOutbox writebackOutbox;
+
     public List<BloodPressureModel> buildRemoteBloodPressureList(String sessionId) throws DataException, ConfigurationException, IOException {
-        CompositeBundle compositeBundle = new CompositeBundle();
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        IncomingResourceTransform<BloodPressureModel> transform = workspace.getVendorTransformer().newIncomingBloodPressureReadingsTransform();
 
         List<Coding> codings = new ArrayList<>();
         codings.addAll(fcm.getBpPanelCodings());
         codings.addAll(fcm.getBpSystolicCodings());
         codings.addAll(fcm.getBpDiastolicCodings());
 
-        compositeBundle.consume(ehrService.getObservations(sessionId, FhirUtil.toCodeParamString(codings), fcm.getBpLookbackPeriod(), null));
-        compositeBundle.consume(userWorkspaceService.get(sessionId).getProtocolObservations());
+        FhirSearchStats stats = ehrService.streamObservations(sessionId, FhirUtil.toCodeParamString(codings), fcm.getBpLookbackPeriod(), transform);
+        logger.debug("streamed BP Observations for session=" + sessionId + ": " + stats);
 
-        UserWorkspace workspace = userWorkspaceService.get(sessionId);
-        return workspace.getVendorTransformer().transformIncomingBloodPressureReadings(compositeBundle.getBundle());
+        Bundle protocolObservations = workspace.getProtocolObservations();
+        if (protocolObservations != null && protocolObservations.hasEntry()) {
+            for (Bundle.BundleEntryComponent entry : protocolObservations.getEntry()) {
+                if (entry.hasResource()) {
+                    transform.accept(new ResourceWithBundle(entry.getResource(), protocolObservations));
+                }
+            }
+        }
+
+        return transform.getResult();
     }
 
     public List<BloodPressureModel> getHomeBloodPressureReadings(String sessionId) throws DataException {
@@ -77,84 +92,55 @@ public class BloodPressureService extends AbstractService {
     }
 
     public List<BloodPressureModel> getBloodPressureReadings(String sessionId, boolean doLimit) throws DataException {
-        UserWorkspace workspace = userWorkspaceService.get(sessionId);
-
-        // add remote BPs first
-        List<BloodPressureModel> remoteList = workspace.getRemoteBloodPressures();
-        Set<String> remoteBPKeySet = new HashSet<>();
-        for (BloodPressureModel bpm : remoteList) {
-            String key = bpm.getLogicalEqualityKey();
-            logger.debug("found remote BP with key: " + key);
-            remoteBPKeySet.add(key);
-        }
-
-        // now add any locally-stored BPs that do *not* logically match a BP already retrieved remotely
-        List<BloodPressureModel> list = new ArrayList<>();
-        list.addAll(remoteList);
-
-        for (BloodPressureModel bpm : buildLocalBloodPressureReadings(sessionId)) {
-            String key = bpm.getLogicalEqualityKey();
-            if (remoteBPKeySet.contains(key)) {
-                logger.debug("NOT ADDING local BP matching remote BP with key: " + key);
-
-            } else {
-                logger.debug("adding local BP with key: " + key);
-                list.add(bpm);
-            }
-        }
-
-        list.sort((o1, o2) -> o1.getReadingDate().compareTo(o2.getReadingDate()) * -1); // sort newest first
+        BloodPressureTimeline timeline = userWorkspaceService.get(sessionId).getBloodPressureTimeline();
 
         if (doLimit) {
             Integer limit = fcm.getBpLimit();
-            if (limit != null && list.size() > limit) {
-                list = list.subList(0, limit);
+            if (limit != null) {
+                return timeline.getLatest(limit);
             }
         }
 
-        return list;
+        return timeline.getAll();
     }
 
-    public BloodPressureModel create(String sessionId, BloodPressureModel bpm) throws DataException, ConfigurationException, IOException, ScopeException {
-        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+    /**
+     * @return the same readings as getBloodPressureReadings(sessionId), as a columnar series
+     */
+    public BloodPressureSeries getBloodPressureSeries(String sessionId) throws DataException {
+        BloodPressureSeries series = userWorkspaceService.get(sessionId).getBloodPressureTimeline().getSeries();
 
-        BloodPressureModel bpm2 = null;
-
-        if (writebackStrategy != FhirStrategy.DISABLED) {
-            logger.info("attempting writeback of BP " + bpm + " using strategy " + writebackStrategy);
-            try {
-                VendorTransformer transformer = workspace.getVendorTransformer();
-                Bundle outgoingBundle = transformer.transformOutgoingBloodPressureReading(bpm);
-                List<BloodPressureModel> list = transformer.transformIncomingBloodPressureReadings(
-                        transformer.writeRemote(sessionId, writebackStrategy, fhirService, outgoingBundle)
-                );
-                if (list.size() >= 1) {
-                    bpm2 = list.get(0);
-                    workspace.getRemoteBloodPressures().add(bpm2);
-                }
+        Integer limit = fcm.getBpLimit();
+        return limit != null ?
+                series.head(limit) :
+                series;
+    }
 
-                auditService.doAudit(sessionId, AuditSeverity.INFO, "wrote BP remotely", bpm.getSystolic() + "/" +
-                        bpm.getDiastolic() + " at " + bpm.getReadingDateString());
+    /**
+     * builds the merged, sorted timeline of remote and local readings.  local readings that logically match a
+     * remote reading are excluded
+     */
+    public BloodPressureTimeline buildBloodPressureTimeline(String sessionId) throws DataException {
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        return new BloodPressureTimeline(workspace.getRemoteBloodPressures(), buildLocalBloodPressureReadings(sessionId));
+    }
 
-            } catch (Exception e) {
-                // remote errors are tolerable, since we will always store locally too
-                logger.warn("caught " + e.getClass().getSimpleName() + " attempting to create BP remotely - " +
-                        "BP=" + bpm.getSystolic() + "/" + bpm.getDiastolic() + " at " + bpm.getReadingDateString() +
-                        ", message=" + e.getMessage(), e);
+    /**
+     * stores bpm locally, and queues it to be written to the EHR if writeback is enabled.  the remote write happens
+     * in the background; see WritebackOutbox.  the local reading and its outbox entry are stored in one transaction
+     * @return the reading as stored locally, or null if it couldn't be
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public BloodPressureModel create(String sessionId, BloodPressureModel bpm) throws DataException, ConfigurationException, IOException, ScopeException {
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
 
-                auditService.doAudit(sessionId, AuditSeverity.WARN, "failed to write BP remotely", "BP=" +
-                        bpm.getSystolic() + "/" + bpm.getDiastolic() + " at " + bpm.getReadingDateString() +
-                                ", message=" + e.getMessage());
-            }
-        }
+        BloodPressureModel localModel = null;
 
         try {
             HomeBloodPressureReading hbpr = new HomeBloodPressureReading(bpm);
             HomeBloodPressureReading response = hbprService.create(sessionId, hbpr);
 
-            if (bpm2 == null) { // give priority to the remotely created resource, if it exists
-                bpm2 = new BloodPressureModel(response, fcm);
-            }
+            localModel = new BloodPressureModel(response, fcm);
 
             auditService.doAudit(sessionId, AuditSeverity.INFO, "created BP", "id=" + response.getId() +
                     ", BP=" + bpm.getSystolic() + "/" + bpm.getDiastolic() + " at " + bpm.getReadingDateString());
@@ -168,14 +154,63 @@ public class BloodPressureService extends AbstractService {
                             ", message=" + de.getMessage());
         }
 
-        return bpm2;
+        PendingWriteback pending = writebackOutbox.enqueue(sessionId, bpm);
+        if (pending != null && localModel != null) {
+            vitalsWritebackService.shareResources(pending, localModel);
+        }
+
+        // only once the reading has been committed, so that the timeline never shows a reading that wasn't stored
+        final BloodPressureModel committedModel = localModel;
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    updateTimeline(workspace, committedModel);
+                }
+            });
+
+        } else {
+            updateTimeline(workspace, committedModel);
+        }
+
+        return localModel;
     }
 
+    /**
+     * stores many readings locally at once, in a single batch, e.g. when ingesting Omron readings.  readings aren't
+     * queued for writeback; see WritebackOutbox.  the workspace's caches aren't updated, and should be cleared
+     * afterward
+     */
+    public void createAllLocal(String sessionId, List<BloodPressureModel> list) throws DataException {
+        List<HomeBloodPressureReading> hbprList = new ArrayList<>();
+        for (BloodPressureModel bpm : list) {
+            hbprList.add(new HomeBloodPressureReading(bpm));
+        }
+
+        hbprService.createAll(sessionId, hbprList);
+
+        auditService.doAudit(sessionId, AuditSeverity.INFO, "created BPs", "count=" + hbprList.size());
+    }
 
 ///////////////////////////////////////////////////////////////////////////////////////
 // private methods
 //
 
+    /**
+     * adds a newly created reading to the timeline in place, rather than rebuilding it.  if the timeline hasn't been
+     * built yet, it's invalidated instead, in case a build that predates this reading is in progress.  readings
+     * written remotely are added once the write completes; see UserWorkspace.addRemoteBloodPressures()
+     */
+    private void updateTimeline(UserWorkspace workspace, BloodPressureModel localModel) {
+        BloodPressureTimeline timeline = workspace.getBloodPressureTimelineIfPresent();
+        if (timeline != null) {
+            if (localModel != null) timeline.addLocal(localModel);
+
+        } else {
+            workspace.clearBloodPressureTimeline();
+        }
+    }
+
     private List<BloodPressureModel> buildLocalBloodPressureReadings(String sessionId) throws DataException {
         List<BloodPressureModel> list = new ArrayList<>();
 
@@ -5,6 +5,10 @@ import edu.ohsu.cmp.coach.repository.ConceptRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 @Service
 public class ConceptService extends AbstractService {
     @Autowired
@@ -14,4 +18,17 @@ public class ConceptService extends AbstractService {
         Concept concept = repository.findConcept(code, codeSystem, codeSystemVersion);
         return concept;
     }
+
+    /**
+     * @return all stored concepts from any of codeSystems, keyed by Concept.getKey()
+     */
+    public Map<String, Concept> getConceptsByCodeSystems(Collection<String> codeSystems) {
+        Map<String, Concept> map = new HashMap<>();
+        if (codeSystems.isEmpty()) return map;
+
+        for (Concept c : repository.findAllByCodeSystems(codeSystems)) {
+            map.put(c.getKey(), c);
+        }
+        return map;
+    }
 }
@@ -4,7 +4,10 @@ import edu.ohsu.cmp.coach.entity.MedicationForm;
 import edu.ohsu.cmp.coach.entity.MedicationRoute;
 import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.CodingClassifier;
 import edu.ohsu.cmp.coach.fhir.EncounterMatcher;
+import edu.ohsu.cmp.coach.fhir.FhirSearchStats;
+import edu.ohsu.cmp.coach.fhir.ResourceConsumer;
 import edu.ohsu.cmp.coach.model.GoalModel;
 import edu.ohsu.cmp.coach.model.ResourceWithBundle;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
@@ -66,6 +69,7 @@ public class EHRService extends AbstractService {
         logger.info("getting Encounters for session=" + sessionId);
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
+        EncounterMatcher matcher = new EncounterMatcher(fcm, true);
         Bundle bundle = fhirService.search(fcc, workspace.getFhirQueryManager().getEncounterStrategy(),
                 workspace.getVendorTransformer().getEncounterQuery(fcc.getCredentials().getPatientId(), fcm.getEncounterLookbackPeriod()),
                 new Function<ResourceWithBundle, Boolean>() {
@@ -82,9 +86,9 @@ public class EHRService extends AbstractService {
                                 return false;
                             }
 
-                            EncounterMatcher matcher = new EncounterMatcher(fcm, true);
-                            boolean isOffice = matcher.isOfficeEncounter(encounter);
-                            boolean isHome = matcher.isHomeEncounter(encounter);
+                            int classification = matcher.classify(encounter);
+                            boolean isOffice = CodingClassifier.is(classification, CodingClassifier.OFFICE);
+                            boolean isHome = CodingClassifier.is(classification, CodingClassifier.HOME);
                             if ( ! isOffice && ! isHome ) {
                                 logger.debug("removing Encounter " + encounter.getId() + " - not Office or Home");
                                 return false;
@@ -134,29 +138,20 @@ public class EHRService extends AbstractService {
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
         return fhirService.search(fcc, workspace.getFhirQueryManager().getObservationStrategy(),
                 workspace.getVendorTransformer().getObservationQuery(fcc.getCredentials().getPatientId(), code, lookbackPeriod),
-                new Function<ResourceWithBundle, Boolean>() {
-                    @Override
-                    public Boolean apply(ResourceWithBundle resourceWithBundle) {
-                        Resource resource = resourceWithBundle.getResource();
-                        if (resource instanceof Observation) {
-                            Observation observation = (Observation) resource;
-                            if (observation.getStatus() != Observation.ObservationStatus.FINAL &&
-                                    observation.getStatus() != Observation.ObservationStatus.AMENDED &&
-                                    observation.getStatus() != Observation.ObservationStatus.CORRECTED) {
-                                logger.debug("removing Observation " + observation.getId() + " - invalid status");
-                                return false;
-                            }
-
-// storer 2022-08-15 - can now handle observations that don't have associated encounters, as janky as that might be
-//                            if (!observation.hasEncounter()) {
-//                                logger.debug("removing Observation " + observation.getId() + " - no Encounter referenced");
-//                                return false;
-//                            }
-                        }
+                buildObservationValidityFunction());
+    }
 
-                        return true;
-                    }
-        });
+    /**
+     * streaming version of getObservations.  valid Observations are passed to consumer as each page arrives
+     */
+    public FhirSearchStats streamObservations(String sessionId, String code, String lookbackPeriod,
+                                              ResourceConsumer consumer) throws DataException, ConfigurationException, IOException {
+        logger.info("streaming Observations for session=" + sessionId + " having code(s): " + code);
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
+        return fhirService.search(fcc, workspace.getFhirQueryManager().getObservationStrategy(),
+                workspace.getVendorTransformer().getObservationQuery(fcc.getCredentials().getPatientId(), code, lookbackPeriod),
+                buildObservationValidityFunction(), consumer);
     }
 
     public Bundle getEncounterDiagnosisConditions(String sessionId) throws DataException, ConfigurationException, IOException {
@@ -289,64 +284,9 @@ public class EHRService extends AbstractService {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
 
-        final List<Coding> validRouteCodings = getValidMedicationRouteCodings();
-        final List<Coding> validFormCodings = getValidMedicationFormCodings();
-
         Bundle bundle = fhirService.search(fcc, workspace.getFhirQueryManager().getMedicationStatementStrategy(),
                 workspace.getVendorTransformer().getMedicationStatementQuery(fcc.getCredentials().getPatientId()),
-                new Function<ResourceWithBundle, Boolean>() {
-                    @Override
-                    public Boolean apply(ResourceWithBundle resourceWithBundle) {
-                        Resource resource = resourceWithBundle.getResource();
-                        if (resource instanceof MedicationStatement) {
-                            MedicationStatement ms = (MedicationStatement) resource;
-                            if (ms.getStatus() != MedicationStatement.MedicationStatementStatus.ACTIVE) {
-                                logger.debug("removing MedicationStatement " + ms.getId() + " - invalid status");
-                                return false;
-                            }
-
-                            boolean hasGoodRoute = false;
-                            boolean hasGoodForm = false;
-
-                            if (ms.hasDosage()) {
-                                for (Dosage d : ms.getDosage()) {
-                                    if (d.hasRoute() && FhirUtil.hasCoding(d.getRoute(), validRouteCodings)) {
-                                        hasGoodRoute = true;
-                                        break;
-                                    }
-                                }
-                            }
-
-                            if ( ! hasGoodRoute && ms.hasMedicationReference()) {
-                                logger.debug("invalid or missing route for MedicationStatement " + ms.getId() + " - checking medication form");
-                                Bundle bundle = resourceWithBundle.getBundle();
-
-                                Medication m = null;
-                                try {
-                                    m = FhirUtil.getResourceFromContainedOrBundleByReference(ms, bundle, Medication.class, ms.getMedicationReference());
-                                    if (m == null) {
-                                        m = fhirService.readByReference(fcc, workspace.getFhirQueryManager().getMedicationStrategy(),
-                                                Medication.class, ms.getMedicationReference());
-                                    }
-
-                                } catch (Exception e) {
-                                    logger.error("caught " + e.getClass().getName() + " attempting to obtain Medication for MedicationStatement " +
-                                            ms.getId() + " - " + e.getMessage(), e);
-                                }
-
-                                if (m != null && m.hasForm() && FhirUtil.hasCoding(m.getForm(), validFormCodings)) {
-                                    hasGoodForm = true;
-                                }
-                            }
-
-                            if ( ! hasGoodRoute && ! hasGoodForm ) {
-                                logger.debug("removing MedicationStatement " + ms.getId() + " - invalid route and form");
-                                return false;
-                            }
-                        }
-                        return true;
-                    }
-                }
+                buildMedicationStatementValidityFunction(workspace, fcc)
         );
 
         if (bundle == null) return null;    // optional considering MedicationRequest
@@ -391,77 +331,9 @@ public class EHRService extends AbstractService {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
 
-        final List<Coding> validRouteCodings = getValidMedicationRouteCodings();
-        final List<Coding> validFormCodings = getValidMedicationFormCodings();
-
         Bundle bundle = fhirService.search(fcc, workspace.getFhirQueryManager().getMedicationRequestStrategy(),
                 workspace.getVendorTransformer().getMedicationRequestQuery(fcc.getCredentials().getPatientId()),
-                new Function<ResourceWithBundle, Boolean>() {
-                    @Override
-                    public Boolean apply(ResourceWithBundle resourceWithBundle) {
-                        Resource resource = resourceWithBundle.getResource();
-                        if (resource instanceof MedicationRequest) {
-                            MedicationRequest mr = (MedicationRequest) resource;
-
-                            if (mr.getStatus() != MedicationRequest.MedicationRequestStatus.ACTIVE) {
-                                logger.debug("removing MedicationRequest " + mr.getId() + " - invalid status");
-                                return false;
-                            }
-
-                            if (mr.getIntent() != MedicationRequest.MedicationRequestIntent.ORDER &&
-                                    mr.getIntent() != MedicationRequest.MedicationRequestIntent.PLAN) {
-                                logger.debug("removing MedicationRequest " + mr.getId() + " - invalid intent");
-                                return false;
-                            }
-
-                            if (mr.hasDoNotPerform() && mr.getDoNotPerform()) {
-                                logger.debug("removing MedicationRequest " + mr.getId() + " - doNotPerform");
-                                return false;
-                            }
-
-                            boolean hasGoodRoute = false;
-                            boolean hasGoodForm = false;
-
-                            if (mr.hasDosageInstruction()) {
-                                for (Dosage d : mr.getDosageInstruction()) {
-                                    if (d.hasRoute() && FhirUtil.hasCoding(d.getRoute(), validRouteCodings)) {
-                                        hasGoodRoute = true;
-                                        break;
-                                    }
-                                }
-                            }
-
-                            if ( ! hasGoodRoute && mr.hasMedicationReference() ) {
-                                logger.debug("invalid or missing route for MedicationRequest " + mr.getId() + " - checking medication form");
-                                Bundle bundle = resourceWithBundle.getBundle();
-
-                                Medication m = null;
-                                try {
-                                    m = FhirUtil.getResourceFromContainedOrBundleByReference(mr, bundle, Medication.class, mr.getMedicationReference());
-                                    if (m == null) {
-                                        m = fhirService.readByReference(fcc, workspace.getFhirQueryManager().getMedicationStrategy(),
-                                                Medication.class, mr.getMedicationReference());
-                                    }
-
-                                } catch (Exception e) {
-                                    logger.error("caught " + e.getClass().getName() + " attempting to obtain Medication for MedicationRequest " +
-                                            mr.getId() + " - " + e.getMessage(), e);
-                                }
-
-                                if (m != null && m.hasForm() && FhirUtil.hasCoding(m.getForm(), validFormCodings)) {
-                                    hasGoodForm = true;
-                                }
-                            }
-
-                            if ( ! hasGoodRoute && ! hasGoodForm ) {
-                                logger.debug("removing MedicationRequest " + mr.getId() + " - invalid route and form");
-                                return false;
-                            }
-                        }
-
-                        return true;
-                    }
-                }
+                buildMedicationRequestValidityFunction(workspace, fcc)
         );
 
         if (bundle == null) return null;    // optional considering MedicationStatement
@@ -501,6 +373,38 @@ public class EHRService extends AbstractService {
         return bundle;
     }
 
+    /**
+     * streaming version of getMedicationStatements.  valid MedicationStatements are passed to consumer as each page
+     * arrives.  if a referenced Medication isn't contained or on the same page, it is retrieved and passed along
+     * in its own Bundle
+     */
+    public FhirSearchStats streamMedicationStatements(String sessionId, ResourceConsumer consumer) throws DataException, ConfigurationException, IOException {
+        logger.info("streaming MedicationStatements for session=" + sessionId);
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
+        return fhirService.search(fcc, workspace.getFhirQueryManager().getMedicationStatementStrategy(),
+                workspace.getVendorTransformer().getMedicationStatementQuery(fcc.getCredentials().getPatientId()),
+                buildMedicationStatementValidityFunction(workspace, fcc),
+                withReferencedMedication(workspace, fcc, consumer)
+        );
+    }
+
+    /**
+     * streaming version of getMedicationRequests.  valid MedicationRequests are passed to consumer as each page
+     * arrives.  if a referenced Medication isn't contained or on the same page, it is retrieved and passed along
+     * in its own Bundle
+     */
+    public FhirSearchStats streamMedicationRequests(String sessionId, ResourceConsumer consumer) throws DataException, ConfigurationException, IOException {
+        logger.info("streaming MedicationRequests for session=" + sessionId);
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
+        return fhirService.search(fcc, workspace.getFhirQueryManager().getMedicationRequestStrategy(),
+                workspace.getVendorTransformer().getMedicationRequestQuery(fcc.getCredentials().getPatientId()),
+                buildMedicationRequestValidityFunction(workspace, fcc),
+                withReferencedMedication(workspace, fcc, consumer)
+        );
+    }
+
     public Bundle getCounselingProcedures(String sessionId) throws DataException, ConfigurationException, IOException {
         logger.info("getting Counseling Procedures for session=" + sessionId);
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
@@ -534,6 +438,200 @@ public class EHRService extends AbstractService {
         );
     }
 
+    private Function<ResourceWithBundle, Boolean> buildObservationValidityFunction() {
+        return new Function<ResourceWithBundle, Boolean>() {
+            @Override
+            public Boolean apply(ResourceWithBundle resourceWithBundle) {
+                Resource resource = resourceWithBundle.getResource();
+                if (resource instanceof Observation) {
+                    Observation observation = (Observation) resource;
+                    if (observation.getStatus() != Observation.ObservationStatus.FINAL &&
+                            observation.getStatus() != Observation.ObservationStatus.AMENDED &&
+                            observation.getStatus() != Observation.ObservationStatus.CORRECTED) {
+                        logger.debug("removing Observation " + observation.getId() + " - invalid status");
+                        return false;
+                    }
+
+// storer 2022-08-15 - can now handle observations that don't have associated encounters, as janky as that might be
+//                            if (!observation.hasEncounter()) {
+//                                logger.debug("removing Observation " + observation.getId() + " - no Encounter referenced");
+//                                return false;
+//                            }
+                }
+
+                return true;
+            }
+        };
+    }
+
+    private Function<ResourceWithBundle, Boolean> buildMedicationStatementValidityFunction(UserWorkspace workspace, FHIRCredentialsWithClient fcc) {
+        final List<Coding> validRouteCodings = getValidMedicationRouteCodings();
+        final List<Coding> validFormCodings = getValidMedicationFormCodings();
+
+        return new Function<ResourceWithBundle, Boolean>() {
+            @Override
+            public Boolean apply(ResourceWithBundle resourceWithBundle) {
+                Resource resource = resourceWithBundle.getResource();
+                if (resource instanceof MedicationStatement) {
+                    MedicationStatement ms = (MedicationStatement) resource;
+                    if (ms.getStatus() != MedicationStatement.MedicationStatementStatus.ACTIVE) {
+                        logger.debug("removing MedicationStatement " + ms.getId() + " - invalid status");
+                        return false;
+                    }
+
+                    boolean hasGoodRoute = false;
+                    boolean hasGoodForm = false;
+
+                    if (ms.hasDosage()) {
+                        for (Dosage d : ms.getDosage()) {
+                            if (d.hasRoute() && FhirUtil.hasCoding(d.getRoute(), validRouteCodings)) {
+                                hasGoodRoute = true;
+                                break;
+                            }
+                        }
+                    }
+
+                    if ( ! hasGoodRoute && ms.hasMedicationReference()) {
+                        logger.debug("invalid or missing route for MedicationStatement " + ms.getId() + " - checking medication form");
+                        Bundle bundle = resourceWithBundle.getBundle();
+
+                        Medication m = null;
+                        try {
+                            m = FhirUtil.getResourceFromContainedOrBundleByReference(ms, bundle, Medication.class, ms.getMedicationReference());
+                            if (m == null) {
+                                m = fhirService.readByReference(fcc, workspace.getFhirQueryManager().getMedicationStrategy(),
+                                        Medication.class, ms.getMedicationReference());
+                            }
+
+                        } catch (Exception e) {
+                            logger.error("caught " + e.getClass().getName() + " attempting to obtain Medication for MedicationStatement " +
+                                    ms.getId() + " - " + e.getMessage(), e);
+                        }
+
+                        if (m != null && m.hasForm() && FhirUtil.hasCoding(m.getForm(), validFormCodings)) {
+                            hasGoodForm = true;
+                        }
+                    }
+
+                    if ( ! hasGoodRoute && ! hasGoodForm ) {
+                        logger.debug("removing MedicationStatement " + ms.getId() + " - invalid route and form");
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    private Function<ResourceWithBundle, Boolean> buildMedicationRequestValidityFunction(UserWorkspace workspace, FHIRCredentialsWithClient fcc) {
+        final List<Coding> validRouteCodings = getValidMedicationRouteCodings();
+        final List<Coding> validFormCodings = getValidMedicationFormCodings();
+
+        return new Function<ResourceWithBundle, Boolean>() {
+            @Override
+            public Boolean apply(ResourceWithBundle resourceWithBundle) {
+                Resource resource = resourceWithBundle.getResource();
+                if (resource instanceof MedicationRequest) {
+                    MedicationRequest mr = (MedicationRequest) resource;
+
+                    if (mr.getStatus() != MedicationRequest.MedicationRequestStatus.ACTIVE) {
+                        logger.debug("removing MedicationRequest " + mr.getId() + " - invalid status");
+                        return false;
+                    }
+
+                    if (mr.getIntent() != MedicationRequest.MedicationRequestIntent.ORDER &&
+                            mr.getIntent() != MedicationRequest.MedicationRequestIntent.PLAN) {
+                        logger.debug("removing MedicationRequest " + mr.getId() + " - invalid intent");
+                        return false;
+                    }
+
+                    if (mr.hasDoNotPerform() && mr.getDoNotPerform()) {
+                        logger.debug("removing MedicationRequest " + mr.getId() + " - doNotPerform");
+                        return false;
+                    }
+
+                    boolean hasGoodRoute = false;
+                    boolean hasGoodForm = false;
+
+                    if (mr.hasDosageInstruction()) {
+                        for (Dosage d : mr.getDosageInstruction()) {
+                            if (d.hasRoute() && FhirUtil.hasCoding(d.getRoute(), validRouteCodings)) {
+                                hasGoodRoute = true;
+                                break;
+                            }
+                        }
+                    }
+
+                    if ( ! hasGoodRoute && mr.hasMedicationReference() ) {
+                        logger.debug("invalid or missing route for MedicationRequest " + mr.getId() + " - checking medication form");
+                        Bundle bundle = resourceWithBundle.getBundle();
+
+                        Medication m = null;
+                        try {
+                            m = FhirUtil.getResourceFromContainedOrBundleByReference(mr, bundle, Medication.class, mr.getMedicationReference());
+                            if (m == null) {
+                                m = fhirService.readByReference(fcc, workspace.getFhirQueryManager().getMedicationStrategy(),
+                                        Medication.class, mr.getMedicationReference());
+                            }
+
+                        } catch (Exception e) {
+                            logger.error("caught " + e.getClass().getName() + " attempting to obtain Medication for MedicationRequest " +
+                                    mr.getId() + " - " + e.getMessage(), e);
+                        }
+
+                        if (m != null && m.hasForm() && FhirUtil.hasCoding(m.getForm(), validFormCodings)) {
+                            hasGoodForm = true;
+                        }
+                    }
+
+                    if ( ! hasGoodRoute && ! hasGoodForm ) {
+                        logger.debug("removing MedicationRequest " + mr.getId() + " - invalid route and form");
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+        };
+    }
+
+    private ResourceConsumer withReferencedMedication(UserWorkspace workspace, FHIRCredentialsWithClient fcc, ResourceConsumer consumer) {
+        return resourceWithBundle -> {
+            Resource resource = resourceWithBundle.getResource();
+
+            Reference medicationReference = null;
+            if (resource instanceof MedicationStatement && ((MedicationStatement) resource).hasMedicationReference()) {
+                medicationReference = ((MedicationStatement) resource).getMedicationReference();
+
+            } else if (resource instanceof MedicationRequest && ((MedicationRequest) resource).hasMedicationReference()) {
+                medicationReference = ((MedicationRequest) resource).getMedicationReference();
+            }
+
+            if (medicationReference != null && ! FhirUtil.resourceOrBundleContainsReference((DomainResource) resource,
+                    resourceWithBundle.getBundle(), medicationReference)) {
+                Medication m = null;
+                try {
+                    m = fhirService.readByReference(fcc, workspace.getFhirQueryManager().getMedicationStrategy(),
+                            Medication.class, medicationReference);
+
+                } catch (Exception e) {
+                    logger.error("caught " + e.getClass().getName() + " attempting to obtain Medication for " +
+                            resource.getClass().getSimpleName() + " " + resource.getId() + " - " + e.getMessage(), e);
+                }
+
+                if (m != null) {
+                    Bundle medicationBundle = new Bundle();
+                    medicationBundle.setType(Bundle.BundleType.COLLECTION);
+                    medicationBundle.addEntry(new Bundle.BundleEntryComponent().setResource(m));
+                    consumer.accept(new ResourceWithBundle(resource, medicationBundle));
+                    return;
+                }
+            }
+
+            consumer.accept(resourceWithBundle);
+        };
+    }
+
     private List<Coding> getValidMedicationRouteCodings() {
         List<Coding> list = new ArrayList<>();
 
@@ -6,11 +6,15 @@ import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import edu.ohsu.cmp.coach.exception.*;
 import edu.ohsu.cmp.coach.fhir.CompositeBundle;
+import edu.ohsu.cmp.coach.fhir.FhirClientFactory;
+import edu.ohsu.cmp.coach.fhir.FhirSearchStats;
+import edu.ohsu.cmp.coach.fhir.ResourceConsumer;
 import edu.ohsu.cmp.coach.fhir.FhirStrategy;
 import edu.ohsu.cmp.coach.model.ResourceWithBundle;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
 import edu.ohsu.cmp.coach.model.fhir.jwt.AccessToken;
 import edu.ohsu.cmp.coach.util.FhirUtil;
+import jakarta.annotation.PreDestroy;
 import jakarta.validation.constraints.NotNull;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -29,15 +33,17 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 @Service
 public class FHIRService {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    @Value("${socket.timeout:300000}")
-    private Integer socketTimeout;
-
     @Value("${fhir.search.count}")
     private int searchCount;
 
@@ -47,6 +53,28 @@ public class FHIRService {
     @Autowired
     private AccessTokenService accessTokenService;
 
+    @Value("${fhir.search.prefetch-next-page:true}")
+    private boolean prefetchNextPage;
+
+    @Autowired
+    private FhirClientFactory fhirClientFactory;
+
+    private final ExecutorService pagingExecutor;
+
+    public FHIRService() {
+        AtomicInteger threadNo = new AtomicInteger(1);
+        pagingExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "fhir-paging-" + threadNo.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        pagingExecutor.shutdownNow();
+    }
+
     public <T extends IBaseResource> T readByReference(FHIRCredentialsWithClient fcc, FhirStrategy strategy, Class<T> aClass,
                                                        Reference reference) throws DataException, ConfigurationException, IOException {
         if (reference == null) return null;
@@ -130,55 +158,110 @@ public class FHIRService {
 
         logger.info("search: executing query: " + fhirQuery);
 
-        IGenericClient client = buildClient(fcc, strategy);
-
-        Bundle bundle;
-        try {
-            bundle = client.search()
-                    .byUrl(fcc.getCredentials().getServerURL() + '/' + fhirQuery)
-                    .count(searchCount)
-                    .accept("application/fhir+json")        // required for Cerner
-                    .returnBundle(Bundle.class)
-                    .execute();
+        FhirSearchStats stats = new FhirSearchStats(fhirQuery);
+        Bundle bundle = searchFirstPage(fcc, strategy, fhirQuery, stats);
 
-            // bundle.getTotal() may be null and if so it will return 0, even if there are many entries.  Cerner does this
-            logger.info("search: got Bundle with total=" + bundle.getTotal() + ", entries=" + bundle.getEntry().size() + " for query: " + fhirQuery);
-            if (logger.isDebugEnabled()) {
-                logger.debug("bundle = " + FhirUtil.toJson(bundle));
-            }
-
-        } catch (InvalidRequestException ire) {
-            logger.error("caught " + ire.getClass().getName() + " executing search: " + fhirQuery, ire);
-            throw ire;
-        }
+        boolean filtered = false;
 
         if (bundle.getLink(Bundle.LINK_NEXT) != null) {
             CompositeBundle compositeBundle = new CompositeBundle();
-            compositeBundle.consume(bundle);
 
-            int page = 2;
-            while (bundle.getLink(Bundle.LINK_NEXT) != null) {
-                bundle = fcc.getClient().loadPage().next(bundle).execute();
+            if (prefetchNextPage) {
+                // request each next page as soon as the current one arrives, and filter the current page while
+                // waiting for it.  pages are filtered individually, which is fine as _include'd resources are
+                // returned on the same page as the resources that reference them
+                Bundle page = bundle;
+                int pageNo = 1;
+                while (page != null) {
+                    final Bundle current = page;
+                    final int nextPageNo = pageNo + 1;
+                    CompletableFuture<Bundle> next = current.getLink(Bundle.LINK_NEXT) != null ?
+                            CompletableFuture.supplyAsync(() -> loadNextPage(fcc, current, nextPageNo, stats), pagingExecutor) :
+                            null;
+
+                    if (validityFunction != null) {
+                        filterInvalidResources(current, validityFunction);
+                    }
+                    compositeBundle.adopt(current);
 
-                logger.info("search (page " + page + "): " + fhirQuery + " (size=" + bundle.getTotal() + ")");
-                if (logger.isDebugEnabled()) {
-                    logger.debug("bundle = " + FhirUtil.toJson(bundle));
+                    page = next != null ? join(next) : null;
+                    pageNo ++;
                 }
 
-                compositeBundle.consume(bundle);
+                filtered = true;
 
-                page ++;
+            } else {
+                compositeBundle.adopt(bundle);
+
+                int page = 2;
+                while (bundle.getLink(Bundle.LINK_NEXT) != null) {
+                    bundle = loadNextPage(fcc, bundle, page, stats);
+                    compositeBundle.adopt(bundle);
+                    page ++;
+                }
             }
 
             bundle = compositeBundle.getBundle();
         }
 
-        if (validityFunction != null) {
+        if (validityFunction != null && ! filtered) {
             filterInvalidResources(bundle, validityFunction);
         }
+
+        logger.info("search: done (" + stats + ") for query: " + fhirQuery);
         return bundle;
     }
 
+    /**
+     * streaming search.  rather than assembling a Bundle, each valid resource is passed to consumer as its page
+     * arrives, and pages are discarded once consumed.  at most one page is requested ahead of the page being
+     * consumed, so a slow consumer holds back retrieval
+     * @return statistics describing the search, or null if the search was not executed
+     */
+    public FhirSearchStats search(FHIRCredentialsWithClient fcc, FhirStrategy strategy, String fhirQuery,
+                                  Function<ResourceWithBundle, Boolean> validityFunction,
+                                  ResourceConsumer consumer) throws DataException, ConfigurationException, IOException {
+
+        if (StringUtils.isBlank(fhirQuery) || strategy == FhirStrategy.DISABLED) {
+            return null;
+        }
+
+        logger.info("search (streaming): executing query: " + fhirQuery);
+
+        FhirSearchStats stats = new FhirSearchStats(fhirQuery);
+        Bundle page = searchFirstPage(fcc, strategy, fhirQuery, stats);
+
+        int pageNo = 1;
+        while (page != null) {
+            final Bundle current = page;
+            final int nextPageNo = pageNo + 1;
+            boolean hasNext = current.getLink(Bundle.LINK_NEXT) != null;
+            CompletableFuture<Bundle> next = hasNext && prefetchNextPage ?
+                    CompletableFuture.supplyAsync(() -> loadNextPage(fcc, current, nextPageNo, stats), pagingExecutor) :
+                    null;
+
+            if (current.hasEntry()) {
+                for (Bundle.BundleEntryComponent entry : current.getEntry()) {
+                    if (entry.hasResource()) {
+                        ResourceWithBundle resourceWithBundle = new ResourceWithBundle(entry.getResource(), current);
+                        if (validityFunction == null || validityFunction.apply(resourceWithBundle)) {
+                            consumer.accept(resourceWithBundle);
+                        }
+                    }
+                }
+            }
+
+            if (next != null)       page = join(next);
+            else if (hasNext)       page = loadNextPage(fcc, current, nextPageNo, stats);
+            else                    page = null;
+
+            pageNo ++;
+        }
+
+        logger.info("search (streaming): done (" + stats + ") for query: " + fhirQuery);
+        return stats;
+    }
+
     @SuppressWarnings("unchecked")
     public <T extends IDomainResource> T transact(FHIRCredentialsWithClient fcc, FhirStrategy strategy, T resource) throws Exception {
         IGenericClient client = buildClient(fcc, strategy);
@@ -268,9 +351,8 @@ public class FHIRService {
                     }
                 }
 
-                client = FhirUtil.buildClient(getBackendServerURL(fcc),
-                        accessToken.getAccessToken(),
-                        socketTimeout);
+                client = fhirClientFactory.getClient(getBackendServerURL(fcc),
+                        accessToken.getAccessToken());
 
             } else {
                 throw new ConfigurationException("BACKEND context requested but JWT not defined");
@@ -318,9 +400,8 @@ public class FHIRService {
             if (accessTokenService.isAccessTokenEnabled()) {
                 AccessToken accessToken = accessTokenService.getAccessToken(fcc);
 
-                return FhirUtil.buildClient(getBackendServerURL(fcc),
-                        accessToken.getAccessToken(),
-                        socketTimeout);
+                return fhirClientFactory.getClient(getBackendServerURL(fcc),
+                        accessToken.getAccessToken());
 
             } else {
                 throw new ConfigurationException("BACKEND context requested but JWT not defined");
@@ -337,6 +418,68 @@ public class FHIRService {
         }
     }
 
+    private Bundle searchFirstPage(FHIRCredentialsWithClient fcc, FhirStrategy strategy, String fhirQuery,
+                                   FhirSearchStats stats) throws DataException, ConfigurationException, IOException {
+        IGenericClient client = buildClient(fcc, strategy);
+
+        stats.bind();
+        try {
+            Bundle bundle = client.search()
+                    .byUrl(fcc.getCredentials().getServerURL() + '/' + fhirQuery)
+                    .count(searchCount)
+                    .accept("application/fhir+json")        // required for Cerner
+                    .returnBundle(Bundle.class)
+                    .execute();
+
+            stats.recordPage(bundle);
+
+            // bundle.getTotal() may be null and if so it will return 0, even if there are many entries.  Cerner does this
+            logger.info("search: got Bundle with total=" + bundle.getTotal() + ", entries=" + bundle.getEntry().size() + " for query: " + fhirQuery);
+            if (logger.isDebugEnabled()) {
+                logger.debug("bundle = " + FhirUtil.toJson(bundle));
+            }
+
+            return bundle;
+
+        } catch (InvalidRequestException ire) {
+            logger.error("caught " + ire.getClass().getName() + " executing search: " + fhirQuery, ire);
+            throw ire;
+
+        } finally {
+            stats.unbind();
+        }
+    }
+
+    private Bundle loadNextPage(FHIRCredentialsWithClient fcc, Bundle bundle, int page, FhirSearchStats stats) {
+        stats.bind();
+        try {
+            Bundle next = fcc.getClient().loadPage().next(bundle).execute();
+            stats.recordPage(next);
+
+            logger.info("search (page " + page + "): " + stats.getQuery() + " (size=" + next.getTotal() + ")");
+            if (logger.isDebugEnabled()) {
+                logger.debug("bundle = " + FhirUtil.toJson(next));
+            }
+
+            return next;
+
+        } finally {
+            stats.unbind();
+        }
+    }
+
+    private Bundle join(CompletableFuture<Bundle> future) {
+        try {
+            return future.join();
+
+        } catch (CompletionException ce) {
+            if (ce.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ce.getCause();
+            }
+            throw ce;
+        }
+    }
+
     private void filterInvalidResources(Bundle bundle, Function<ResourceWithBundle, Boolean> validityFunction) {
         if (bundle != null && bundle.hasEntry()) {
             Iterator<Bundle.BundleEntryComponent> iter = bundle.getEntry().iterator();
@@ -4,17 +4,25 @@ import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import edu.ohsu.cmp.coach.entity.HomeBloodPressureReading;
 import edu.ohsu.cmp.coach.repository.HomeBloodPressureReadingRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 @Service
 public class HomeBloodPressureReadingService extends AbstractService {
+    private static final String INSERT_SQL = "insert into home_bp_reading " +
+            "(patId, systolic, diastolic, readingDate, followedInstructions, createdDate, source) values (?, ?, ?, ?, ?, ?, ?)";
 
     @Autowired
     private HomeBloodPressureReadingRepository repository;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
     public List<HomeBloodPressureReading> getHomeBloodPressureReadings(String sessionId) {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         return repository.findAllByPatId(workspace.getInternalPatientId());
@@ -27,6 +35,27 @@ public class HomeBloodPressureReadingService extends AbstractService {
         return repository.save(bpreading);
     }
 
+    /**
+     * inserts readings in a single JDBC batch.  IDs are not assigned to the readings
+     */
+    public void createAll(String sessionId, List<HomeBloodPressureReading> list) {
+        if (list.isEmpty()) return;
+
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        Timestamp createdDate = new Timestamp(System.currentTimeMillis());
+
+        List<Object[]> rows = new ArrayList<>();
+        for (HomeBloodPressureReading bpreading : list) {
+            rows.add(new Object[] {
+                    workspace.getInternalPatientId(), bpreading.getSystolic(), bpreading.getDiastolic(),
+                    new Timestamp(bpreading.getReadingDate().getTime()), bpreading.getFollowedInstructions(),
+                    createdDate, bpreading.getSource()
+            });
+        }
+
+        jdbcTemplate.batchUpdate(INSERT_SQL, rows);
+    }
+
     public void delete(String sessionId, Long id) {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         repository.deleteByIdForPatient(id, workspace.getInternalPatientId());
@@ -4,16 +4,25 @@ import edu.ohsu.cmp.coach.entity.HomePulseReading;
 import edu.ohsu.cmp.coach.repository.HomePulseReadingRepository;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 @Service
 public class HomePulseReadingService extends AbstractService {
+    private static final String INSERT_SQL = "insert into home_pulse_reading " +
+            "(patId, pulse, readingDate, followedInstructions, createdDate, source) values (?, ?, ?, ?, ?, ?)";
+
     @Autowired
     private HomePulseReadingRepository repository;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
     public List<HomePulseReading> getHomePulseReadings(String sessionId) {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         return repository.findAllByPatId(workspace.getInternalPatientId());
@@ -26,6 +35,27 @@ public class HomePulseReadingService extends AbstractService {
         return repository.save(pulseReading);
     }
 
+    /**
+     * inserts readings in a single JDBC batch.  IDs are not assigned to the readings
+     */
+    public void createAll(String sessionId, List<HomePulseReading> list) {
+        if (list.isEmpty()) return;
+
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        Timestamp createdDate = new Timestamp(System.currentTimeMillis());
+
+        List<Object[]> rows = new ArrayList<>();
+        for (HomePulseReading pulseReading : list) {
+            rows.add(new Object[] {
+                    workspace.getInternalPatientId(), pulseReading.getPulse(),
+                    new Timestamp(pulseReading.getReadingDate().getTime()), pulseReading.getFollowedInstructions(),
+                    createdDate, pulseReading.getSource()
+            });
+        }
+
+        jdbcTemplate.batchUpdate(INSERT_SQL, rows);
+    }
+
     public void delete(String sessionId, Long id) {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         repository.deleteByIdForPatient(id, workspace.getInternalPatientId());
@@ -2,9 +2,8 @@ package edu.ohsu.cmp.coach.service;
 
 import edu.ohsu.cmp.coach.entity.HypotensionAdverseEvent;
 import edu.ohsu.cmp.coach.exception.DataException;
-import edu.ohsu.cmp.coach.model.AbstractVitalsModel;
 import edu.ohsu.cmp.coach.model.AuditSeverity;
-import edu.ohsu.cmp.coach.model.BloodPressureModel;
+import edu.ohsu.cmp.coach.model.BloodPressureSeries;
 import edu.ohsu.cmp.coach.repository.HypotensionAdverseEventRepository;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import org.slf4j.Logger;
@@ -44,25 +43,22 @@ public class HypotensionAdverseEventService extends AbstractService {
 
         // next, construct a new index of hypotension AEs based on this person's BP readings in the lookback period
         Map<String, HypotensionAdverseEvent> newMap = new LinkedHashMap<>();
-        BloodPressureModel bpm1 = null;
-        List<BloodPressureModel> bpList = bloodPressureService.getBloodPressureReadings(sessionId).stream()
-            .filter(bp -> {
-                LocalDate bpDate = bp.getReadingDate().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-                return bpDate.isAfter(earliestEventDate);
-            }).collect(Collectors.toList());
-        bpList.sort(Comparator.comparing(AbstractVitalsModel::getReadingDate)); // sort oldest first
-        for (BloodPressureModel bpm : bpList) {
-            if (bpm.isLow()) {
-                if (bpm1 != null) {
-                    // create AE from bpm and bpm1
-                    HypotensionAdverseEvent hae = new HypotensionAdverseEvent(bpm1, bpm);
+        // walk the readings in the lookback period oldest first, pairing consecutive low readings
+        BloodPressureSeries series = bloodPressureService.getBloodPressureSeries(sessionId);
+        long since = earliestEventDate.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        int low1 = -1;
+        for (int i = series.indexOfFirstBefore(since) - 1; i >= 0; i --) {
+            if (series.isLow(i)) {
+                if (low1 >= 0) {
+                    // create AE from the readings at i and low1
+                    HypotensionAdverseEvent hae = new HypotensionAdverseEvent(series.getReading(low1), series.getReading(i));
                     newMap.put(hae.getLogicalEqualityKey(), hae);
-                    bpm1 = null;
+                    low1 = -1;
                 } else {
-                    bpm1 = bpm;
+                    low1 = i;
                 }
             } else {
-                bpm1 = null;
+                low1 = -1;
             }
         }
 
@@ -1,25 +1,29 @@
 package edu.ohsu.cmp.coach.service;
 
-import edu.ohsu.cmp.coach.entity.Concept;
 import edu.ohsu.cmp.coach.entity.ValueSet;
 import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.model.MedicationModel;
+import edu.ohsu.cmp.coach.model.TerminologyStatusModel;
+import edu.ohsu.cmp.coach.model.ValueSetMembershipIndex;
 import edu.ohsu.cmp.coach.util.FhirUtil;
-import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.MedicationRequest;
 import org.hl7.fhir.r4.model.MedicationStatement;
-import org.opencds.cqf.tooling.terminology.CodeSystemLookupDictionary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class MedicationService extends AbstractService {
@@ -31,49 +35,217 @@ public class MedicationService extends AbstractService {
     @Autowired
     private ValueSetService valueSetService;
 
+    @Autowired
+    private VSACService vsacService;
+
+    @Autowired
+    private ValueSetSnapshot valueSetSnapshot;
+
+    @Value("${vsac.refresh-concurrency:2}")
+    private int refreshConcurrency;
+
+    // membership of the anti-hypertensive medication ValueSets, replaced whenever they're refreshed
+    private volatile ValueSetMembershipIndex valueSetIndex = null;
+    private volatile String valueSetIndexSource = null;
+    private volatile Date lastRefreshed = null;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    /**
+     * publishes the membership index from the local ValueSet snapshot if it can be used, and otherwise from the
+     * ValueSets already stored in the database, if they're all there, so that medications can be classified as soon
+     * as the application starts.  if neither is complete, the index is published once ValueSets have been refreshed
+     * @return true if an index was published
+     */
+    public boolean initializeValueSetIndex() {
+        if (loadValueSetIndexFromSnapshot()) return true;
+
+        try {
+            List<ValueSet> valueSets = getStoredValueSets();
+            if (valueSets.size() < getAntihypertensiveMedicationValueSetOIDsList().size()) {
+                logger.info("not all anti-hypertensive medication ValueSets are stored - waiting on refresh from VSAC");
+                return false;
+            }
+
+            synchronized (this) {
+                if (valueSetIndex == null) {
+                    publishValueSetIndex(valueSets);
+                }
+            }
+            return true;
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getName() + " loading stored ValueSets - " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * publishes the membership index from the local ValueSet snapshot, if there is one and it has every configured
+     * ValueSet, so that medications can be classified without waiting on VSAC or the database
+     * @return true if the index was loaded from the snapshot
+     */
+    private boolean loadValueSetIndexFromSnapshot() {
+        Map<String, ValueSet> map = valueSetSnapshot.read();
+        if (map == null) {
+            logger.info("no ValueSet snapshot available");
+            return false;
+        }
+
+        List<ValueSet> valueSets = new ArrayList<>();
+        for (String oid : getAntihypertensiveMedicationValueSetOIDsList()) {
+            ValueSet valueSet = map.get(oid);
+            if (valueSet == null || valueSet.getConcepts().isEmpty()) {
+                logger.warn("ValueSet snapshot has no concepts for ValueSet with OID=" + oid + " - not using it");
+                return false;
+            }
+            valueSets.add(valueSet);
+        }
+
+        ValueSetMembershipIndex index = new ValueSetMembershipIndex(valueSets);
+        synchronized (this) {
+            if (valueSetIndex == null) {
+                valueSetIndex = index;
+                valueSetIndexSource = "snapshot";
+            }
+        }
+        logger.info("loaded " + index + " from " + valueSetSnapshot);
+        return true;
+    }
+
+    /**
+     * refreshes the anti-hypertensive medication ValueSets on a background thread, so that the caller isn't held up
+     * by VSAC
+     */
+    public void refreshAntihypertensiveMedicationValueSetsInBackground() {
+        Thread t = new Thread(this::refreshAntihypertensiveMedicationValueSets, "vsac-background-refresh");
+        t.setDaemon(true);
+        t.start();
+    }
+
     @Scheduled(cron = "${antihypertensive.medication.valueset.refresh-cron}") // 0 0 5 * * SUN
     public void refreshAntihypertensiveMedicationValueSets() {
+        if ( ! refreshing.compareAndSet(false, true) ) {
+            logger.info("anti-hypertensive medication ValueSets are already being refreshed - not refreshing again");
+            return;
+        }
+
+        try {
+            doRefreshAntihypertensiveMedicationValueSets();
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    public TerminologyStatusModel getTerminologyStatus() {
+        ValueSetMembershipIndex index = valueSetIndex;
+        Date snapshotLastWritten = valueSetSnapshot.getLastWritten();
+        long now = System.currentTimeMillis();
+
+        return new TerminologyStatusModel(
+                index != null,
+                valueSetIndexSource,
+                index != null ? index.getOIDs().size() : 0,
+                index != null ? index.getConceptCount() : 0,
+                index != null ? now - index.getCreated().getTime() : null,
+                snapshotLastWritten != null ? now - snapshotLastWritten.getTime() : null,
+                refreshing.get(),
+                lastRefreshed
+        );
+    }
+
+    @Scheduled(fixedDelayString = "${vsac.stats-log-interval-ms:900000}", initialDelayString = "${vsac.stats-log-interval-ms:900000}")
+    public void logStats() {
+        logger.info("terminology status: " + getTerminologyStatus());
+    }
+
+    private void doRefreshAntihypertensiveMedicationValueSets() {
         logger.info("refreshing anti-hypertensive medication ValueSets -");
-        for (String oid : getAntihypertensiveMedicationValueSetOIDsList()) {
-            try {
-                valueSetService.refresh(oid);
-            } catch (Exception e) {
-                logger.error("caught " + e.getClass().getName() + " refreshing ValueSet with OID=" + oid + " - " + e.getMessage(), e);
+
+        // ValueSets are fetched from VSAC concurrently, but stored one at a time on this thread, each in its own
+        // transaction
+        AtomicInteger threadCount = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, refreshConcurrency), r -> {
+            Thread t = new Thread(r, "vsac-refresh-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        try {
+            Map<String, Future<ValueSet>> futures = new LinkedHashMap<>();
+            for (String oid : getAntihypertensiveMedicationValueSetOIDsList()) {
+                logger.info("acquiring ValueSet with oid=" + oid + " from VSAC");
+                futures.put(oid, pool.submit(() -> vsacService.getValueSet(oid)));
+            }
+
+            for (Map.Entry<String, Future<ValueSet>> entry : futures.entrySet()) {
+                String oid = entry.getKey();
+                try {
+                    ValueSet fresh = entry.getValue().get();
+                    if (fresh != null) {
+                        valueSetService.store(fresh);
+                    }
+
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("interrupted refreshing ValueSets - aborting");
+                    break;
+
+                } catch (Exception e) {
+                    Throwable t = e instanceof ExecutionException && e.getCause() != null ?
+                            e.getCause() :
+                            e;
+                    logger.error("caught " + t.getClass().getName() + " refreshing ValueSet with OID=" + oid + " - " + t.getMessage(), t);
+                }
             }
+
+        } finally {
+            pool.shutdownNow();
         }
+
+        List<ValueSet> valueSets = getStoredValueSets();
+        boolean complete = valueSets.size() == getAntihypertensiveMedicationValueSetOIDsList().size();
+
+        // an incomplete set of expansions neither replaces the snapshot nor an index that was loaded from it
+        if (complete) {
+            publishValueSetIndex(valueSets);
+            valueSetSnapshot.write(valueSets);
+
+        } else if (valueSetIndex != null && "snapshot".equals(valueSetIndexSource)) {
+            logger.warn("not all anti-hypertensive medication ValueSets are available - continuing to use ValueSet snapshot");
+
+        } else {
+            publishValueSetIndex(valueSets);
+            logger.warn("not all anti-hypertensive medication ValueSets are available - not updating ValueSet snapshot");
+        }
+        lastRefreshed = new Date();
+
         logger.info("done refreshing anti-hypertensive medication ValueSets.");
     }
 
     public List<MedicationModel> buildMedications(String sessionId) throws DataException, ConfigurationException, IOException {
         List<MedicationModel> list = new ArrayList<>();
 
-        Bundle medicationStatementsBundle = ehrService.getMedicationStatements(sessionId);
-        if (medicationStatementsBundle != null && medicationStatementsBundle.hasEntry()) {
-            for (Bundle.BundleEntryComponent entry : medicationStatementsBundle.getEntry()) {
-                if (entry.hasResource() && entry.getResource() instanceof MedicationStatement) {
-                    MedicationStatement medicationStatement = (MedicationStatement) entry.getResource();
-                    list.add(new MedicationModel(medicationStatement));
-                }
+        ehrService.streamMedicationStatements(sessionId, resourceWithBundle -> {
+            if (resourceWithBundle.getResource() instanceof MedicationStatement) {
+                MedicationStatement medicationStatement = (MedicationStatement) resourceWithBundle.getResource();
+                list.add(new MedicationModel(medicationStatement));
             }
-        }
+        });
 
-        Bundle medicationRequestsBundle = ehrService.getMedicationRequests(sessionId);
-        if (medicationRequestsBundle != null && medicationRequestsBundle.hasEntry()) {
-            for (Bundle.BundleEntryComponent entry : medicationRequestsBundle.getEntry()) {
-                if (entry.hasResource() && entry.getResource() instanceof MedicationRequest) {
-                    MedicationRequest medicationRequest = (MedicationRequest) entry.getResource();
-                    try {
-                        list.add(new MedicationModel(medicationRequest, medicationRequestsBundle));
-
-                    } catch (Exception e) {
-                        logger.error("caught " + e.getClass().getName() + " - " + e.getMessage() + " - " +
-                                " attempting to build MedicationModel for MedicationRequest:\n" +
-                                FhirUtil.toJson(medicationRequest));
-                        logger.warn("MedicationRequest " + medicationRequest.getId() + " not added to Medications list!");
-                    }
+        ehrService.streamMedicationRequests(sessionId, resourceWithBundle -> {
+            if (resourceWithBundle.getResource() instanceof MedicationRequest) {
+                MedicationRequest medicationRequest = (MedicationRequest) resourceWithBundle.getResource();
+                try {
+                    list.add(new MedicationModel(medicationRequest, resourceWithBundle.getBundle()));
+
+                } catch (Exception e) {
+                    logger.error("caught " + e.getClass().getName() + " - " + e.getMessage() + " - " +
+                            " attempting to build MedicationModel for MedicationRequest:\n" +
+                            FhirUtil.toJson(medicationRequest));
+                    logger.warn("MedicationRequest " + medicationRequest.getId() + " not added to Medications list!");
                 }
             }
-        }
+        });
 
         return list;
     }
@@ -93,10 +265,6 @@ public class MedicationService extends AbstractService {
                 includeAntihypertensive);
     }
 
-    private List<MedicationModel> filterByValueSet(List<MedicationModel> list, String valueSetOID, boolean includeOnMatch) {
-        return filterByValueSet(list, Arrays.asList(valueSetOID), includeOnMatch);
-    }
-
     private List<MedicationModel> filterByValueSet(List<MedicationModel> list, List<String> valueSetOIDList, boolean includeOnMatch) {
         if (list == null) return null;
 
@@ -104,32 +272,14 @@ public class MedicationService extends AbstractService {
 
         logger.debug("in filterByValueSet(includeOnMatch=" + includeOnMatch + ") - list.size() = " + list.size());
 
-        List<Concept> concepts = new ArrayList<>();
-        for (String oid : valueSetOIDList) {
-            ValueSet valueSet = valueSetService.getValueSet(oid);
-            if (valueSet != null && valueSet.getConcepts() != null) {
-                concepts.addAll(valueSet.getConcepts());
-            } else {
-                logger.warn("ValueSet with OID=" + oid + " does not exist and / or has no concepts!");
-            }
-        }
+        ValueSetMembershipIndex index = getValueSetIndex();
 
         logger.debug("filtering Medications -");
         for (MedicationModel item : list) {
-            logger.debug(" - processing " + item.getDescription() + " (id=" + item.getSourceId() + ") -");
-
-            boolean matches = false;
-            for (Concept c : concepts) {
-                String codeSystem = CodeSystemLookupDictionary.getUrlFromOid(c.getCodeSystem());
-                if (item.matches(codeSystem, c.getCode())) {
-                    logger.debug("   - matches codeSystem=" + codeSystem + ", code=" + c.getCode() + "!");
-                    matches = true;
-                    break;
-                }
-            }
+            boolean matches = index.isMember(item.getCodings(), valueSetOIDList);
+            logger.debug(" - " + item.getDescription() + " (id=" + item.getSourceId() + ") matches=" + matches);
 
             if ((includeOnMatch && matches) || (!includeOnMatch && !matches)) {
-                logger.debug("   - adding to filtered list");
                 filtered.add(item);
             }
         }
@@ -138,6 +288,48 @@ public class MedicationService extends AbstractService {
         return filtered;
     }
 
+    private ValueSetMembershipIndex getValueSetIndex() {
+        ValueSetMembershipIndex index = valueSetIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = valueSetIndex;
+                if (index == null) {
+                    index = loadValueSetIndex();
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * builds the membership index from the ValueSets as currently stored, and publishes it for use by subsequent
+     * medication filtering
+     */
+    private ValueSetMembershipIndex loadValueSetIndex() {
+        return publishValueSetIndex(getStoredValueSets());
+    }
+
+    private List<ValueSet> getStoredValueSets() {
+        List<ValueSet> valueSets = new ArrayList<>();
+        for (String oid : getAntihypertensiveMedicationValueSetOIDsList()) {
+            ValueSet valueSet = valueSetService.getValueSet(oid);
+            if (valueSet != null && valueSet.getConcepts() != null && ! valueSet.getConcepts().isEmpty()) {
+                valueSets.add(valueSet);
+            } else {
+                logger.warn("ValueSet with OID=" + oid + " does not exist and / or has no concepts!");
+            }
+        }
+        return valueSets;
+    }
+
+    private ValueSetMembershipIndex publishValueSetIndex(List<ValueSet> valueSets) {
+        ValueSetMembershipIndex index = new ValueSetMembershipIndex(valueSets);
+        valueSetIndex = index;
+        valueSetIndexSource = "database";
+        logger.info("loaded " + index);
+        return index;
+    }
+
     private List<String> getAntihypertensiveMedicationValueSetOIDsList() {
         String csv = env.getProperty("antihypertensive.medication.valueset.oid.csv");
         return Arrays.asList(csv.split("\\s*,\\s*"));
@@ -0,0 +1,117 @@
+package edu.ohsu.cmp.coach.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheFactory;
+import edu.ohsu.cmp.coach.model.Audience;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Compiles the Mustache templates used to build CQF Ruler hook requests and to render the cards it returns.  Static
+ * templates are compiled once at startup.  CQF Ruler responses are themselves templates; these are compiled on
+ * first use and cached by content hash, so identical responses needn't be compiled again.
+ */
+@Service
+public class MustacheTemplateService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String HOOK_REQUEST_TEMPLATE = "cqfruler/hookRequest.mustache";
+
+    private static final List<String> STATIC_TEMPLATES = List.of(HOOK_REQUEST_TEMPLATE);
+
+    private final MustacheFactory mustacheFactory = new DefaultMustacheFactory();
+    private final Map<String, Mustache> staticTemplates = new ConcurrentHashMap<>();
+    private final Cache<String, Mustache> responseTemplates;
+
+    private final AtomicLong compileCount = new AtomicLong();
+    private final AtomicLong compileNanos = new AtomicLong();
+    private final AtomicLong renderCount = new AtomicLong();
+    private final AtomicLong renderNanos = new AtomicLong();
+
+    public MustacheTemplateService(@Value("${mustache.response-template-cache.max-size:1000}") long maxSize) {
+        for (String name : STATIC_TEMPLATES) {
+            staticTemplates.put(name, compile(() -> mustacheFactory.compile(name)));
+        }
+
+        responseTemplates = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * renders the named template, which is compiled on first use if it isn't among those compiled at startup
+     */
+    public String render(String name, Object scope) throws IOException {
+        Mustache mustache = staticTemplates.computeIfAbsent(name, k -> compile(() -> mustacheFactory.compile(k)));
+        return render(mustache, scope);
+    }
+
+    /**
+     * renders s, a template that includes sections for each audience, for the specified audience
+     */
+    public String renderForAudience(Audience audience, String s) throws IOException {
+        if (s == null) return null;
+        if (s.trim().isEmpty()) return "";
+
+        // the compiled template doesn't depend on the audience, only the scope it's rendered with does
+        Mustache mustache = responseTemplates.get(DigestUtils.sha256Hex(s),
+                k -> compile(() -> mustacheFactory.compile(new StringReader(s), "template")));
+
+        return render(mustache, Collections.singletonMap(audience.getTag(), true));
+    }
+
+    @Scheduled(fixedDelayString = "${mustache.stats-log-interval-ms:900000}",
+            initialDelayString = "${mustache.stats-log-interval-ms:900000}")
+    public void logStats() {
+        logger.info("Mustache templates: compiled=" + compileCount.get() +
+                " (took " + (compileNanos.get() / 1_000_000) + "ms), rendered=" + renderCount.get() +
+                " (took " + (renderNanos.get() / 1_000_000) + "ms), response template cache: size=" +
+                responseTemplates.estimatedSize() + ", " + responseTemplates.stats());
+    }
+
+//////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private Mustache compile(Supplier<Mustache> compiler) {
+        long start = System.nanoTime();
+        Mustache mustache = compiler.get();
+        long elapsed = System.nanoTime() - start;
+
+        compileCount.incrementAndGet();
+        compileNanos.addAndGet(elapsed);
+        logger.debug("compiled Mustache template " + mustache.getName() + " (took " + (elapsed / 1_000_000) + "ms)");
+
+        return mustache;
+    }
+
+    private String render(Mustache mustache, Object scope) throws IOException {
+        long start = System.nanoTime();
+        StringWriter writer = new StringWriter();
+        mustache.execute(writer, scope).flush();
+        long elapsed = System.nanoTime() - start;
+
+        renderCount.incrementAndGet();
+        renderNanos.addAndGet(elapsed);
+
+        return writer.toString();
+    }
+}
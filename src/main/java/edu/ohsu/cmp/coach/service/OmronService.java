@@ -10,6 +10,7 @@ import edu.ohsu.cmp.coach.exception.NotAuthenticatedException;
 import edu.ohsu.cmp.coach.exception.OmronException;
 import edu.ohsu.cmp.coach.http.HttpRequest;
 import edu.ohsu.cmp.coach.http.HttpResponse;
+import edu.ohsu.cmp.coach.http.HttpStreamResponse;
 import edu.ohsu.cmp.coach.model.AuditSeverity;
 import edu.ohsu.cmp.coach.model.BloodPressureModel;
 import edu.ohsu.cmp.coach.model.OmronTokenData;
@@ -25,10 +26,14 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.scheduling.quartz.JobDetailFactoryBean;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
+import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -40,6 +45,10 @@ import java.util.regex.Pattern;
 public class OmronService extends AbstractService {
     private static final DateFormat OMRON_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
 
+    private static final String INSERT_VITALS_SQL = "insert into omron_vitals_cache " +
+            "(patId, omronId, dateTime, dateTimeLocal, dateTimeUtcOffset, systolic, diastolic, bloodPressureUnits, " +
+            "pulse, pulseUnits, deviceType, createdDate) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     // todo : build out services for retrieving vitals data from Omron here
@@ -80,9 +89,21 @@ public class OmronService extends AbstractService {
     @Autowired
     private PulseService pulseService;
 
+    @Autowired
+    private WritebackOutbox writebackOutbox;
+
     @Autowired
     private REDCapService redCapService;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${omron.bulk-ingestion.enabled:true}")
+    private boolean bulkIngestionEnabled;
+
+    @Value("${omron.bulk-ingestion.batch-size:50}")
+    private int bulkBatchSize;
+
     private static final Pattern KEY_PATTERN = Pattern.compile("^[a-f0-9]{64}$");
 
     public boolean isOmronEnabled() {
@@ -280,54 +301,11 @@ public class OmronService extends AbstractService {
             MeasurementResult result = requestMeasurements(sessionId, workspace.getOmronLastUpdated());
             if (result.hasBloodPressures()) {
                 List<OmronBloodPressureModel> list = result.getBloodPressure();
-                for (int i = 0; i < list.size(); i ++) {
-                    logger.debug("processing Omron record " + i + " of " + list.size());
+                if (bulkIngestionEnabled) {
+                    ingestBulk(sessionId, workspace, list);
 
-                    workspace.setOmronSynchronizationProgress(i + 1, list.size());
-
-                    OmronBloodPressureModel model = list.get(i);
-
-                    // first persist the original object to local cache
-                    MyOmronVitals vitals = null;
-                    try {
-                        vitals = writeToPersistentCache(workspace.getInternalPatientId(), model);
-
-                    } catch (Exception e) {
-                        logger.error("caught " + e.getClass().getName() + " persisting Omron vitals - " + e.getMessage() + " - skipping -", e);
-                        logger.debug("vitals = " + model);
-                    }
-
-                    if (vitals != null) {
-                        // now create this blood pressure into our home blood pressure model table (if applicable)
-                        if (vitals.getSystolic() != null && vitals.getDiastolic() != null) {
-                            try {
-                                bloodPressureService.create(sessionId, new BloodPressureModel(vitals, fcm));
-
-                            } catch (Exception e) {
-                                // remote errors are tolerable, since we will always store locally too
-                                logger.warn("caught " + e.getClass().getSimpleName() + " attempting to create BP - " + e.getMessage(), e);
-                            }
-                        }
-
-                        // and also persist pulse into our home pulse model table (if applicable)
-                        if (vitals.getPulse() != null) {
-                            try {
-                                pulseService.create(sessionId, new PulseModel(vitals, fcm));
-
-                            } catch (Exception e) {
-                                // remote errors are tolerable, since we will always store locally too
-                                logger.warn("caught " + e.getClass().getSimpleName() + " attempting to create Pulse - " + e.getMessage(), e);
-                            }
-                        }
-                    }
-
-// storer : useful for debugging
-//                    try {
-//                        logger.debug("sleeping 800ms");
-//                        Thread.sleep(800);
-//                    } catch (InterruptedException e) {
-//                        throw new RuntimeException(e);
-//                    }
+                } else {
+                    ingestIndividually(sessionId, workspace, list);
                 }
             }
 
@@ -398,6 +376,155 @@ public class OmronService extends AbstractService {
 // private methods
 //
 
+    private void ingestIndividually(String sessionId, UserWorkspace workspace, List<OmronBloodPressureModel> list) {
+        for (int i = 0; i < list.size(); i ++) {
+            logger.debug("processing Omron record " + i + " of " + list.size());
+
+            workspace.setOmronSynchronizationProgress(i + 1, list.size());
+
+            OmronBloodPressureModel model = list.get(i);
+
+            // first persist the original object to local cache
+            MyOmronVitals vitals = null;
+            try {
+                vitals = writeToPersistentCache(workspace.getInternalPatientId(), model);
+
+            } catch (Exception e) {
+                logger.error("caught " + e.getClass().getName() + " persisting Omron vitals - " + e.getMessage() + " - skipping -", e);
+                logger.debug("vitals = " + model);
+            }
+
+            if (vitals != null) {
+                // now create this blood pressure into our home blood pressure model table (if applicable)
+                if (vitals.getSystolic() != null && vitals.getDiastolic() != null) {
+                    try {
+                        bloodPressureService.create(sessionId, new BloodPressureModel(vitals, fcm));
+
+                    } catch (Exception e) {
+                        // remote errors are tolerable, since we will always store locally too
+                        logger.warn("caught " + e.getClass().getSimpleName() + " attempting to create BP - " + e.getMessage(), e);
+                    }
+                }
+
+                // and also persist pulse into our home pulse model table (if applicable)
+                if (vitals.getPulse() != null) {
+                    try {
+                        pulseService.create(sessionId, new PulseModel(vitals, fcm));
+
+                    } catch (Exception e) {
+                        // remote errors are tolerable, since we will always store locally too
+                        logger.warn("caught " + e.getClass().getSimpleName() + " attempting to create Pulse - " + e.getMessage(), e);
+                    }
+                }
+            }
+
+// storer : useful for debugging
+//                    try {
+//                        logger.debug("sleeping 800ms");
+//                        Thread.sleep(800);
+//                    } catch (InterruptedException e) {
+//                        throw new RuntimeException(e);
+//                    }
+        }
+    }
+
+    /**
+     * ingests list in batches.  for each batch, readings that have already been cached are identified with a single
+     * query, new readings are cached and stored as home readings using JDBC batch inserts, and new readings are then
+     * queued for writeback to the EHR.  each batch is ingested in its own transaction; see ingestBatch()
+     */
+    private void ingestBulk(String sessionId, UserWorkspace workspace, List<OmronBloodPressureModel> list) {
+        long start = System.currentTimeMillis();
+        int total = list.size();
+        int processed = 0;
+        int ingested = 0;
+
+        workspace.setOmronSynchronizationProgress(processed, total);
+
+        // ingestBatch() must be called through the proxy, or it won't be transactional
+        OmronService omronService = ctx.getBean(OmronService.class);
+
+        for (int from = 0; from < total; from += bulkBatchSize) {
+            List<OmronBloodPressureModel> batch = list.subList(from, Math.min(from + bulkBatchSize, total));
+            try {
+                try {
+                    ingested += omronService.ingestBatch(sessionId, workspace, batch);
+
+                } catch (DuplicateKeyException e) {
+                    // another synchronization cached some of these readings after they were checked for.  the batch
+                    // was rolled back, and now that the other synchronization has committed, they'll be skipped
+                    logger.info("caught " + e.getClass().getSimpleName() + " ingesting batch of " + batch.size() +
+                            " Omron records - some were cached concurrently - retrying");
+                    ingested += omronService.ingestBatch(sessionId, workspace, batch);
+                }
+
+            } catch (Exception e) {
+                logger.error("caught " + e.getClass().getName() + " ingesting batch of " + batch.size() +
+                        " Omron records - " + e.getMessage() + " - skipping -", e);
+            }
+
+            processed += batch.size();
+            workspace.setOmronSynchronizationProgress(processed, total);
+        }
+
+        logger.info("ingested " + ingested + " new of " + total + " Omron records for session=" + sessionId +
+                " (took " + (System.currentTimeMillis() - start) + "ms)");
+    }
+
+    /**
+     * caches the readings in batch that haven't been cached yet, stores them as home readings, and queues them for
+     * writeback, all in one transaction, so that a reading is only ever marked as cached once it has been stored and
+     * queued.  not intended to be called other than by ingestBulk()
+     * @return the number of new readings ingested
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public int ingestBatch(String sessionId, UserWorkspace workspace, List<OmronBloodPressureModel> batch) throws DataException {
+        Map<Long, OmronBloodPressureModel> newModels = new LinkedHashMap<>();
+        for (OmronBloodPressureModel model : batch) {
+            newModels.putIfAbsent(model.getId(), model);
+        }
+
+        for (Long omronId : repository.findExistingOmronIds(newModels.keySet())) {
+            logger.debug("not caching Omron vitals with id=" + omronId + " - already exists!");
+            newModels.remove(omronId);
+        }
+
+        if (newModels.isEmpty()) return 0;
+
+        List<MyOmronVitals> vitalsList = writeToPersistentCache(workspace.getInternalPatientId(), newModels.values());
+
+        List<BloodPressureModel> bpList = new ArrayList<>();
+        List<PulseModel> pulseList = new ArrayList<>();
+        for (MyOmronVitals vitals : vitalsList) {
+            if (vitals.getSystolic() != null && vitals.getDiastolic() != null) {
+                try {
+                    bpList.add(new BloodPressureModel(vitals, fcm));
+
+                } catch (Exception e) {
+                    logger.warn("caught " + e.getClass().getSimpleName() + " building BP from Omron vitals with id=" +
+                            vitals.getOmronId() + " - " + e.getMessage(), e);
+                }
+            }
+
+            if (vitals.getPulse() != null) {
+                try {
+                    pulseList.add(new PulseModel(vitals, fcm));
+
+                } catch (Exception e) {
+                    logger.warn("caught " + e.getClass().getSimpleName() + " building Pulse from Omron vitals with id=" +
+                            vitals.getOmronId() + " - " + e.getMessage(), e);
+                }
+            }
+        }
+
+        bloodPressureService.createAllLocal(sessionId, bpList);
+        pulseService.createAllLocal(sessionId, pulseList);
+
+        writebackOutbox.enqueueAll(sessionId, bpList, pulseList);
+
+        return vitalsList.size();
+    }
+
     private MeasurementResult requestMeasurements(String sessionId, Date sinceTimestamp) throws IOException, NotAuthenticatedException, OmronException {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
 
@@ -443,22 +570,22 @@ public class OmronService extends AbstractService {
         headers.put("Authorization", "Bearer " + tokenData.getBearerToken());
         headers.put("Content-Type", "application/x-www-form-urlencoded");
 
-        HttpResponse httpResponse = new HttpRequest().post(omronUrl + "/api/measurement", null, headers, bodyParams);
-        int code = httpResponse.getResponseCode();
-        String body = httpResponse.getResponseBody();
+        try (HttpStreamResponse httpResponse = new HttpRequest().postStreaming(omronUrl + "/api/measurement", null, headers, bodyParams)) {
+            int code = httpResponse.getResponseCode();
 
-        if (code < 200 || code > 299) {
-            logger.error("Omron measurement request error: " + body);
-            throw new OmronException("received HTTP " + code + " building vitals for session " + sessionId);
+            if ( ! httpResponse.isSuccessful() ) {
+                logger.error("Omron measurement request error: " + httpResponse.getResponseBody());
+                throw new OmronException("received HTTP " + code + " building vitals for session " + sessionId);
 
-        } else {
-            logger.debug("got body (PARSE THIS WITH GSON): " + body);
-            Gson gson = new GsonBuilder().create();
-            MeasurementResponse response = gson.fromJson(body, new TypeToken<MeasurementResponse>() {}.getType());
+            } else {
+                // parse directly from the response stream - measurement responses can be large
+                Gson gson = new GsonBuilder().create();
+                MeasurementResponse response = gson.fromJson(httpResponse.getReader(), new TypeToken<MeasurementResponse>() {}.getType());
 
-            // todo : do something with response.getStatus()?
+                // todo : do something with response.getStatus()?
 
-            return response.getResult();
+                return response.getResult();
+            }
         }
     }
 
@@ -474,4 +601,29 @@ public class OmronService extends AbstractService {
             return null;
         }
     }
+
+    /**
+     * caches models, none of which may already be cached, in a single JDBC batch
+     * @return the cached vitals, as read back from the database so that their IDs are populated
+     */
+    private List<MyOmronVitals> writeToPersistentCache(Long internalPatientId, Collection<OmronBloodPressureModel> models) {
+        logger.info("caching " + models.size() + " Omron vitals for patient with id=" + internalPatientId);
+
+        Timestamp createdDate = new Timestamp(System.currentTimeMillis());
+        List<Long> omronIds = new ArrayList<>();
+        List<Object[]> rows = new ArrayList<>();
+        for (OmronBloodPressureModel model : models) {
+            omronIds.add(model.getId());
+            rows.add(new Object[] {
+                    internalPatientId, model.getId(), model.getDateTime(), model.getDateTimeLocal(),
+                    model.getDateTimeUtcOffset(), model.getSystolic(), model.getDiastolic(),
+                    model.getBloodPressureUnits(), model.getPulse(), model.getPulseUnits(), model.getDeviceType(),
+                    createdDate
+            });
+        }
+
+        jdbcTemplate.batchUpdate(INSERT_VITALS_SQL, rows);
+
+        return repository.findAllByOmronIds(omronIds);
+    }
 }
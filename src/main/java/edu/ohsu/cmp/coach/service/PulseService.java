@@ -5,18 +5,17 @@ import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.exception.ScopeException;
 import edu.ohsu.cmp.coach.fhir.CompositeBundle;
-import edu.ohsu.cmp.coach.fhir.FhirStrategy;
-import edu.ohsu.cmp.coach.fhir.transform.VendorTransformer;
 import edu.ohsu.cmp.coach.model.AuditSeverity;
+import edu.ohsu.cmp.coach.model.PendingWriteback;
 import edu.ohsu.cmp.coach.model.PulseModel;
+import edu.ohsu.cmp.coach.model.PulseSeries;
 import edu.ohsu.cmp.coach.util.FhirUtil;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
-import org.hl7.fhir.r4.model.Bundle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
 import java.util.*;
@@ -25,15 +24,18 @@ import java.util.*;
 public class PulseService extends AbstractService {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    @Value("${fhir.pulse-writeback-strategy}")
-    private FhirStrategy writebackStrategy;
-
     @Autowired
     private EHRService ehrService;
 
     @Autowired
     private HomePulseReadingService hprService;
 
+    @Autowired
+    private VitalsWritebackService vitalsWritebackService;
+
+    @Autowired
+    private WritebackOutbox writebackOutbox;
+
     public List<PulseModel> buildRemotePulseList(String sessionId) throws DataException, ConfigurationException, IOException {
         CompositeBundle compositeBundle = new CompositeBundle();
         compositeBundle.consume(ehrService.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getPulseCodings()), fcm.getPulseLookbackPeriod(),null));
@@ -65,6 +67,13 @@ public class PulseService extends AbstractService {
         return getPulseReadings(sessionId, true);
     }
 
+    /**
+     * @return the same readings as getPulseReadings(sessionId), as a columnar series
+     */
+    public PulseSeries getPulseSeries(String sessionId) throws DataException {
+        return new PulseSeries(getPulseReadings(sessionId));
+    }
+
     public List<PulseModel> getPulseReadings(String sessionId, boolean doLimit) throws DataException {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
 
@@ -104,46 +113,20 @@ public class PulseService extends AbstractService {
         return list;
     }
 
+    /**
+     * stores pm locally, and queues it to be written to the EHR if writeback is enabled.  the remote write happens
+     * in the background; see WritebackOutbox.  the local reading and its outbox entry are stored in one transaction
+     * @return the reading as stored locally, or null if it couldn't be
+     */
+    @Transactional(rollbackFor = Exception.class)
     public PulseModel create(String sessionId, PulseModel pm) throws DataException, ConfigurationException, IOException, ScopeException {
-        UserWorkspace workspace = userWorkspaceService.get(sessionId);
-
-        PulseModel pm2 = null;
-
-        if (writebackStrategy != FhirStrategy.DISABLED) {
-            logger.info("attempting writeback of Pulse " + pm + " using strategy " + writebackStrategy);
-            try {
-                VendorTransformer transformer = workspace.getVendorTransformer();
-                Bundle outgoingBundle = transformer.transformOutgoingPulseReading(pm);
-                List<PulseModel> list = transformer.transformIncomingPulseReadings(
-                        transformer.writeRemote(sessionId, writebackStrategy, fhirService, outgoingBundle)
-                );
-                if (list.size() >= 1) {
-                    pm2 = list.get(0);
-                    workspace.getRemotePulses().add(pm2);
-                }
-
-                auditService.doAudit(sessionId, AuditSeverity.INFO, "wrote pulse remotely", pm.getPulse() +
-                        " at " + pm.getReadingDateString());
-
-            } catch (Exception e) {
-                // remote errors are tolerable, since we will always store locally too
-                logger.warn("caught " + e.getClass().getSimpleName() + " attempting to create Pulse remotely - " +
-                        "pulse=" + pm.getPulse() + " at " + pm.getReadingDateString() +
-                        ", message=" + e.getMessage(), e);
-
-                auditService.doAudit(sessionId, AuditSeverity.WARN, "failed to write pulse remotely",
-                        "pulse=" + pm.getPulse() + " at " + pm.getReadingDateString() +
-                                ", message=" + e.getMessage());
-            }
-        }
+        PulseModel localModel = null;
 
         try {
             HomePulseReading hpr = new HomePulseReading(pm);
             HomePulseReading response = hprService.create(sessionId, hpr);
 
-            if (pm2 == null) { // give priority to the remotely created resource, if it exists
-                pm2 = new PulseModel(response, fcm);
-            }
+            localModel = new PulseModel(response, fcm);
 
             auditService.doAudit(sessionId, AuditSeverity.INFO, "created pulse", "id=" + response.getId() +
                     ", pulse=" + pm.getPulse() + " at " + pm.getReadingDateString());
@@ -156,9 +139,29 @@ public class PulseService extends AbstractService {
                     pm.getPulse() + " at " + pm.getReadingDateString() + ", message=" + de.getMessage());
         }
 
-        return pm2;
+        PendingWriteback pending = writebackOutbox.enqueue(sessionId, pm);
+        if (pending != null && localModel != null) {
+            vitalsWritebackService.shareResources(pending, localModel);
+        }
+
+        return localModel;
     }
 
+    /**
+     * stores many readings locally at once, in a single batch, e.g. when ingesting Omron readings.  readings aren't
+     * queued for writeback; see WritebackOutbox.  the workspace's caches aren't updated, and should be cleared
+     * afterward
+     */
+    public void createAllLocal(String sessionId, List<PulseModel> list) throws DataException {
+        List<HomePulseReading> hprList = new ArrayList<>();
+        for (PulseModel pm : list) {
+            hprList.add(new HomePulseReading(pm));
+        }
+
+        hprService.createAll(sessionId, hprList);
+
+        auditService.doAudit(sessionId, AuditSeverity.INFO, "created pulses", "count=" + hprList.size());
+    }
 
 ///////////////////////////////////////////////////////////////////////////////////////
 // private methods
@@ -1,8 +1,5 @@
 package edu.ohsu.cmp.coach.service;
 
-import com.github.mustachejava.DefaultMustacheFactory;
-import com.github.mustachejava.Mustache;
-import com.github.mustachejava.MustacheFactory;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
@@ -16,11 +13,13 @@ import edu.ohsu.cmp.coach.fhir.transform.DefaultVendorTransformer;
 import edu.ohsu.cmp.coach.fhir.transform.VendorTransformer;
 import edu.ohsu.cmp.coach.http.HttpRequest;
 import edu.ohsu.cmp.coach.http.HttpResponse;
+import edu.ohsu.cmp.coach.http.WriterEntity;
 import edu.ohsu.cmp.coach.model.*;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSCard;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSHook;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSHookResponse;
 import edu.ohsu.cmp.coach.model.cqfruler.HookRequest;
+import edu.ohsu.cmp.coach.model.cqfruler.PrefetchFragmentCache;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
 import edu.ohsu.cmp.coach.model.recommendation.Action;
 import edu.ohsu.cmp.coach.model.recommendation.Card;
@@ -28,10 +27,13 @@ import edu.ohsu.cmp.coach.model.recommendation.Suggestion;
 import edu.ohsu.cmp.coach.model.redcap.RandomizationGroup;
 import edu.ohsu.cmp.coach.util.CDSHooksUtil;
 import edu.ohsu.cmp.coach.util.FhirUtil;
-import edu.ohsu.cmp.coach.util.MustacheUtil;
 import edu.ohsu.cmp.coach.util.UUIDUtil;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import io.micrometer.common.util.StringUtils;
+import jakarta.annotation.PreDestroy;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.entity.ContentType;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.codesystems.ConditionCategory;
 import org.hl7.fhir.r4.model.codesystems.ConditionClinical;
@@ -40,13 +42,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 @Service
 public class RecommendationService extends AbstractService {
@@ -86,19 +99,122 @@ public class RecommendationService extends AbstractService {
     @Autowired
     private ClinicContactService clinicContactService;
 
+    @Autowired
+    private MustacheTemplateService mustacheTemplateService;
+
     @Value("${contact.clinic}")
     private String clinicContact;
 
     @Value("${contact.after-hours}")
     private String clinicAfterHours;
 
+    private final ExecutorService hookExecutor;
+    private final AtomicBoolean gzipRequests;
+    private final PrefetchFragmentCache prefetchFragmentCache;
+
+    private final long discoveryRefreshIntervalMillis;
+    private final Object discoveryLock = new Object();
+    private final AtomicBoolean discoveryRefreshing = new AtomicBoolean(false);
+    private volatile DiscoverySnapshot discoverySnapshot = null;
+
     public RecommendationService(@Value("${cqfruler.cdshooks.order.csv}") String cdsHookOrderStr,
-                                 @Value("${cqfruler.cdshooks.basic-group.allow-filter.csv}") String basicGroupAllowFilterStr) {
+                                 @Value("${cqfruler.cdshooks.basic-group.allow-filter.csv}") String basicGroupAllowFilterStr,
+                                 @Value("${cqfruler.cdshooks.max-concurrent-requests:4}") int maxConcurrentRequests,
+                                 @Value("${cqfruler.cdshooks.discovery.refresh-interval-ms:300000}") long discoveryRefreshIntervalMillis,
+                                 @Value("${cqfruler.cdshooks.gzip-requests:false}") boolean gzipRequests,
+                                 @Value("${cqfruler.prefetch-cache.max-weight-mb:64}") long prefetchCacheMaxWeightMB,
+                                 @Value("${cqfruler.prefetch-cache.expire-after-access-minutes:60}") long prefetchCacheExpireAfterAccessMinutes) {
         this.cdsHookOrder = Arrays.asList(cdsHookOrderStr.split("\\s*,\\s*"));
         this.basicGroupAllowFilter = Arrays.asList(basicGroupAllowFilterStr.split("\\s*,\\s*"));
+        this.discoveryRefreshIntervalMillis = discoveryRefreshIntervalMillis;
+        this.gzipRequests = new AtomicBoolean(gzipRequests);
+        this.prefetchFragmentCache = new PrefetchFragmentCache(prefetchCacheMaxWeightMB * 1024 * 1024,
+                prefetchCacheExpireAfterAccessMinutes);
+
+        AtomicInteger threadNo = new AtomicInteger(1);
+        this.hookExecutor = Executors.newFixedThreadPool(maxConcurrentRequests, r -> {
+            Thread t = new Thread(r, "cds-hooks-" + threadNo.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        hookExecutor.shutdownNow();
     }
 
     public List<CDSHook> getOrderedCDSHooks(String sessionId) throws IOException {
+        DiscoverySnapshot snapshot = getDiscoverySnapshot();
+
+        // for users belonging to the "basic" randomization group, hooks are filtered to only those permitted for that cohort
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        RandomizationGroup group = workspace.getActiveRandomizationGroup();
+        return group != null ?
+                snapshot.groupHooks.get(group) :
+                snapshot.orderedHooks;
+    }
+
+    /**
+     * refreshes the cached CDS Hooks discovery document on a schedule, so that requests rarely have to wait for it
+     */
+    @Scheduled(fixedDelayString = "${cqfruler.cdshooks.discovery.refresh-interval-ms:300000}",
+            initialDelayString = "${cqfruler.cdshooks.discovery.refresh-interval-ms:300000}")
+    public void refreshDiscoveryInBackground() {
+        if (discoveryRefreshing.compareAndSet(false, true)) {
+            try {
+                hookExecutor.execute(() -> {
+                    try {
+                        refreshDiscovery();
+
+                    } catch (Exception e) {
+                        logger.warn("caught " + e.getClass().getName() + " refreshing CDS Hooks discovery - " +
+                                e.getMessage() + " - continuing to use previous hooks");
+
+                    } finally {
+                        discoveryRefreshing.set(false);
+                    }
+                });
+
+            } catch (RejectedExecutionException e) {
+                discoveryRefreshing.set(false);
+            }
+        }
+    }
+
+    private static final class DiscoverySnapshot {
+        private final List<CDSHook> orderedHooks;
+        private final Map<RandomizationGroup, List<CDSHook>> groupHooks;
+        private final long createdMillis;
+
+        private DiscoverySnapshot(List<CDSHook> orderedHooks, Map<RandomizationGroup, List<CDSHook>> groupHooks) {
+            this.orderedHooks = orderedHooks;
+            this.groupHooks = groupHooks;
+            this.createdMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the cached discovery snapshot.  if there isn't one yet, it is retrieved now.  if it's stale, it's
+     * returned anyway, and a refresh is started in the background
+     */
+    private DiscoverySnapshot getDiscoverySnapshot() throws IOException {
+        DiscoverySnapshot snapshot = discoverySnapshot;
+        if (snapshot == null) {
+            synchronized (discoveryLock) {
+                snapshot = discoverySnapshot;
+                if (snapshot == null) {
+                    snapshot = refreshDiscovery();
+                }
+            }
+
+        } else if (System.currentTimeMillis() - snapshot.createdMillis > discoveryRefreshIntervalMillis) {
+            refreshDiscoveryInBackground();
+        }
+        return snapshot;
+    }
+
+    private DiscoverySnapshot refreshDiscovery() throws IOException {
         Map<String, CDSHook> map = new LinkedHashMap<>();
         for (CDSHook cdsHook : buildCDSHooks()) {
             map.put(cdsHook.getId(), cdsHook);
@@ -114,64 +230,201 @@ public class RecommendationService extends AbstractService {
 
         list.addAll(map.values());
 
-        // for users belonging to the "basic" randomization group, filter hooks to only those permitted for that cohort
-        UserWorkspace workspace = userWorkspaceService.get(sessionId);
-        if (workspace.getActiveRandomizationGroup() == RandomizationGroup.BASIC && basicGroupAllowFilter.size() > 0) {
-            Iterator<CDSHook> iter = list.iterator();
-            while (iter.hasNext()) {
-                CDSHook item = iter.next();
-                if ( ! basicGroupAllowFilter.contains(item.getId()) ) {
-                    iter.remove();
+        Map<RandomizationGroup, List<CDSHook>> groupHooks = new EnumMap<>(RandomizationGroup.class);
+        for (RandomizationGroup group : RandomizationGroup.values()) {
+            if (group == RandomizationGroup.BASIC && basicGroupAllowFilter.size() > 0) {
+                List<CDSHook> filtered = new ArrayList<>();
+                for (CDSHook item : list) {
+                    if (basicGroupAllowFilter.contains(item.getId())) {
+                        filtered.add(item);
+                    }
                 }
+                groupHooks.put(group, Collections.unmodifiableList(filtered));
+
+            } else {
+                groupHooks.put(group, Collections.unmodifiableList(list));
             }
         }
 
-        return list;
+        DiscoverySnapshot snapshot = new DiscoverySnapshot(Collections.unmodifiableList(list), groupHooks);
+        discoverySnapshot = snapshot;
+
+        logger.debug("refreshed CDS Hooks discovery - found " + list.size() + " hook(s)");
+
+        return snapshot;
     }
 
     private List<CDSHook> buildCDSHooks() throws IOException {
         return CDSHooksUtil.getCDSHooks(TESTING, cdsHooksEndpointURL);
     }
 
+    /**
+     * builds the prefetch once and evaluates it against each of the specified hooks concurrently.  the number of
+     * hooks evaluated at once across all sessions is limited by cqfruler.cdshooks.max-concurrent-requests
+     * @param publisher if not null, called with each hook's cards as soon as they are available
+     * @return the cards for each hook, in the order of hookIds
+     */
+    public Map<String, List<Card>> getCards(String sessionId, List<String> hookIds,
+                                            BiConsumer<String, List<Card>> publisher) throws IOException {
+        logger.debug("BEGIN getting cards for session=" + sessionId + ", hookIds=" + hookIds);
+        long start = System.currentTimeMillis();
+
+        Map<String, List<Card>> map = new LinkedHashMap<>();
+
+        PreparedHookRequest request;
+        try {
+            request = prepareHookRequest(sessionId);
+
+        } catch (Exception e) {
+            for (String hookId : hookIds) {
+                List<Card> cards = handleException(sessionId, hookId, e, false);
+                if (publisher != null) publisher.accept(hookId, cards);
+                map.put(hookId, cards);
+            }
+            return map;
+        }
+
+        Map<String, CompletableFuture<List<Card>>> futures = new LinkedHashMap<>();
+        for (String hookId : hookIds) {
+            futures.put(hookId, CompletableFuture.supplyAsync(() -> {
+                try {
+                    List<Card> cards = evaluateHook(sessionId, hookId, request);
+                    if (publisher != null) publisher.accept(hookId, cards);
+                    return cards;
+
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, hookExecutor));
+        }
+
+        try {
+            for (Map.Entry<String, CompletableFuture<List<Card>>> entry : futures.entrySet()) {
+                map.put(entry.getKey(), join(entry.getValue()));
+            }
+
+        } finally {
+            // if any hook failed, skip those that haven't started yet
+            for (CompletableFuture<List<Card>> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+
+        logger.debug("DONE getting cards for session=" + sessionId + ", hookIds=" + hookIds +
+                " (took " + (System.currentTimeMillis() - start) + "ms)");
+
+        return map;
+    }
+
     public List<Card> getCards(String sessionId, String hookId) throws IOException {
-        logger.debug("BEGIN getting cards for session=" + sessionId + ", hookId=" + hookId);
+        PreparedHookRequest request;
+        try {
+            request = prepareHookRequest(sessionId);
 
+        } catch (Exception e) {
+            return handleException(sessionId, hookId, e, false);
+        }
+
+        return evaluateHook(sessionId, hookId, request);
+    }
+
+    private static final String PREFETCH_PLACEHOLDER = "__COACH_PREFETCH__";
+
+    /**
+     * a hook request ready for transmission.  the envelope is rendered ahead of time, but the prefetch, which may be
+     * large, is only ever written directly to the outgoing request
+     */
+    private static final class PreparedHookRequest {
+        private final String head;
+        private final String tail;
+        private final HookRequest hookRequest;
+
+        private PreparedHookRequest(String envelope, HookRequest hookRequest) {
+            int pos = envelope.indexOf(PREFETCH_PLACEHOLDER);
+            if (pos >= 0) {
+                this.head = envelope.substring(0, pos);
+                this.tail = envelope.substring(pos + PREFETCH_PLACEHOLDER.length());
+
+            } else {
+                this.head = envelope;
+                this.tail = "";
+            }
+            this.hookRequest = hookRequest;
+        }
+
+        private boolean isPrefetchModified() {
+            return hookRequest.isPrefetchModified();
+        }
+
+        private void writeTo(Writer writer) throws IOException {
+            writer.write(head);
+            hookRequest.writePrefetch(writer);
+            writer.write(tail);
+        }
+    }
+
+    /**
+     * builds the prefetch and serializes it into a hook request body.  the result is the same for every hook, so
+     * it only needs to be built once per set of recommendations
+     */
+    private PreparedHookRequest prepareHookRequest(String sessionId) throws DataException, IOException {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
         FHIRCredentialsWithClient fcc = workspace.getFhirCredentialsWithClient();
-        Audience audience = workspace.getAudience();
 
         // force Default context when preparing resources for transmission to CQF-Ruler
         DefaultVendorTransformer transformer = new DefaultVendorTransformer(workspace);
 
-        List<Card> cards = new ArrayList<>();
-        boolean prefetchModified = false;
+        CompositeBundle compositeBundle = new CompositeBundle();
+        Patient p = workspace.getPatient().getSourcePatient();
+        compositeBundle.consume(p);
+        compositeBundle.consume(buildBPBundle(sessionId, transformer));
+//        compositeBundle.consume(buildPulseBundle(sessionId, transformer));      // do we care about pulses in recommendations?
+        compositeBundle.consume(buildLocalCounselingBundle(sessionId, p.getId()));
+        compositeBundle.consume(buildGoalsBundle(sessionId, transformer));
+        compositeBundle.consume(buildAdverseEventsBundle(sessionId, p.getId()));
+        compositeBundle.consume(buildConditionsBundle(sessionId, p.getId()));
+        compositeBundle.consume(buildMedicationsBundle(sessionId));
+        compositeBundle.consume(buildNormalizedSmokingObservations(sessionId));
+        compositeBundle.consume(buildNormalizedDrinkingObservations(sessionId));
+        compositeBundle.consume(workspace.getOtherSupplementalResources());
+
+        HookRequest hookRequest = new HookRequest(fcc.getCredentials(), compositeBundle.getBundle(), prefetchFragmentCache);
+
+        // render the envelope around a placeholder, rather than the prefetch itself
+        Map<String, Object> scope = new HashMap<>();
+        scope.put("hookInstanceUUID", hookRequest.getHookInstanceUUID());
+        scope.put("fhirServerURL", hookRequest.getFhirServerURL());
+        scope.put("bearerToken", hookRequest.getBearerToken());
+        scope.put("userId", hookRequest.getUserId());
+        scope.put("patientId", hookRequest.getPatientId());
+        if (hookRequest.hasPrefetch()) {
+            scope.put("prefetch", PREFETCH_PLACEHOLDER);
+        }
 
-        try {
-            CompositeBundle compositeBundle = new CompositeBundle();
-            Patient p = workspace.getPatient().getSourcePatient();
-            compositeBundle.consume(p);
-            compositeBundle.consume(buildBPBundle(sessionId, transformer));
-//            compositeBundle.consume(buildPulseBundle(sessionId, transformer));      // do we care about pulses in recommendations?
-            compositeBundle.consume(buildLocalCounselingBundle(sessionId, p.getId()));
-            compositeBundle.consume(buildGoalsBundle(sessionId, transformer));
-            compositeBundle.consume(buildAdverseEventsBundle(sessionId, p.getId()));
-            compositeBundle.consume(buildConditionsBundle(sessionId, p.getId()));
-            compositeBundle.consume(buildMedicationsBundle(sessionId));
-            compositeBundle.consume(buildNormalizedSmokingObservations(sessionId));
-            compositeBundle.consume(buildNormalizedDrinkingObservations(sessionId));
-            compositeBundle.consume(workspace.getOtherSupplementalResources());
-
-            HookRequest hookRequest = new HookRequest(fcc.getCredentials(), compositeBundle.getBundle());
-
-            prefetchModified = hookRequest.isPrefetchModified();
-
-            MustacheFactory mf = new DefaultMustacheFactory();
-            Mustache mustache = mf.compile("cqfruler/hookRequest.mustache");
+        PreparedHookRequest request = new PreparedHookRequest(
+                mustacheTemplateService.render(MustacheTemplateService.HOOK_REQUEST_TEMPLATE, scope),
+                hookRequest
+        );
+
+        if (logger.isDebugEnabled()) {
             StringWriter writer = new StringWriter();
-            mustache.execute(writer, hookRequest).flush();
+            request.writeTo(writer);
+            logger.debug("hookRequest = " + writer);
+        }
 
-            logger.debug("hookRequest = " + writer.toString());
+        return request;
+    }
+
+    private List<Card> evaluateHook(String sessionId, String hookId, PreparedHookRequest request) throws IOException {
+        logger.debug("BEGIN evaluating hook for session=" + sessionId + ", hookId=" + hookId);
+
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        Audience audience = workspace.getAudience();
+
+        List<Card> cards = new ArrayList<>();
+        boolean prefetchModified = request.isPrefetchModified();
 
+        try {
             Map<String, String> headers = new HashMap<>();
             headers.put("Content-Type", "application/json; charset=UTF-8");
 
@@ -191,7 +444,7 @@ public class RecommendationService extends AbstractService {
 //                }
 
             } else {
-                HttpResponse httpResponse = new HttpRequest().post(cdsHooksEndpointURL + "/" + hookId, null, headers, writer.toString());
+                HttpResponse httpResponse = postHookRequest(hookId, headers, request);
                 code = httpResponse.getResponseCode();
                 body = httpResponse.getResponseBody();
             }
@@ -212,7 +465,7 @@ public class RecommendationService extends AbstractService {
             } else {
                 Gson gson = new GsonBuilder().create();
                 try {
-                    body = MustacheUtil.compileMustache(audience, body);
+                    body = mustacheTemplateService.renderForAudience(audience, body);
                     CDSHookResponse response = gson.fromJson(body, new TypeToken<CDSHookResponse>() {}.getType());
 
                     List<String> filterGoalIds = goalService.getExtGoalIdList(sessionId);
@@ -281,32 +534,87 @@ public class RecommendationService extends AbstractService {
             }
 
         } catch (Exception e) {
-            String msg = "caught " + e.getClass().getName() + " processing hookId=" + hookId + " - " + e.getMessage();
-            logger.error(msg, e);
+            cards.addAll(handleException(sessionId, hookId, e, prefetchModified));
 
-            if (e instanceof IOException) {
-                throw (IOException) e;
+        } finally {
+            logger.debug("DONE evaluating hook for session=" + sessionId + ", hookId=" + hookId);
+        }
 
-            } else {
-                auditService.doAudit(sessionId, AuditSeverity.ERROR, "recommendation exception", "caught " + e.getClass().getSimpleName() +
-                        " processing " + hookId + " - " + e.getMessage());
+        return cards;
+    }
 
-                Card card = showDevErrors ?
-                        new Card(msg, prefetchModified) :
-                        new Card(GENERIC_ERROR_MESSAGE, prefetchModified);
-                cards.add(card);
+    /**
+     * streams the hook request to CQF Ruler, gzip-encoded if so configured.  if CQF Ruler rejects a gzip-encoded
+     * request but accepts the same request uncompressed, requests are sent uncompressed from then on
+     */
+    private HttpResponse postHookRequest(String hookId, Map<String, String> headers, PreparedHookRequest request) throws IOException {
+        String url = cdsHooksEndpointURL + "/" + hookId;
+        HttpEntity entity = new WriterEntity(request::writeTo, ContentType.APPLICATION_JSON);
+
+        if ( ! gzipRequests.get() ) {
+            return new HttpRequest().post(url, null, headers, entity);
+        }
+
+        HttpResponse httpResponse = new HttpRequest().post(url, null, headers, new GzipCompressingEntity(entity));
+        int code = httpResponse.getResponseCode();
+        if (code == 400 || code == 415) {
+            HttpResponse uncompressedResponse = new HttpRequest().post(url, null, headers, entity);
+            int uncompressedCode = uncompressedResponse.getResponseCode();
+            if (uncompressedCode >= 200 && uncompressedCode <= 299) {
+                if (gzipRequests.compareAndSet(true, false)) {
+                    logger.warn("CQF Ruler rejected gzip-encoded hook request with HTTP " + code +
+                            " but accepted it uncompressed - sending hook requests uncompressed from now on");
+                }
+                return uncompressedResponse;
             }
+        }
+        return httpResponse;
+    }
 
-        } finally {
-            logger.debug("DONE getting cards for session=" + sessionId + ", hookId=" + hookId);
+    private List<Card> handleException(String sessionId, String hookId, Exception e, boolean prefetchModified) throws IOException {
+        String msg = "caught " + e.getClass().getName() + " processing hookId=" + hookId + " - " + e.getMessage();
+        logger.error(msg, e);
+
+        if (e instanceof IOException) {
+            throw (IOException) e;
+
+        } else {
+            auditService.doAudit(sessionId, AuditSeverity.ERROR, "recommendation exception", "caught " + e.getClass().getSimpleName() +
+                    " processing " + hookId + " - " + e.getMessage());
+
+            Card card = showDevErrors ?
+                    new Card(msg, prefetchModified) :
+                    new Card(GENERIC_ERROR_MESSAGE, prefetchModified);
+            return new ArrayList<>(List.of(card));
         }
+    }
 
-        return cards;
+    private List<Card> join(CompletableFuture<List<Card>> future) throws IOException {
+        try {
+            return future.join();
+
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${cqfruler.prefetch-cache.stats-log-interval-ms:900000}",
+            initialDelayString = "${cqfruler.prefetch-cache.stats-log-interval-ms:900000}")
+    public void logPrefetchCacheStats() {
+        prefetchFragmentCache.logStats();
     }
 
     public boolean isRunning() {
         try {
-            buildCDSHooks();
+            refreshDiscovery();
             return true;
 
         } catch (IOException e) {
@@ -1,15 +1,21 @@
 package edu.ohsu.cmp.coach.service;
 
 import edu.ohsu.cmp.coach.entity.*;
+import edu.ohsu.cmp.coach.exception.DataException;
 import edu.ohsu.cmp.coach.model.*;
 import edu.ohsu.cmp.coach.model.recommendation.Card;
 import edu.ohsu.cmp.coach.repository.SummaryRepository;
+import edu.ohsu.cmp.coach.workspace.SummarySectionCache;
 import edu.ohsu.cmp.coach.workspace.UserWorkspace;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.util.*;
 
@@ -17,6 +23,13 @@ import java.util.*;
 public class SummaryService extends AbstractService {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    private static final String INSERT_RECOMMENDATION_SQL = "insert into summary_recommendation " +
+            "(summaryId, recommendation, severity, card) values (?, ?, ?, ?)";
+    private static final String INSERT_ONGOING_ADVERSE_EVENT_SQL = "insert into summary_ongoing_adverse_event " +
+            "(summaryId, description, conceptSystem, conceptCode) values (?, ?, ?, ?)";
+    private static final String INSERT_ACTIVE_ANTIHTN_MEDS_SQL = "insert into summary_active_antihtn_meds " +
+            "(summaryId, description, conceptSystem, conceptCode) values (?, ?, ?, ?)";
+
     @Autowired
     private BloodPressureService bpService;
 
@@ -26,33 +39,225 @@ public class SummaryService extends AbstractService {
     @Autowired
     private AdverseEventService adverseEventService;
 
+    @Autowired
+    private HypotensionAdverseEventService hypotensionAdverseEventService;
+
     @Autowired
     private MedicationService medicationService;
 
     @Autowired
     private SummaryRepository repository;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * builds a summary of the current state of this session's patient.  each section is memoized against its inputs
+     * in the workspace's SummarySectionCache, and is only rebuilt once those inputs change
+     */
     public Summary buildSummary(String sessionId) {
         UserWorkspace workspace = userWorkspaceService.get(sessionId);
+        SummarySectionCache sections = workspace.getSummarySections();
 
-        String bpGoal = null;
-        String calculatedAverageBP = null;
-        Boolean bpAtOrBelowGoal = null;
-        String mostRecentBP = null;
-        Date mostRecentBPDate = null;
-        Boolean mostRecentBPInCrisis = null;
-        Boolean mostRecentBPInLowCrisis = null;
-        String secondMostRecentBP = null;
-        Date secondMostRecentBPDate = null;
-        Boolean twoMostRecentBPsInCrisis = null;
-        Boolean twoMostRecentBPsInLowCrisis = null;
-        List<String> notesList = new ArrayList<>();
-
+        BPSection bp;
         try {
-            BloodPressureSummaryModel currentBP = new BloodPressureSummaryModel(bpService.getBloodPressureReadings(sessionId));
             GoalModel currentBPGoal = goalService.getCurrentBPGoal(sessionId);
+            GoalModel bpGoal = currentBPGoal != null && currentBPGoal.isBPGoal() ?
+                    currentBPGoal :
+                    null;
+
+            bp = sections.get(SummaryFingerprint.SECTION_BP, Arrays.asList(
+                    SummarySectionCache.identity(workspace.getBloodPressureTimeline().getSeries()),
+                    bpGoal != null ? bpGoal.getSystolicTarget() : null,
+                    bpGoal != null ? bpGoal.getDiastolicTarget() : null
+            ), () -> {
+                try {
+                    return new BPSection(new BloodPressureSummaryModel(bpService.getBloodPressureSeries(sessionId)), bpGoal);
+
+                } catch (DataException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getName() + " attempting to generate summary - " + e.getMessage(), e);
+            auditService.doAudit(sessionId, AuditSeverity.ERROR, "failed to generate summary", e.getMessage());
+            return null;
+        }
+
+        String notes = bp.notesList.isEmpty() ?
+                null :
+                StringUtils.join(bp.notesList, "; ");
+
+        Summary summary = new Summary(bp.bpGoal, bp.calculatedAverageBP, bp.bpAtOrBelowGoal,
+                bp.mostRecentBP, bp.mostRecentBPDate, bp.mostRecentBPInCrisis, bp.mostRecentBPInLowCrisis,
+                bp.secondMostRecentBP, bp.secondMostRecentBPDate, bp.twoMostRecentBPsInCrisis, bp.twoMostRecentBPsInLowCrisis,
+                notes);
+
+        // card lists are cached per hook, and replaced whenever that hook is re-evaluated
+        Map<String, List<Card>> allCards = workspace.getAllCards();
+        List<Object> cardsKey = new ArrayList<>();
+        for (Map.Entry<String, List<Card>> entry : allCards.entrySet()) {
+            cardsKey.add(entry.getKey());
+            cardsKey.add(SummarySectionCache.identity(entry.getValue()));
+        }
+
+        List<RecommendationRow> recommendationRows = sections.get(SummaryFingerprint.SECTION_RECOMMENDATIONS, cardsKey,
+                () -> buildRecommendationRows(sessionId, allCards));
+
+        Set<SummaryRecommendation> recommendations = new LinkedHashSet<>();
+        for (RecommendationRow row : recommendationRows) {
+            recommendations.add(new SummaryRecommendation(row.recommendation, row.severity, row.card, summary));
+        }
+
+        summary.setRecommendations(recommendations);
+
+        // outcome changes invalidate the workspace's summary sections, see AdverseEventService.setOutcome()
+        List<Object> adverseEventsKey = new ArrayList<>();
+        adverseEventsKey.add(SummarySectionCache.identity(workspace.getRemoteAdverseEvents()));
+        for (HypotensionAdverseEvent hae : hypotensionAdverseEventService.getHypotensionAdverseEventList(sessionId)) {
+            adverseEventsKey.add(hae.getId());
+        }
+
+        List<AdverseEventModel> ongoingAdverseEventModels = sections.get(SummaryFingerprint.SECTION_ADVERSE_EVENTS,
+                adverseEventsKey, () -> {
+                    List<AdverseEventModel> list = new ArrayList<>();
+                    for (AdverseEventModel ae : adverseEventService.getAdverseEvents(sessionId)) {
+                        if (ae.hasOutcome(Outcome.ONGOING)) {
+                            list.add(ae);
+                        }
+                    }
+                    return list;
+                });
+
+        Set<SummaryOngoingAdverseEvent> ongoingAdverseEvents = new LinkedHashSet<>();
+        for (AdverseEventModel ae : ongoingAdverseEventModels) {
+            ongoingAdverseEvents.add(new SummaryOngoingAdverseEvent(ae, summary));
+        }
+
+        summary.setOngoingAdverseEvents(ongoingAdverseEvents);
+
+        List<MedicationModel> activeAntihtnMedModels = sections.get(SummaryFingerprint.SECTION_MEDICATIONS,
+                Collections.singletonList(SummarySectionCache.identity(workspace.getMedications())),
+                () -> medicationService.getAntihypertensiveMedications(sessionId));
+
+        Set<SummaryActiveAntihtnMeds> activeAntihtnMeds = new LinkedHashSet<>();
+        for (MedicationModel mm : activeAntihtnMedModels) {
+            activeAntihtnMeds.add(new SummaryActiveAntihtnMeds(mm, summary));
+        }
+
+        summary.setActiveAntihtnMeds(activeAntihtnMeds);
+
+        return summary;
+    }
+
+    /**
+     * writes summary, unless its content is identical to the last summary written for this session's patient
+     * @return true if summary was written
+     */
+    public boolean createIfChanged(String sessionId, Summary summary) {
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+
+        SummaryFingerprint fingerprint = new SummaryFingerprint(summary);
+        SummaryFingerprint previous = workspace.getLastSummaryFingerprint();
+        String previousValue = previous != null ?
+                previous.getValue() :
+                getLatestFingerprint(workspace.getInternalPatientId());
+
+        if (fingerprint.getValue().equals(previousValue)) {
+            logger.debug("summary unchanged for session=" + sessionId + " (fingerprint=" + fingerprint + ") - not writing");
+            workspace.setLastSummaryFingerprint(fingerprint);
+            return false;
+        }
+
+        if (previous != null) {
+            logger.info("summary changed for session=" + sessionId + " (sections=" + fingerprint.getChangedSections(previous) + ")");
+        }
 
-            if (currentBPGoal != null && currentBPGoal.isBPGoal()) {
+        // the summary and its child rows are written in a single transaction, and the fingerprint is only recorded
+        // once it has committed, so that a failed write can't suppress the writes that follow it.  create() is called
+        // on this, not through the proxy, so its @Transactional doesn't apply here
+        summary.setFingerprint(fingerprint.getValue());
+        transactionTemplate.executeWithoutResult(status -> create(sessionId, summary));
+        workspace.setLastSummaryFingerprint(fingerprint);
+
+        return true;
+    }
+
+    /**
+     * writes summary and its child rows.  child rows are inserted in JDBC batches, one per table, rather than
+     * cascaded individually, which Hibernate cannot batch since their IDs are generated by the database
+     */
+    @Transactional
+    public Summary create(String sessionId, Summary summary) {
+        UserWorkspace workspace = userWorkspaceService.get(sessionId);
+
+        summary.setPatId(workspace.getInternalPatientId());
+        summary.setCreatedDate(new Date());
+
+        Summary saved = repository.save(summary);
+
+        List<Object[]> recommendationRows = new ArrayList<>();
+        if (summary.getRecommendations() != null) {
+            for (SummaryRecommendation sr : summary.getRecommendations()) {
+                recommendationRows.add(new Object[] {
+                        saved.getId(), sr.getRecommendation(),
+                        sr.getSeverity() != null ? sr.getSeverity().name() : null,
+                        sr.getCard()
+                });
+            }
+        }
+        batchInsert(INSERT_RECOMMENDATION_SQL, recommendationRows);
+
+        List<Object[]> adverseEventRows = new ArrayList<>();
+        if (summary.getOngoingAdverseEvents() != null) {
+            for (SummaryOngoingAdverseEvent ae : summary.getOngoingAdverseEvents()) {
+                adverseEventRows.add(new Object[] {
+                        saved.getId(), ae.getDescription(), ae.getConceptSystem(), ae.getConceptCode()
+                });
+            }
+        }
+        batchInsert(INSERT_ONGOING_ADVERSE_EVENT_SQL, adverseEventRows);
+
+        List<Object[]> medicationRows = new ArrayList<>();
+        if (summary.getActiveAntihtnMeds() != null) {
+            for (SummaryActiveAntihtnMeds med : summary.getActiveAntihtnMeds()) {
+                medicationRows.add(new Object[] {
+                        saved.getId(), med.getDescription(), med.getConceptSystem(), med.getConceptCode()
+                });
+            }
+        }
+        batchInsert(INSERT_ACTIVE_ANTIHTN_MEDS_SQL, medicationRows);
+
+        return saved;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * the BP section of a summary, derived from the patient's readings and current BP goal
+     */
+    private static final class BPSection {
+        private String bpGoal = null;
+        private String calculatedAverageBP = null;
+        private Boolean bpAtOrBelowGoal = null;
+        private String mostRecentBP = null;
+        private Date mostRecentBPDate = null;
+        private Boolean mostRecentBPInCrisis = null;
+        private Boolean mostRecentBPInLowCrisis = null;
+        private String secondMostRecentBP = null;
+        private Date secondMostRecentBPDate = null;
+        private Boolean twoMostRecentBPsInCrisis = null;
+        private Boolean twoMostRecentBPsInLowCrisis = null;
+        private final List<String> notesList = new ArrayList<>();
+
+        private BPSection(BloodPressureSummaryModel currentBP, GoalModel currentBPGoal) {
+            if (currentBPGoal != null) {
                 bpGoal = currentBPGoal.getSystolicTarget() + "/" + currentBPGoal.getDiastolicTarget();
             }
 
@@ -60,14 +265,14 @@ public class SummaryService extends AbstractService {
                 calculatedAverageBP = currentBP.getAvgSystolic() + "/" + currentBP.getAvgDiastolic();
             }
 
-            if (currentBP.hasCalculatedAverage() && currentBPGoal != null && currentBPGoal.isBPGoal()) {
+            if (currentBP.hasCalculatedAverage() && currentBPGoal != null) {
                 bpAtOrBelowGoal = currentBP.getAvgSystolic() <= currentBPGoal.getSystolicTarget() &&
                         currentBP.getAvgDiastolic() <= currentBPGoal.getDiastolicTarget();
 
             } else if ( ! currentBP.hasCalculatedAverage() ) {
                 notesList.add("insufficient readings to calculate average BP");
 
-            } else if (currentBPGoal == null || ! currentBPGoal.isBPGoal()) {
+            } else {
                 notesList.add("no current BP goal");
             }
 
@@ -110,32 +315,30 @@ public class SummaryService extends AbstractService {
                     twoMostRecentBPsInLowCrisis = false;
                 }
             }
-
-        } catch (Exception e) {
-            logger.error("caught " + e.getClass().getName() + " attempting to generate summary - " + e.getMessage(), e);
-            auditService.doAudit(sessionId, AuditSeverity.ERROR, "failed to generate summary", e.getMessage());
-            return null;
         }
+    }
 
-        String notes = notesList.isEmpty() ?
-                null :
-                StringUtils.join(notesList, "; ");
+    private static final class RecommendationRow {
+        private final String recommendation;
+        private final RecommendationSeverity severity;
+        private final String card;
 
-        Summary summary = new Summary(bpGoal, calculatedAverageBP, bpAtOrBelowGoal,
-                mostRecentBP, mostRecentBPDate, mostRecentBPInCrisis, mostRecentBPInLowCrisis,
-                secondMostRecentBP, secondMostRecentBPDate, twoMostRecentBPsInCrisis, twoMostRecentBPsInLowCrisis,
-                notes);
+        private RecommendationRow(String recommendation, RecommendationSeverity severity, String card) {
+            this.recommendation = recommendation;
+            this.severity = severity;
+            this.card = card;
+        }
+    }
 
-        Set<SummaryRecommendation> recommendations = new LinkedHashSet<>();
-        for (Map.Entry<String, List<Card>> entry : workspace.getAllCards().entrySet()) {
+    private List<RecommendationRow> buildRecommendationRows(String sessionId, Map<String, List<Card>> allCards) {
+        List<RecommendationRow> list = new ArrayList<>();
+        for (Map.Entry<String, List<Card>> entry : allCards.entrySet()) {
             String recommendation = entry.getKey();
             for (Card card : entry.getValue()) {
                 try {
-                    SummaryRecommendation sr = new SummaryRecommendation(recommendation,
+                    list.add(new RecommendationRow(recommendation,
                             RecommendationSeverity.fromIndicator(card.getIndicator()),
-                            card.getSummary(),
-                            summary);
-                    recommendations.add(sr);
+                            card.getSummary()));
 
                 } catch (Exception e) {
                     logger.error("caught " + e.getClass().getName() +
@@ -145,34 +348,19 @@ public class SummaryService extends AbstractService {
                 }
             }
         }
-
-        summary.setRecommendations(recommendations);
-
-        Set<SummaryOngoingAdverseEvent> ongoingAdverseEvents = new LinkedHashSet<>();
-        for (AdverseEventModel ae : adverseEventService.getAdverseEvents(sessionId)) {
-            if (ae.hasOutcome(Outcome.ONGOING)) {
-                ongoingAdverseEvents.add(new SummaryOngoingAdverseEvent(ae, summary));
-            }
-        }
-
-        summary.setOngoingAdverseEvents(ongoingAdverseEvents);
-
-        Set<SummaryActiveAntihtnMeds> activeAntihtnMeds = new LinkedHashSet<>();
-        for (MedicationModel mm : medicationService.getAntihypertensiveMedications(sessionId)) {
-            activeAntihtnMeds.add(new SummaryActiveAntihtnMeds(mm, summary));
-        }
-
-        summary.setActiveAntihtnMeds(activeAntihtnMeds);
-
-        return summary;
+        return list;
     }
 
-    public Summary create(String sessionId, Summary summary) {
-        UserWorkspace workspace = userWorkspaceService.get(sessionId);
-
-        summary.setPatId(workspace.getInternalPatientId());
-        summary.setCreatedDate(new Date());
+    private String getLatestFingerprint(Long patId) {
+        List<String> list = repository.findFingerprintsByPatId(patId, PageRequest.of(0, 1));
+        return list.isEmpty() ?
+                null :
+                list.get(0);
+    }
 
-        return repository.save(summary);
+    private void batchInsert(String sql, List<Object[]> rows) {
+        if ( ! rows.isEmpty() ) {
+            jdbcTemplate.batchUpdate(sql, rows);
+        }
     }
 }
@@ -24,7 +24,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -38,7 +37,7 @@ import java.util.regex.Pattern;
 @Service
 public class VSACService {
     private static final String API_KEY_URL = "https://utslogin.nlm.nih.gov/cas/v1/api-key";
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
     private static final Pattern SERVICE_TICKET_URI_PATTERN = Pattern.compile("<form\\s+action=\"([^\"]+)\"");
 
 
@@ -47,7 +46,8 @@ public class VSACService {
     @Value("${vsac.api-key}")
     private String apiKey;
 
-    private String serviceTicketURI = null;
+    // shared by concurrent ValueSet requests; renewed at most once per expiry, see getServiceTicketURI
+    private volatile String serviceTicketURI = null;
 
     public boolean isVSACEnabled() {
         return UUIDUtil.isUUID(apiKey);
@@ -103,7 +103,7 @@ public class VSACService {
                 null;
 
         Date revisionDate = xmlValueSet.hasChildren("ns0:RevisionDate") ?
-                DATE_FORMAT.parse(xmlValueSet.getChildren("ns0:RevisionDate").get(0).getText()) :
+                new SimpleDateFormat(DATE_FORMAT).parse(xmlValueSet.getChildren("ns0:RevisionDate").get(0).getText()) :
                 null;
 
         ValueSet valueSet = new ValueSet(
@@ -153,12 +153,13 @@ public class VSACService {
      * @throws HttpException
      */
     private String getServiceTicket() throws IOException, DataException {
-        HttpResponse response = doGetServiceTicketRequest();
+        String uri = getServiceTicketURI(null);
+        HttpResponse response = doGetServiceTicketRequest(uri);
 
         if (response.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
             logger.warn("received UNAUTHORIZED response getting Service Ticket - reattempting with fresh CAS ticket -");
-            serviceTicketURI = null;
-            response = doGetServiceTicketRequest();
+            uri = getServiceTicketURI(uri);
+            response = doGetServiceTicketRequest(uri);
         }
 
         if (response.getResponseCode() == HttpURLConnection.HTTP_OK) {
@@ -169,11 +170,19 @@ public class VSACService {
         }
     }
 
-    private HttpResponse doGetServiceTicketRequest() throws IOException, DataException {
-        if (serviceTicketURI == null) {
+    /**
+     * @param staleURI a Service Ticket URI that has been rejected, or null
+     * @return the current Service Ticket URI, acquiring a new one if there isn't one or if it's staleURI.  threads
+     * that find the same URI rejected at the same time will only acquire one new URI between them
+     */
+    private synchronized String getServiceTicketURI(String staleURI) throws IOException, DataException {
+        if (serviceTicketURI == null || serviceTicketURI.equals(staleURI)) {
             serviceTicketURI = getNewServiceTicketURI();
         }
+        return serviceTicketURI;
+    }
 
+    private HttpResponse doGetServiceTicketRequest(String serviceTicketURI) throws IOException, DataException {
         Map<String, String> requestHeaders = new LinkedHashMap<>();
         requestHeaders.put("Content-Type", "application/x-www-form-urlencoded");
 
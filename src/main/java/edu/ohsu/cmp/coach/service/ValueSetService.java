@@ -3,9 +3,11 @@ package edu.ohsu.cmp.coach.service;
 import edu.ohsu.cmp.coach.entity.Concept;
 import edu.ohsu.cmp.coach.entity.ValueSet;
 import edu.ohsu.cmp.coach.repository.ValueSetRepository;
+import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -14,10 +16,14 @@ import java.util.*;
 @Service
 @Transactional
 public class ValueSetService extends AbstractService {
-    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private static final String INSERT_CONCEPT_SQL = "insert into vsac_concept " +
+            "(code, codeSystem, codeSystemName, codeSystemVersion, displayName) values (?, ?, ?, ?, ?)";
+    private static final String INSERT_VALUESET_CONCEPT_SQL = "insert into vsac_valueset_concept " +
+            "(valueSetId, conceptId) values (?, ?)";
+    private static final String DELETE_VALUESET_CONCEPT_SQL = "delete from vsac_valueset_concept " +
+            "where valueSetId = ? and conceptId = ?";
 
-    @Autowired
-    private VSACService vsacService;
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     @Autowired
     private ConceptService conceptService;
@@ -25,41 +31,127 @@ public class ValueSetService extends AbstractService {
     @Autowired
     private ValueSetRepository repository;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
     public ValueSet getValueSet(String oid) {
         return repository.findOneByOid(oid);
     }
 
-    public void refresh(String oid) {
-        try {
-            logger.info("acquiring ValueSet with oid=" + oid + " from VSAC");
-            ValueSet fresh = vsacService.getValueSet(oid);
-            if (fresh == null) return;
+    /**
+     * stores a ValueSet as acquired from VSAC.  existing concepts are resolved with one query, new concepts and
+     * changes to the ValueSet's membership are written in JDBC batches, and nothing is written at all if the stored
+     * ValueSet already has the same version, revision date and concept count
+     * @return true if anything was written
+     */
+    public boolean store(ValueSet fresh) {
+        String oid = fresh.getOid();
 
-            // update incoming ValueSet concepts to reference existing persistence records if they exist
-            Set<Concept> concepts = new LinkedHashSet<>();
+        // dedupe incoming concepts by key
+        Map<String, Concept> incoming = new LinkedHashMap<>();
+        if (fresh.getConcepts() != null) {
             for (Concept c : fresh.getConcepts()) {
-                Concept existingConcept = conceptService.getConcept(c.getCode(), c.getCodeSystem(), c.getCodeSystemVersion());
-                if (existingConcept != null) {
-                    concepts.add(existingConcept);
-                } else {
-                    concepts.add(c);
+                incoming.put(c.getKey(), c);
+            }
+        }
+
+        ValueSet existing = getValueSet(oid);
+        if (existing != null && isUnchanged(existing, fresh, incoming.size())) {
+            logger.info("ValueSet with oid=" + oid + " is unchanged (version=" + fresh.getVersion() +
+                    ", revisionDate=" + fresh.getRevisionDate() + ") - not updating");
+            return false;
+        }
+
+        Set<String> codeSystems = new HashSet<>();
+        for (Concept c : incoming.values()) {
+            codeSystems.add(c.getCodeSystem());
+        }
+
+        // resolve concepts that already exist, updating any whose names have changed, and insert the rest
+        Map<String, Concept> stored = conceptService.getConceptsByCodeSystems(codeSystems);
+        List<Object[]> conceptRows = new ArrayList<>();
+        for (Concept c : incoming.values()) {
+            Concept storedConcept = stored.get(c.getKey());
+            if (storedConcept == null) {
+                conceptRows.add(new Object[] {
+                        c.getCode(), c.getCodeSystem(), c.getCodeSystemName(), c.getCodeSystemVersion(), c.getDisplayName()
+                });
+
+            } else if ( ! Objects.equals(storedConcept.getCodeSystemName(), c.getCodeSystemName()) ||
+                    ! Objects.equals(storedConcept.getDisplayName(), c.getDisplayName()) ) {
+                storedConcept.update(c);
+            }
+        }
+
+        if ( ! conceptRows.isEmpty() ) {
+            logger.info("inserting " + conceptRows.size() + " new Concepts for ValueSet with oid=" + oid);
+            jdbcTemplate.batchUpdate(INSERT_CONCEPT_SQL, conceptRows);
+            stored = conceptService.getConceptsByCodeSystems(codeSystems);
+        }
+
+        Set<Long> conceptIds = new LinkedHashSet<>();
+        for (String key : incoming.keySet()) {
+            conceptIds.add(stored.get(key).getId());
+        }
+
+        Set<Long> existingConceptIds = new HashSet<>();
+        ValueSet valueSet;
+        if (existing != null) {
+            logger.info("updating existing ValueSet with oid=" + oid);
+            if (existing.getConcepts() != null) {
+                for (Concept c : existing.getConcepts()) {
+                    existingConceptIds.add(c.getId());
                 }
             }
-            fresh.setConcepts(concepts);
+            existing.updateMetadata(fresh);
+            valueSet = repository.save(existing);
 
-            ValueSet existing = getValueSet(oid);
-            if (existing != null) {
-                logger.info("updating existing ValueSet with oid=" + oid);
-                existing.update(fresh);
-                repository.save(existing);
+        } else {
+            logger.info("creating new ValueSet with oid=" + oid);
+            fresh.setConcepts(new LinkedHashSet<>());
+            valueSet = repository.save(fresh);
+        }
+
+        // apply membership changes to the join table directly, rather than by rewriting the mapped collection
+        List<Object[]> deleteRows = new ArrayList<>();
+        for (Long conceptId : existingConceptIds) {
+            if ( ! conceptIds.contains(conceptId) ) {
+                deleteRows.add(new Object[] { valueSet.getId(), conceptId });
+            }
+        }
 
-            } else {
-                logger.info("creating new ValueSet with oid=" + oid);
-                repository.save(fresh);
+        List<Object[]> insertRows = new ArrayList<>();
+        for (Long conceptId : conceptIds) {
+            if ( ! existingConceptIds.contains(conceptId) ) {
+                insertRows.add(new Object[] { valueSet.getId(), conceptId });
             }
+        }
+
+        repository.flush();
+        if ( ! deleteRows.isEmpty() ) jdbcTemplate.batchUpdate(DELETE_VALUESET_CONCEPT_SQL, deleteRows);
+        if ( ! insertRows.isEmpty() ) jdbcTemplate.batchUpdate(INSERT_VALUESET_CONCEPT_SQL, insertRows);
+
+        logger.info("stored ValueSet with oid=" + oid + " - " + conceptIds.size() + " concepts (" +
+                insertRows.size() + " added, " + deleteRows.size() + " removed)");
+
+        return true;
+    }
+
+    private boolean isUnchanged(ValueSet existing, ValueSet fresh, int freshConceptCount) {
+        if ( ! Objects.equals(existing.getVersion(), fresh.getVersion()) ) return false;
 
-        } catch (Exception e) {
-            logger.error("caught " + e.getClass().getName() + " refreshing ValueSet with oid=" + oid, e);
+        Date a = existing.getRevisionDate();
+        Date b = fresh.getRevisionDate();
+        if (a == null || b == null) {
+            if (a != null || b != null) return false;
+        } else if ( ! DateUtils.isSameDay(a, b) ) {
+            return false;
         }
+
+        int existingConceptCount = existing.getConcepts() != null ?
+                existing.getConcepts().size() :
+                0;
+
+        return existingConceptCount == freshConceptCount;
     }
 }
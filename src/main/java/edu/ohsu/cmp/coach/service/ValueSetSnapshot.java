@@ -0,0 +1,167 @@
+package edu.ohsu.cmp.coach.service;
+
+import com.google.gson.Gson;
+import edu.ohsu.cmp.coach.entity.Concept;
+import edu.ohsu.cmp.coach.entity.ValueSet;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A local copy of the last good expansion of a group of ValueSets, kept so that medications can be classified as soon
+ * as the application starts, before ValueSets have been refreshed from VSAC.  The snapshot is an NDJSON file with one
+ * ValueSet per line, keyed by OID.  It's replaced atomically, so a partially written snapshot is never read.
+ */
+@Component
+public class ValueSetSnapshot {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final class SnapshotValueSet {
+        private String oid;
+        private String displayName;
+        private String version;
+        private Long revisionDate;
+        private List<SnapshotConcept> concepts;
+    }
+
+    private static final class SnapshotConcept {
+        private String code;
+        private String codeSystem;
+        private String codeSystemName;
+        private String codeSystemVersion;
+        private String displayName;
+    }
+
+    private final Path path;
+    private final Gson gson = new Gson();
+
+    public ValueSetSnapshot(@Value("${vsac.snapshot.file:vsac-snapshot.ndjson}") String file) {
+        this.path = StringUtils.isNotBlank(file) ?
+                Paths.get(file).toAbsolutePath() :
+                null;
+    }
+
+    public boolean isEnabled() {
+        return path != null;
+    }
+
+    /**
+     * @return the ValueSets in the snapshot, keyed by OID, or null if there is no snapshot or it can't be read.  the
+     * returned ValueSets are not persistent
+     */
+    public Map<String, ValueSet> read() {
+        if (path == null || ! Files.isRegularFile(path)) return null;
+
+        Map<String, ValueSet> map = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (StringUtils.isBlank(line)) continue;
+
+                SnapshotValueSet svs = gson.fromJson(line, SnapshotValueSet.class);
+                ValueSet valueSet = new ValueSet(svs.oid, svs.displayName, svs.version, null, null, null, null, null,
+                        svs.revisionDate != null ? new Date(svs.revisionDate) : null);
+
+                Set<Concept> concepts = new LinkedHashSet<>();
+                if (svs.concepts != null) {
+                    for (SnapshotConcept sc : svs.concepts) {
+                        concepts.add(new Concept(sc.code, sc.codeSystem, sc.codeSystemName, sc.codeSystemVersion, sc.displayName));
+                    }
+                }
+                valueSet.setConcepts(concepts);
+
+                map.put(valueSet.getOid(), valueSet);
+            }
+            return map;
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getName() + " reading ValueSet snapshot " + path + " - " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * replaces the snapshot with valueSets
+     */
+    public void write(Collection<ValueSet> valueSets) {
+        if (path == null) return;
+
+        try {
+            Path dir = path.getParent();
+            if (dir != null) Files.createDirectories(dir);
+
+            Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+            try {
+                try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    for (ValueSet valueSet : valueSets) {
+                        SnapshotValueSet svs = new SnapshotValueSet();
+                        svs.oid = valueSet.getOid();
+                        svs.displayName = valueSet.getDisplayName();
+                        svs.version = valueSet.getVersion();
+                        svs.revisionDate = valueSet.getRevisionDate() != null ?
+                                valueSet.getRevisionDate().getTime() :
+                                null;
+                        svs.concepts = new ArrayList<>();
+                        if (valueSet.getConcepts() != null) {
+                            for (Concept c : valueSet.getConcepts()) {
+                                SnapshotConcept sc = new SnapshotConcept();
+                                sc.code = c.getCode();
+                                sc.codeSystem = c.getCodeSystem();
+                                sc.codeSystemName = c.getCodeSystemName();
+                                sc.codeSystemVersion = c.getCodeSystemVersion();
+                                sc.displayName = c.getDisplayName();
+                                svs.concepts.add(sc);
+                            }
+                        }
+
+                        writer.write(gson.toJson(svs));
+                        writer.newLine();
+                    }
+                }
+
+                try {
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+
+            logger.info("wrote ValueSet snapshot " + path + " (" + valueSets.size() + " ValueSets)");
+
+        } catch (IOException e) {
+            logger.error("caught " + e.getClass().getName() + " writing ValueSet snapshot " + path + " - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the time the snapshot was last written, or null if there is no snapshot
+     */
+    public Date getLastWritten() {
+        if (path == null || ! Files.isRegularFile(path)) return null;
+        try {
+            return new Date(Files.getLastModifiedTime(path).toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ValueSetSnapshot{" +
+                "path=" + path +
+                ", lastWritten=" + getLastWritten() +
+                '}';
+    }
+}
@@ -0,0 +1,261 @@
+package edu.ohsu.cmp.coach.service;
+
+import edu.ohsu.cmp.coach.fhir.BundleIndex;
+import edu.ohsu.cmp.coach.fhir.FhirStrategy;
+import edu.ohsu.cmp.coach.fhir.transform.VendorTransformer;
+import edu.ohsu.cmp.coach.model.*;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import edu.ohsu.cmp.coach.util.UUIDUtil;
+import edu.ohsu.cmp.coach.workspace.UserWorkspace;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Builds the outgoing Bundles with which vitals readings are written to the EHR, and writes them.  Readings are
+ * written in the background by the writeback outbox, which persists each reading's Bundle until it's been written.
+ * Readings written together are written in a single Bundle, so that resources they share (e.g. the Encounter and
+ * protocol Observation created for readings taken at the same time) are only written once.
+ */
+@Service
+public class VitalsWritebackService extends AbstractService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${fhir.bp-writeback-strategy}")
+    private FhirStrategy bpWritebackStrategy;
+
+    @Value("${fhir.pulse-writeback-strategy}")
+    private FhirStrategy pulseWritebackStrategy;
+
+    @Value("${fhir.writeback.max-batch-size:20}")
+    private int maxBatchSize;
+
+    /**
+     * @return the writeback for bpm, or null if BP writeback is disabled or bpm couldn't be transformed
+     */
+    public PendingWriteback prepare(String sessionId, BloodPressureModel bpm) {
+        if (bpWritebackStrategy == FhirStrategy.DISABLED) return null;
+
+        String description = bpm.getSystolic() + "/" + bpm.getDiastolic() + " at " + bpm.getReadingDateString();
+        try {
+            VendorTransformer transformer = userWorkspaceService.get(sessionId).getVendorTransformer();
+            Bundle bundle = transformer.transformOutgoingBloodPressureReading(bpm);
+            return new PendingWriteback(buildIdempotencyKey(sessionId, transformer, bundle, description), PendingWriteback.Type.BP,
+                    bpWritebackStrategy, bundle, description);
+
+        } catch (Exception e) {
+            logFailure(sessionId, PendingWriteback.Type.BP, description, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the writeback for pm, or null if pulse writeback is disabled or pm couldn't be transformed
+     */
+    public PendingWriteback prepare(String sessionId, PulseModel pm) {
+        if (pulseWritebackStrategy == FhirStrategy.DISABLED) return null;
+
+        String description = pm.getPulse() + " at " + pm.getReadingDateString();
+        try {
+            VendorTransformer transformer = userWorkspaceService.get(sessionId).getVendorTransformer();
+            Bundle bundle = transformer.transformOutgoingPulseReading(pm);
+            return new PendingWriteback(buildIdempotencyKey(sessionId, transformer, bundle, description), PendingWriteback.Type.PULSE,
+                    pulseWritebackStrategy, bundle, description);
+
+        } catch (Exception e) {
+            logFailure(sessionId, PendingWriteback.Type.PULSE, description, e);
+            return null;
+        }
+    }
+
+    /**
+     * sets the Encounter and protocol Observation that will be written for pending on model, if model doesn't
+     * already have them, so that readings created with them are associated with the same Encounter when written
+     */
+    public void shareResources(PendingWriteback pending, AbstractVitalsModel model) {
+        for (Bundle.BundleEntryComponent entry : pending.getBundle().getEntry()) {
+            Resource r = entry.getResource();
+            if (r instanceof Encounter && model.getSourceEncounter() == null) {
+                model.setSourceEncounter((Encounter) r);
+
+            } else if (r instanceof Observation && model.getSourceProtocolObservation() == null &&
+                    FhirUtil.hasCoding(((Observation) r).getCode(), fcm.getProtocolCoding())) {
+                model.setSourceProtocolObservation((Observation) r);
+            }
+        }
+    }
+
+    /**
+     * @return the maximum number of readings to write at once, which is the lesser of the configured maximum and the
+     * maximum that transformer supports
+     */
+    public int getBatchSize(VendorTransformer transformer) {
+        return Math.max(1, Math.min(maxBatchSize, transformer.getMaxWritebackBatchSize()));
+    }
+
+    /**
+     * writes batch to the EHR, combining readings that use the same strategy into a single Bundle, and adds the
+     * readings created to the workspace's remote vitals.  if a combined Bundle can't be written, its readings are
+     * retried individually, so that one bad reading doesn't prevent the others from being written.  remote errors
+     * are tolerable, since readings are always stored locally too, so they're logged and audited rather than thrown
+     * @return the readings that couldn't be written, mapped to the reason why
+     */
+    public Map<PendingWriteback, Exception> write(String sessionId, List<PendingWriteback> batch) {
+        Map<FhirStrategy, List<PendingWriteback>> map = new LinkedHashMap<>();
+        for (PendingWriteback pending : batch) {
+            map.computeIfAbsent(pending.getStrategy(), k -> new ArrayList<>()).add(pending);
+        }
+
+        Map<PendingWriteback, Exception> failures = new LinkedHashMap<>();
+        for (Map.Entry<FhirStrategy, List<PendingWriteback>> entry : map.entrySet()) {
+            FhirStrategy strategy = entry.getKey();
+            List<PendingWriteback> list = entry.getValue();
+            Exception e = write(sessionId, strategy, list);
+            if (e != null) {
+                if (list.size() > 1) {
+                    logger.info("retrying writeback of " + list.size() + " readings individually for session=" + sessionId);
+                    for (PendingWriteback pending : list) {
+                        Exception e2 = write(sessionId, strategy, List.of(pending));
+                        if (e2 != null) failures.put(pending, e2);
+                    }
+
+                } else {
+                    failures.put(list.get(0), e);
+                }
+            }
+        }
+
+        return failures;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * @return the key that identifies bundle's reading, so that it's written only once however many times it's
+     * attempted.  if the reading can't be identified, a random key is used, which doesn't prevent the reading from
+     * being enqueued more than once; this is logged and audited
+     */
+    private String buildIdempotencyKey(String sessionId, VendorTransformer transformer, Bundle bundle, String description) {
+        String key = transformer.getWritebackIdempotencyKey(bundle);
+        if (key != null) return key;
+
+        key = UUIDUtil.getRandomUUID();
+        logger.warn("couldn't determine idempotency key for writeback of " + description + " for session=" +
+                sessionId + " - using random key " + key + " - this reading won't be deduplicated");
+        auditService.doAudit(sessionId, AuditSeverity.WARN, "writeback not deduplicated",
+                "reading=" + description + ", key=" + key);
+        return key;
+    }
+
+    /**
+     * @return null if list was written, otherwise the Exception that prevented it
+     */
+    private Exception write(String sessionId, FhirStrategy strategy, List<PendingWriteback> list) {
+        long start = System.currentTimeMillis();
+        logger.info("attempting writeback of " + list.size() + " reading(s) using strategy " + strategy +
+                " for session=" + sessionId);
+
+        try {
+            UserWorkspace workspace = userWorkspaceService.get(sessionId);
+            VendorTransformer transformer = workspace.getVendorTransformer();
+            Bundle responseBundle = transformer.writeRemote(sessionId, strategy, fhirService, combine(list));
+
+            boolean hasBPs = false;
+            boolean hasPulses = false;
+            for (PendingWriteback pending : list) {
+                if (pending.getType() == PendingWriteback.Type.BP) hasBPs = true;
+                else if (pending.getType() == PendingWriteback.Type.PULSE) hasPulses = true;
+            }
+
+            try {
+                if (responseBundle != null && (hasBPs || hasPulses)) {
+                    BundleIndex index = transformer.buildBundleIndex(responseBundle);
+                    if (hasBPs) {
+                        workspace.addRemoteBloodPressures(transformer.transformIncomingBloodPressureReadings(index));
+                    }
+                    if (hasPulses) {
+                        workspace.addRemotePulses(transformer.transformIncomingPulseReadings(index));
+                    }
+                }
+
+            } catch (Exception e) {
+                // the readings were written, so mustn't be retried.  the remote vitals will be rebuilt instead
+                logger.warn("caught " + e.getClass().getSimpleName() + " processing writeback response for session=" +
+                        sessionId + " - clearing vitals caches - " + e.getMessage(), e);
+                workspace.clearVitalsCaches();
+            }
+
+            for (PendingWriteback pending : list) {
+                String event = pending.getType() == PendingWriteback.Type.BP ?
+                        "wrote BP remotely" :
+                        "wrote pulse remotely";
+                auditService.doAudit(sessionId, AuditSeverity.INFO, event, pending.getDescription());
+            }
+
+            logger.info("wrote " + list.size() + " reading(s) remotely for session=" + sessionId +
+                    " (took " + (System.currentTimeMillis() - start) + "ms)");
+
+            return null;
+
+        } catch (Exception e) {
+            if (list.size() > 1) {
+                logger.warn("caught " + e.getClass().getSimpleName() + " attempting to write " + list.size() +
+                        " readings remotely for session=" + sessionId + " - " + e.getMessage(), e);
+
+            } else {
+                PendingWriteback pending = list.get(0);
+                logFailure(sessionId, pending.getType(), pending.getDescription(), e);
+            }
+            return e;
+        }
+    }
+
+    /**
+     * @return a Bundle containing the resources in each of list's Bundles.  resources that appear in more than one
+     * (i.e. that are shared by more than one reading) are included only once
+     */
+    private Bundle combine(List<PendingWriteback> list) {
+        if (list.size() == 1) return list.get(0).getBundle();
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+
+        Set<String> fullUrls = new HashSet<>();
+        for (PendingWriteback pending : list) {
+            for (Bundle.BundleEntryComponent entry : pending.getBundle().getEntry()) {
+                if ( ! entry.hasFullUrl() || fullUrls.add(entry.getFullUrl()) ) {
+                    bundle.addEntry(entry);
+                }
+            }
+        }
+
+        return bundle;
+    }
+
+    private void logFailure(String sessionId, PendingWriteback.Type type, String description, Exception e) {
+        // remote errors are tolerable, since we will always store locally too
+        if (type == PendingWriteback.Type.BP) {
+            logger.warn("caught " + e.getClass().getSimpleName() + " attempting to create BP remotely - " +
+                    "BP=" + description + ", message=" + e.getMessage(), e);
+
+            auditService.doAudit(sessionId, AuditSeverity.WARN, "failed to write BP remotely", "BP=" +
+                    description + ", message=" + e.getMessage());
+
+        } else if (type == PendingWriteback.Type.PULSE) {
+            logger.warn("caught " + e.getClass().getSimpleName() + " attempting to create Pulse remotely - " +
+                    "pulse=" + description + ", message=" + e.getMessage(), e);
+
+            auditService.doAudit(sessionId, AuditSeverity.WARN, "failed to write pulse remotely",
+                    "pulse=" + description + ", message=" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package edu.ohsu.cmp.coach.service;
+
+import ca.uhn.fhir.parser.IParser;
+import edu.ohsu.cmp.coach.entity.WritebackOutboxEntry;
+import edu.ohsu.cmp.coach.model.*;
+import edu.ohsu.cmp.coach.repository.WritebackOutboxRepository;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import edu.ohsu.cmp.coach.workspace.UserWorkspace;
+import edu.ohsu.cmp.coach.workspace.UserWorkspaceService;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists vitals readings waiting to be written to the EHR, and writes them in the background.  A reading's outgoing
+ * Bundle is stored in the writeback_outbox table when the reading is created, so that readings that haven't been
+ * written yet survive a restart.  Entries are written shortly after they're enqueued, and otherwise by a poller that
+ * picks up entries that are due, on a fixed-size pool of dispatch threads.  A patient's entries are only ever written
+ * by one thread at a time, in the order they were enqueued.
+ * <p>
+ * Writing requires the patient's FHIR credentials, which are only available while the patient has a session, so
+ * entries for patients without one wait until they next log in.  Each entry carries an idempotency key, derived from
+ * its reading's UUID.  Where the vendor transformer creates resources conditionally on it (see
+ * VendorTransformer.isWritebackIdempotent()), an entry written more than once only creates its resources once, and
+ * entries that can't be written are retried with exponential backoff, and are marked FAILED after max-attempts
+ * attempts.  Otherwise, entries are attempted at most once: each is marked FAILED before it's written, and deleted
+ * if the write succeeds, so that neither a partial failure nor a failure to delete the entry can cause its resources
+ * to be created again.  FAILED entries are retained until they're replayed.
+ * <p>
+ * Entries are enqueued in the caller's transaction, if there is one, so that a reading and its entry are stored
+ * together or not at all.
+ */
+@Component
+public class WritebackOutbox {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String URN_UUID = "urn:uuid:";
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    @Autowired
+    private WritebackOutboxRepository repository;
+
+    @Autowired
+    private VitalsWritebackService vitalsWritebackService;
+
+    @Autowired
+    private UserWorkspaceService userWorkspaceService;
+
+    @Autowired
+    private AuditService auditService;
+
+    private final long lingerMillis;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService dispatcher;
+
+    private final Set<Long> active = ConcurrentHashMap.newKeySet();
+    private final Set<Long> rerun = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dispatches = new AtomicLong();
+
+    public WritebackOutbox(@Value("${fhir.writeback.linger-ms:100}") long lingerMillis,
+                           @Value("${fhir.writeback.dispatch-concurrency:4}") int dispatchConcurrency,
+                           @Value("${fhir.writeback.poll-interval-ms:5000}") long pollIntervalMillis,
+                           @Value("${fhir.writeback.retry.initial-delay-ms:30000}") long initialDelayMillis,
+                           @Value("${fhir.writeback.retry.max-delay-ms:3600000}") long maxDelayMillis,
+                           @Value("${fhir.writeback.retry.max-attempts:10}") int maxAttempts) {
+        this.lingerMillis = lingerMillis;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+
+        AtomicInteger schedulerThreadCounter = new AtomicInteger();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "writeback-scheduler-" + schedulerThreadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        AtomicInteger dispatchThreadCounter = new AtomicInteger();
+        dispatcher = Executors.newFixedThreadPool(Math.max(1, dispatchConcurrency), r -> {
+            Thread t = new Thread(r, "writeback-dispatch-" + dispatchThreadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        scheduler.scheduleWithFixedDelay(this::poll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        // anything not yet written remains in the outbox, and will be written after restart
+        scheduler.shutdownNow();
+        dispatcher.shutdownNow();
+        logStats();
+    }
+
+    /**
+     * enqueues bpm to be written to the EHR, if BP writeback is enabled
+     * @return the enqueued writeback, or null if bpm won't be written remotely
+     */
+    @Transactional
+    public PendingWriteback enqueue(String sessionId, BloodPressureModel bpm) {
+        PendingWriteback pending = vitalsWritebackService.prepare(sessionId, bpm);
+        if (pending != null) {
+            persist(sessionId, List.of(pending));
+        }
+        return pending;
+    }
+
+    /**
+     * enqueues pm to be written to the EHR, if pulse writeback is enabled
+     * @return the enqueued writeback, or null if pm won't be written remotely
+     */
+    @Transactional
+    public PendingWriteback enqueue(String sessionId, PulseModel pm) {
+        PendingWriteback pending = vitalsWritebackService.prepare(sessionId, pm);
+        if (pending != null) {
+            persist(sessionId, List.of(pending));
+        }
+        return pending;
+    }
+
+    @Transactional
+    public void enqueueAll(String sessionId, List<BloodPressureModel> bpList, List<PulseModel> pulseList) {
+        List<PendingWriteback> list = new ArrayList<>();
+        for (BloodPressureModel bpm : bpList) {
+            PendingWriteback pending = vitalsWritebackService.prepare(sessionId, bpm);
+            if (pending != null) list.add(pending);
+        }
+        for (PulseModel pm : pulseList) {
+            PendingWriteback pending = vitalsWritebackService.prepare(sessionId, pm);
+            if (pending != null) list.add(pending);
+        }
+
+        if ( ! list.isEmpty() ) {
+            persist(sessionId, list);
+        }
+    }
+
+    /**
+     * makes all of the session patient's entries, including FAILED ones, due for immediate writing, and writes them.
+     * where writes aren't idempotent, resources written by an earlier, partially successful attempt will be created
+     * again
+     * @return the number of entries replayed
+     */
+    public int replay(String sessionId) {
+        Long patId = userWorkspaceService.get(sessionId).getInternalPatientId();
+        int count = repository.resetAllByPatId(patId, WritebackOutboxStatus.PENDING, new Date());
+
+        logger.info("replaying " + count + " writeback outbox entries for session=" + sessionId);
+        auditService.doAudit(sessionId, AuditSeverity.INFO, "replayed writeback", "entries=" + count);
+
+        if (count > 0) {
+            dispatch(patId);
+        }
+        return count;
+    }
+
+    public WritebackStatusModel getStatus(String sessionId) {
+        Long patId = userWorkspaceService.get(sessionId).getInternalPatientId();
+        Date oldest = repository.findOldestCreatedDateByPatId(patId, WritebackOutboxStatus.PENDING);
+        return new WritebackStatusModel(
+                repository.countByPatIdAndStatus(patId, WritebackOutboxStatus.PENDING),
+                repository.countByPatIdAndStatus(patId, WritebackOutboxStatus.FAILED),
+                oldest != null ? System.currentTimeMillis() - oldest.getTime() : null
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "enqueued=" + enqueued.get() +
+                ", duplicates=" + duplicates.get() +
+                ", sent=" + sent.get() +
+                ", retried=" + retried.get() +
+                ", failed=" + failed.get() +
+                ", dispatches=" + dispatches.get() +
+                ", activeDispatches=" + active.size();
+    }
+
+    @Scheduled(fixedDelayString = "${fhir.writeback.stats-log-interval-ms:900000}",
+            initialDelayString = "${fhir.writeback.stats-log-interval-ms:900000}")
+    public void logStats() {
+        try {
+            Date oldest = repository.findOldestCreatedDate(WritebackOutboxStatus.PENDING);
+            logger.info("writeback outbox: depth=" + repository.countByStatus(WritebackOutboxStatus.PENDING) +
+                    ", failedEntries=" + repository.countByStatus(WritebackOutboxStatus.FAILED) +
+                    ", oldestPendingAgeMs=" + (oldest != null ? System.currentTimeMillis() - oldest.getTime() : 0) +
+                    ", " + this);
+
+        } catch (Exception e) {
+            logger.warn("caught " + e.getClass().getSimpleName() + " gathering writeback outbox stats - " +
+                    e.getMessage() + " - " + this);
+        }
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    private void persist(String sessionId, List<PendingWriteback> list) {
+        Long patId = userWorkspaceService.get(sessionId).getInternalPatientId();
+        IParser parser = FhirUtil.getFhirContext().newJsonParser();
+
+        // skip readings that are already in the outbox.  this is checked rather than caught, since a constraint
+        // violation would roll back the caller's transaction, including the readings themselves
+        Set<String> keys = new HashSet<>();
+        for (PendingWriteback pending : list) {
+            keys.add(pending.getIdempotencyKey());
+        }
+        Set<String> existingKeys = new HashSet<>(repository.findExistingIdempotencyKeys(keys));
+
+        int count = 0;
+        for (PendingWriteback pending : list) {
+            if ( ! existingKeys.add(pending.getIdempotencyKey()) ) {
+                duplicates.incrementAndGet();
+                logger.info("writeback outbox already contains " + pending + " for session=" + sessionId + " - skipping");
+                continue;
+            }
+
+            // failures propagate, so that the readings are rolled back with their entries rather than stored without them
+            WritebackOutboxEntry entry = repository.save(new WritebackOutboxEntry(patId, pending,
+                    parser.encodeResourceToString(pending.getBundle())));
+            pending.setOutboxId(entry.getId());
+            count ++;
+        }
+
+        if (count == 0) return;
+
+        // entries aren't visible to dispatch threads until the transaction commits
+        final int enqueuedCount = count;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                enqueued.addAndGet(enqueuedCount);
+
+                // wait a moment before writing, so that readings created together are written together
+                try {
+                    scheduler.schedule(() -> dispatch(patId), lingerMillis, TimeUnit.MILLISECONDS);
+
+                } catch (RejectedExecutionException e) {
+                    // shutting down; the entries will be written after restart
+                }
+            }
+        });
+    }
+
+    /**
+     * queues entries that are due to be written, for patients who have a session
+     */
+    private void poll() {
+        try {
+            // entries can only be written for patients with a session, so only look for theirs
+            Set<Long> patIds = new HashSet<>(userWorkspaceService.getInternalPatientIds());
+            if (patIds.isEmpty()) return;
+
+            for (Long patId : repository.findPatIdsWithDueEntries(patIds, WritebackOutboxStatus.PENDING, new Date())) {
+                dispatch(patId);
+            }
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getName() + " polling writeback outbox - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * writes patId's due entries on the dispatch pool.  if they're already being written, they're written again
+     * once that finishes, to pick up any entries enqueued in the meantime
+     */
+    private void dispatch(Long patId) {
+        if ( ! active.add(patId) ) {
+            rerun.add(patId);
+            return;
+        }
+
+        try {
+            dispatcher.execute(() -> {
+                try {
+                    do {
+                        rerun.remove(patId);
+                        dispatchNow(patId);
+                    } while (rerun.remove(patId));
+
+                } finally {
+                    active.remove(patId);
+
+                    // a dispatch() between the last check and now will have seen patId as active, and only set rerun
+                    if (rerun.remove(patId)) {
+                        dispatch(patId);
+                    }
+                }
+            });
+
+        } catch (RejectedExecutionException e) {
+            active.remove(patId);
+        }
+    }
+
+    private void dispatchNow(Long patId) {
+        UserWorkspace workspace = userWorkspaceService.getByInternalPatientId(patId);
+        if (workspace == null) {
+            logger.debug("no session for patId=" + patId + " - not writing writeback outbox entries");
+            return;
+        }
+
+        dispatches.incrementAndGet();
+        String sessionId = workspace.getSessionId();
+
+        try {
+            int batchSize = vitalsWritebackService.getBatchSize(workspace.getVendorTransformer());
+            boolean idempotent = workspace.getVendorTransformer().isWritebackIdempotent();
+
+            // entries that are written are deleted, and entries that aren't are either rescheduled or marked FAILED,
+            // so this terminates once all due entries have been attempted
+            List<WritebackOutboxEntry> entries;
+            while ( ! (entries = repository.findDueEntries(patId, WritebackOutboxStatus.PENDING, new Date(),
+                    PageRequest.of(0, batchSize))).isEmpty() ) {
+
+                Map<PendingWriteback, WritebackOutboxEntry> map = new LinkedHashMap<>();
+                for (WritebackOutboxEntry entry : entries) {
+                    try {
+                        map.put(toPendingWriteback(entry), entry);
+
+                    } catch (Exception e) {
+                        // retrying won't help
+                        markFailed(sessionId, entry, e);
+                    }
+                }
+
+                if ( ! map.isEmpty() ) {
+                    if ( ! idempotent ) {
+                        for (Map.Entry<PendingWriteback, WritebackOutboxEntry> item : map.entrySet()) {
+                            item.setValue(claim(item.getValue()));
+                        }
+                    }
+
+                    Map<PendingWriteback, Exception> failures = vitalsWritebackService.write(sessionId,
+                            new ArrayList<>(map.keySet()));
+
+                    for (Map.Entry<PendingWriteback, WritebackOutboxEntry> item : map.entrySet()) {
+                        Exception e = failures.get(item.getKey());
+                        if (e == null) {
+                            repository.delete(item.getValue());
+                            sent.incrementAndGet();
+
+                        } else if (idempotent) {
+                            reschedule(sessionId, item.getValue(), e);
+
+                        } else {
+                            abandon(sessionId, item.getValue(), e);
+                        }
+                    }
+                }
+            }
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getName() + " dispatching writeback outbox entries for session=" +
+                    sessionId + " - " + e.getMessage(), e);
+        }
+    }
+
+    private PendingWriteback toPendingWriteback(WritebackOutboxEntry entry) {
+        IParser parser = FhirUtil.getFhirContext().newJsonParser();
+        parser.setOverrideResourceIdWithBundleEntryFullUrl(false);
+        Bundle bundle = parser.parseResource(Bundle.class, entry.getBundle());
+
+        // new resources are identified by bare UUIDs, which is what causes them to be created when written
+        for (Bundle.BundleEntryComponent bundleEntry : bundle.getEntry()) {
+            if (bundleEntry.hasResource() && bundleEntry.hasFullUrl() && bundleEntry.getFullUrl().startsWith(URN_UUID)) {
+                bundleEntry.getResource().setId(bundleEntry.getFullUrl().substring(URN_UUID.length()));
+            }
+        }
+
+        PendingWriteback pending = new PendingWriteback(entry.getIdempotencyKey(), entry.getVitalsType(),
+                entry.getStrategy(), bundle, entry.getDescription());
+        pending.setOutboxId(entry.getId());
+        return pending;
+    }
+
+    private void reschedule(String sessionId, WritebackOutboxEntry entry, Exception e) {
+        int attempts = entry.getAttempts() + 1;
+        entry.setAttempts(attempts);
+        entry.setLastError(buildErrorMessage(e));
+
+        if (attempts >= maxAttempts) {
+            entry.setStatus(WritebackOutboxStatus.FAILED);
+            failed.incrementAndGet();
+            logger.error("giving up on writeback outbox entry " + entry + " for session=" + sessionId + " after " +
+                    attempts + " attempt(s)");
+            auditService.doAudit(sessionId, AuditSeverity.ERROR, "abandoned remote write",
+                    entry.getVitalsType() + "=" + entry.getDescription() + ", attempts=" + attempts);
+
+        } else {
+            long delay = getBackoffMillis(attempts);
+            entry.setNextAttemptDate(new Date(System.currentTimeMillis() + delay));
+            retried.incrementAndGet();
+            logger.info("will retry writeback outbox entry " + entry + " for session=" + sessionId + " in " + delay + "ms");
+        }
+
+        repository.save(entry);
+    }
+
+    /**
+     * marks entry FAILED before it's written by a transformer whose writes aren't idempotent, so that it's never
+     * written again automatically, however the attempt ends
+     * @return the saved entry
+     */
+    private WritebackOutboxEntry claim(WritebackOutboxEntry entry) {
+        entry.setAttempts(entry.getAttempts() + 1);
+        entry.setStatus(WritebackOutboxStatus.FAILED);
+        entry.setLastError("attempt did not complete");
+        return repository.save(entry);
+    }
+
+    private void abandon(String sessionId, WritebackOutboxEntry entry, Exception e) {
+        entry.setLastError(buildErrorMessage(e));
+        repository.save(entry);
+        failed.incrementAndGet();
+
+        logger.error("caught " + e.getClass().getName() + " writing writeback outbox entry " + entry + " for session=" +
+                sessionId + " - not retrying, as resources written before the failure would be written again - " +
+                e.getMessage());
+        auditService.doAudit(sessionId, AuditSeverity.ERROR, "abandoned remote write",
+                entry.getVitalsType() + "=" + entry.getDescription() + ", attempts=" + entry.getAttempts());
+    }
+
+    private void markFailed(String sessionId, WritebackOutboxEntry entry, Exception e) {
+        logger.error("caught " + e.getClass().getName() + " reading writeback outbox entry " + entry + " for session=" +
+                sessionId + " - marking FAILED - " + e.getMessage(), e);
+
+        entry.setStatus(WritebackOutboxStatus.FAILED);
+        entry.setLastError(buildErrorMessage(e));
+        repository.save(entry);
+        failed.incrementAndGet();
+    }
+
+    /**
+     * @return the delay before the next attempt, which doubles with each attempt up to max-delay-ms.  half the delay
+     * is randomized, so that entries that failed together aren't all retried together
+     */
+    private long getBackoffMillis(int attempts) {
+        long delay = Math.min(maxDelayMillis, initialDelayMillis << Math.min(attempts - 1, 30));
+        long half = Math.max(1, delay / 2);
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    private String buildErrorMessage(Exception e) {
+        return StringUtils.abbreviate(e.getClass().getSimpleName() + ": " + e.getMessage(), MAX_ERROR_LENGTH);
+    }
+}
@@ -3,17 +3,16 @@ package edu.ohsu.cmp.coach.session;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import edu.ohsu.cmp.coach.model.redcap.RandomizationGroup;
 import edu.ohsu.cmp.coach.exception.ConfigurationException;
+import edu.ohsu.cmp.coach.fhir.FhirClientFactory;
 import edu.ohsu.cmp.coach.model.Audience;
 import edu.ohsu.cmp.coach.model.AuditSeverity;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentials;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
 import edu.ohsu.cmp.coach.service.AbstractService;
-import edu.ohsu.cmp.coach.util.FhirUtil;
 import org.quartz.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
@@ -24,8 +23,8 @@ import java.util.*;
 public class SessionService extends AbstractService {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    @Value("${socket.timeout:300000}")
-    private Integer socketTimeout;
+    @Autowired
+    private FhirClientFactory fhirClientFactory;
 
     @Autowired
     private ApplicationContext ctx;
@@ -42,10 +41,9 @@ public class SessionService extends AbstractService {
     public void prepareSession(String sessionId, FHIRCredentials credentials, Audience audience, RandomizationGroup randomizationGroup,
                                boolean requiresEnrollment, boolean hasCompletedStudy) throws ConfigurationException {
         logger.debug("preparing session " + sessionId + " with credentials=" + credentials);
-        IGenericClient client = FhirUtil.buildClient(
+        IGenericClient client = fhirClientFactory.getClient(
                 credentials.getServerURL(),
-                credentials.getBearerToken(),
-                socketTimeout
+                credentials.getBearerToken()
         );
         FHIRCredentialsWithClient fcc = new FHIRCredentialsWithClient(credentials, client);
 
@@ -4,7 +4,7 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import edu.ohsu.cmp.coach.http.HttpRequest;
-import edu.ohsu.cmp.coach.http.HttpResponse;
+import edu.ohsu.cmp.coach.http.HttpStreamResponse;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSHook;
 import edu.ohsu.cmp.coach.model.cqfruler.CDSServices;
 
@@ -13,18 +13,19 @@ import java.util.List;
 
 public class CDSHooksUtil {
     public static List<CDSHook> getCDSHooks(boolean testing, String cdsHooksEndpointURL) throws IOException {
-        String json;
+        Gson gson = new GsonBuilder().create();
+        CDSServices services;
+
         if (testing) {
-            json = "{  \"services\": [    {      \"hook\": \"patient-view\",      \"name\": \"TEST\",      \"title\": \"OHSU Test Recommendation\",      \"description\": \"These cards below are hardcoded into the app for testing purposes.\",      \"id\": \"plandefinition-TEST\",      \"prefetch\": { } } ] }\n";
+            String json = "{  \"services\": [    {      \"hook\": \"patient-view\",      \"name\": \"TEST\",      \"title\": \"OHSU Test Recommendation\",      \"description\": \"These cards below are hardcoded into the app for testing purposes.\",      \"id\": \"plandefinition-TEST\",      \"prefetch\": { } } ] }\n";
+            services = gson.fromJson(json, new TypeToken<CDSServices>(){}.getType());
 
         } else {
-            HttpResponse response = new HttpRequest().get(cdsHooksEndpointURL);
-            json = response.getResponseBody();
+            try (HttpStreamResponse response = new HttpRequest().getStreaming(cdsHooksEndpointURL, null, null)) {
+                services = gson.fromJson(response.getReader(), new TypeToken<CDSServices>(){}.getType());
+            }
         }
 
-        Gson gson = new GsonBuilder().create();
-        CDSServices services = gson.fromJson(json, new TypeToken<CDSServices>(){}.getType());
-
         return services.getHooks();
     }
 }
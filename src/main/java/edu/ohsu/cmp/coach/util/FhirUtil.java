@@ -6,6 +6,7 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 import edu.ohsu.cmp.coach.exception.ConfigurationException;
 import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.FhirResponseSizeInterceptor;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
@@ -32,16 +33,43 @@ public class FhirUtil {
     private static final String EXTENSION_OAUTH_URIS_URL = "http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris";
     private static final String EXTENSION_TOKEN_URL = "token";
 
-    public static IGenericClient buildClient(String serverUrl, String bearerToken, int socketTimeout) {
-        logger.debug("building FHIR R4 client for serverUrl=" + serverUrl + ", bearerToken=" + bearerToken +
-                ", socketTimeout=" + socketTimeout);
+    // one FhirContext for the whole application.  FhirContext is thread-safe, but expensive to create, as it scans
+    // the R4 model; parsers are cheap to create from it, but are not thread-safe
+    private static class FhirContextHolder {
+        private static final FhirContext CONTEXT = buildFhirContext();
+    }
 
+    private static FhirContext buildFhirContext() {
+        long start = System.currentTimeMillis();
         FhirContext ctx = FhirContext.forR4();
-        ctx.getRestfulClientFactory().setSocketTimeout(socketTimeout);
-        IGenericClient client = ctx.newRestfulGenericClient(serverUrl);
+
+        // pre-scan the resource types COACH works with, so the first patient to launch doesn't pay for it
+        for (Class<? extends IBaseResource> c : Arrays.asList(Bundle.class, Patient.class, Encounter.class,
+                Observation.class, Condition.class, Goal.class, MedicationRequest.class, MedicationStatement.class,
+                ServiceRequest.class, Procedure.class, AdverseEvent.class, OperationOutcome.class)) {
+            ctx.getResourceDefinition(c);
+        }
+        ctx.newJsonParser().encodeResourceToString(new Bundle());
+
+        logger.info("initialized FHIR R4 context (took " + (System.currentTimeMillis() - start) + "ms)");
+        return ctx;
+    }
+
+    public static FhirContext getFhirContext() {
+        return FhirContextHolder.CONTEXT;
+    }
+
+    /**
+     * builds a new client from the application's FhirContext.  prefer FhirClientFactory, which reuses clients
+     */
+    public static IGenericClient buildClient(String serverUrl, String bearerToken) {
+        logger.debug("building FHIR R4 client for serverUrl=" + serverUrl + ", bearerToken=" + bearerToken);
+
+        IGenericClient client = getFhirContext().newRestfulGenericClient(serverUrl);
 
         BearerTokenAuthInterceptor authInterceptor = new BearerTokenAuthInterceptor(bearerToken);
         client.registerInterceptor(authInterceptor);
+        client.registerInterceptor(FhirResponseSizeInterceptor.INSTANCE);
 
         return client;
     }
@@ -492,8 +520,7 @@ public class FhirUtil {
     }
 
     public static String toJson(IBaseResource r) {
-        FhirContext ctx = FhirContext.forR4();
-        IParser parser = ctx.newJsonParser();
+        IParser parser = getFhirContext().newJsonParser();
         parser.setPrettyPrint(true);
         return parser.encodeResourceToString(r);
     }
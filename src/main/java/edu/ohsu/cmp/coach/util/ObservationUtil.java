@@ -1,7 +1,7 @@
 package edu.ohsu.cmp.coach.util;
 
 import edu.ohsu.cmp.coach.exception.DataException;
-import edu.ohsu.cmp.coach.fhir.EncounterMatcher;
+import edu.ohsu.cmp.coach.fhir.CodingClassifier;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
 import edu.ohsu.cmp.coach.model.ObservationSource;
 import org.hl7.fhir.r4.model.CodeableConcept;
@@ -15,9 +15,9 @@ public class ObservationUtil {
     public static ObservationSource getSourceByEncounter(Encounter encounter, FhirConfigManager fcm) {
         ObservationSource source = null;
 
-        EncounterMatcher matcher = new EncounterMatcher(fcm);
-        if      (matcher.isOfficeEncounter(encounter))  source = ObservationSource.OFFICE;
-        else if (matcher.isHomeEncounter(encounter))    source = ObservationSource.HOME;    // this should remain generic HOME as a more specific source is unknown
+        int classification = fcm.getCodingClassifier().classify(encounter);
+        if      (CodingClassifier.is(classification, CodingClassifier.OFFICE))  source = ObservationSource.OFFICE;
+        else if (CodingClassifier.is(classification, CodingClassifier.HOME))    source = ObservationSource.HOME;    // this should remain generic HOME as a more specific source is unknown
 
         return source != null ?
                 source :
@@ -37,25 +37,28 @@ public class ObservationUtil {
 
         if (bpObservation.hasCode()) {
             CodeableConcept code = bpObservation.getCode();
+            CodingClassifier classifier = fcm.getCodingClassifier();
+            int classification = classifier.classify(code);
 
-            if (FhirUtil.hasCoding(code, fcm.getBpHomeCodings()) ||
+            if (CodingClassifier.is(classification, CodingClassifier.HOME) ||
                     FhirUtil.hasHomeSettingExtension(bpObservation) ||
                     FhirUtil.hasHomeSettingCoding(code)) {
                 source = ObservationSource.HOME;    // this should remain generic HOME as a more specific source is unknown
 
-            } else if (FhirUtil.hasCoding(code, fcm.getBpOfficeCodings())) {
+            } else if (CodingClassifier.is(classification, CodingClassifier.OFFICE)) {
                 source = ObservationSource.OFFICE;
 
-            } else if (FhirUtil.hasCoding(code, fcm.getBpPanelCodings()) && bpObservation.hasComponent()) {
+            } else if (CodingClassifier.is(classification, CodingClassifier.BP_PANEL) && bpObservation.hasComponent()) {
                 // okay, so we couldn't determine the context of this Observation from its code element.  perhaps
                 // if this is a panel, there may be a component that can tell us
                 for (Observation.ObservationComponentComponent component : bpObservation.getComponent()) {
                     if (component.hasCode()) {
-                        if (FhirUtil.hasCoding(component.getCode(), fcm.getBpHomeCodings())) {
+                        int componentClassification = classifier.classify(component.getCode());
+                        if (CodingClassifier.is(componentClassification, CodingClassifier.HOME)) {
                             source = ObservationSource.HOME;
                             break;
 
-                        } else if (FhirUtil.hasCoding(component.getCode(), fcm.getBpOfficeCodings())) {
+                        } else if (CodingClassifier.is(componentClassification, CodingClassifier.OFFICE)) {
                             source = ObservationSource.OFFICE;
                             break;
                         }
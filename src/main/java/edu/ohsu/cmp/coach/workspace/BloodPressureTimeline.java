@@ -0,0 +1,196 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import edu.ohsu.cmp.coach.model.BloodPressureModel;
+import edu.ohsu.cmp.coach.model.BloodPressureSeries;
+
+import java.util.*;
+
+/**
+ * A session's blood pressure readings, remote and local, sorted newest first.  A local reading is only included if
+ * no remote reading logically matches it, by the same rule as BloodPressureModel.getLogicalEqualityKey(), but using
+ * a packed numeric key rather than a formatted string.
+ * <p>
+ * Readings are held in an immutable array that is replaced whenever a reading is added, so lists returned by the
+ * query methods are views that never need to be copied, and are unaffected by later additions.
+ */
+public class BloodPressureTimeline {
+    private static final Comparator<BloodPressureModel> NEWEST_FIRST =
+            (o1, o2) -> o1.getReadingDate().compareTo(o2.getReadingDate()) * -1;
+
+    // all of the following are guarded by synchronized(this); readings itself is never modified once published
+    private volatile BloodPressureModel[] readings;
+    private final Set<Long> remoteKeys = new HashSet<>();
+    private final Set<Long> localKeys = new HashSet<>();
+    private final Set<BloodPressureModel> localReadings = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private volatile SeriesSnapshot seriesSnapshot;
+
+    private static final class SeriesSnapshot {
+        private final BloodPressureModel[] source;
+        private final BloodPressureSeries series;
+
+        private SeriesSnapshot(BloodPressureModel[] source) {
+            this.source = source;
+            this.series = new BloodPressureSeries(Arrays.asList(source));
+        }
+    }
+
+    public BloodPressureTimeline(List<BloodPressureModel> remoteReadings, List<BloodPressureModel> localReadings) {
+        List<BloodPressureModel> list = new ArrayList<>(remoteReadings);
+        for (BloodPressureModel bpm : remoteReadings) {
+            remoteKeys.add(buildKey(bpm));
+        }
+
+        for (BloodPressureModel bpm : localReadings) {
+            long key = buildKey(bpm);
+            if ( ! remoteKeys.contains(key) ) {
+                list.add(bpm);
+                localKeys.add(key);
+                this.localReadings.add(bpm);
+            }
+        }
+
+        list.sort(NEWEST_FIRST);
+        readings = list.toArray(new BloodPressureModel[0]);
+    }
+
+    /**
+     * adds a remote reading, removing any local readings that it logically matches
+     */
+    public synchronized void addRemote(BloodPressureModel bpm) {
+        long key = buildKey(bpm);
+        remoteKeys.add(key);
+
+        BloodPressureModel[] current = readings;
+        if (localKeys.remove(key)) {
+            List<BloodPressureModel> list = new ArrayList<>(current.length);
+            for (BloodPressureModel item : current) {
+                if (localReadings.contains(item) && buildKey(item) == key) {
+                    localReadings.remove(item);
+                } else {
+                    list.add(item);
+                }
+            }
+            current = list.toArray(new BloodPressureModel[0]);
+        }
+
+        readings = insert(current, bpm);
+    }
+
+    /**
+     * adds a local reading, unless a remote reading logically matches it
+     */
+    public synchronized void addLocal(BloodPressureModel bpm) {
+        long key = buildKey(bpm);
+        if ( ! remoteKeys.contains(key) ) {
+            localKeys.add(key);
+            localReadings.add(bpm);
+            readings = insert(readings, bpm);
+        }
+    }
+
+    public int size() {
+        return readings.length;
+    }
+
+    /**
+     * @return the number of local readings
+     */
+    public synchronized int localSize() {
+        return localReadings.size();
+    }
+
+    /**
+     * @return all readings, newest first
+     */
+    public List<BloodPressureModel> getAll() {
+        return Collections.unmodifiableList(Arrays.asList(readings));
+    }
+
+    /**
+     * @return the most recent count readings, newest first
+     */
+    public List<BloodPressureModel> getLatest(int count) {
+        BloodPressureModel[] current = readings;
+        return view(current, 0, Math.min(Math.max(count, 0), current.length));
+    }
+
+    /**
+     * @return readings taken on or after since, newest first
+     */
+    public List<BloodPressureModel> getSince(Date since) {
+        BloodPressureModel[] current = readings;
+        return view(current, 0, indexOfFirstBefore(current, since));
+    }
+
+    /**
+     * @return readings taken on or after start and before end, newest first
+     */
+    public List<BloodPressureModel> getBetween(Date start, Date end) {
+        BloodPressureModel[] current = readings;
+        int from = indexOfFirstBefore(current, end);
+        int to = indexOfFirstBefore(current, start);
+        return view(current, from, Math.max(from, to));
+    }
+
+    /**
+     * @return all readings as a columnar series, newest first.  the series is built on first use, and again only
+     * after readings are added
+     */
+    public BloodPressureSeries getSeries() {
+        BloodPressureModel[] current = readings;
+        SeriesSnapshot snapshot = seriesSnapshot;
+        if (snapshot == null || snapshot.source != current) {
+            snapshot = new SeriesSnapshot(current);
+            seriesSnapshot = snapshot;
+        }
+        return snapshot.series;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// private methods
+//
+
+    /**
+     * packs a reading's systolic and diastolic values and reading time into a single key.  the reading time occupies
+     * the upper 42 bits (millisecond precision, good through the year 2109), and each value 11 bits (0 - 2047)
+     */
+    private static long buildKey(BloodPressureModel bpm) {
+        long systolic = bpm.getSystolic().getValue().intValue() & 0x7FF;
+        long diastolic = bpm.getDiastolic().getValue().intValue() & 0x7FF;
+        return (bpm.getReadingDate().getTime() << 22) | (systolic << 11) | diastolic;
+    }
+
+    /**
+     * @return a new array containing readings plus bpm, which is placed after any readings taken at the same time
+     */
+    private static BloodPressureModel[] insert(BloodPressureModel[] readings, BloodPressureModel bpm) {
+        int pos = indexOfFirstBefore(readings, bpm.getReadingDate());
+        BloodPressureModel[] arr = new BloodPressureModel[readings.length + 1];
+        System.arraycopy(readings, 0, arr, 0, pos);
+        arr[pos] = bpm;
+        System.arraycopy(readings, pos, arr, pos + 1, readings.length - pos);
+        return arr;
+    }
+
+    /**
+     * @return the index of the first (i.e. newest) reading taken strictly before date, or readings.length if none
+     */
+    private static int indexOfFirstBefore(BloodPressureModel[] readings, Date date) {
+        int low = 0;
+        int high = readings.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (readings[mid].getReadingDate().compareTo(date) >= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static List<BloodPressureModel> view(BloodPressureModel[] readings, int from, int to) {
+        return Collections.unmodifiableList(Arrays.asList(readings).subList(from, to));
+    }
+}
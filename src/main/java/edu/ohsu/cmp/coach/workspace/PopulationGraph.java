@@ -0,0 +1,168 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A declarative dependency graph of PopulationStages.  When executed, each stage is scheduled as soon as all of the
+ * stages it depends on have completed, such that independent stages execute concurrently on the provided Executor.
+ */
+public class PopulationGraph {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // enforces stage timeouts for all sessions.  timeout tasks only complete a future and interrupt a thread
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "population-stage-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<String, PopulationStage> stages = new LinkedHashMap<>();
+
+    public PopulationGraph add(PopulationStage stage) {
+        if (stages.containsKey(stage.getName())) {
+            throw new IllegalArgumentException("duplicate stage: " + stage.getName());
+        }
+        for (String dependency : stage.getDependsOn()) {
+            if ( ! stages.containsKey(dependency) ) {   // guarantees stages are added in a valid execution order, and that there are no cycles
+                throw new IllegalArgumentException("stage " + stage.getName() + " depends on undefined stage " + dependency);
+            }
+        }
+        stages.put(stage.getName(), stage);
+        return this;
+    }
+
+    public CompletableFuture<PopulationResult> execute(String sessionId, Executor executor) {
+        final long start = System.currentTimeMillis();
+
+        final Map<String, PopulationResult.StageResult> results = new ConcurrentHashMap<>();
+        Map<String, CompletableFuture<PopulationResult.StageResult>> futures = new LinkedHashMap<>();
+
+        for (PopulationStage stage : stages.values()) {
+            final List<CompletableFuture<PopulationResult.StageResult>> dependencies = new ArrayList<>();
+            for (String dependency : stage.getDependsOn()) {
+                dependencies.add(futures.get(dependency));
+            }
+
+            CompletableFuture<PopulationResult.StageResult> future = CompletableFuture
+                    .allOf(dependencies.toArray(new CompletableFuture[0]))
+                    .thenCompose(v -> {
+                        for (CompletableFuture<PopulationResult.StageResult> dependency : dependencies) {
+                            PopulationResult.StageResult dependencyResult = dependency.join();
+                            if (dependencyResult.isBlocking()) {
+                                long now = System.currentTimeMillis();
+                                logger.warn("skipping stage " + stage.getName() + " for session=" + sessionId +
+                                        " - dependency " + dependencyResult.getStage().getName() + " " + dependencyResult.getStatus());
+                                return CompletableFuture.completedFuture(new PopulationResult.StageResult(stage,
+                                        PopulationResult.Status.SKIPPED, now, now,
+                                        "dependency " + dependencyResult.getStage().getName() + " " + dependencyResult.getStatus()));
+                            }
+                        }
+                        return runStage(sessionId, stage, executor);
+                    })
+                    .thenApply(stageResult -> {
+                        results.put(stage.getName(), stageResult);
+                        return stageResult;
+                    });
+
+            futures.put(stage.getName(), future);
+        }
+
+        return CompletableFuture
+                .allOf(futures.values().toArray(new CompletableFuture[0]))
+                .thenApply(v -> {
+                    Map<String, PopulationResult.StageResult> ordered = new LinkedHashMap<>();
+                    for (String name : stages.keySet()) {
+                        ordered.put(name, results.get(name));
+                    }
+                    return new PopulationResult(start, System.currentTimeMillis(), ordered);
+                });
+    }
+
+    /**
+     * runs stage on executor.  the stage's timeout starts when it begins running, not when it's submitted, so that
+     * time spent queued behind other work doesn't count against it.  a stage that times out is interrupted
+     */
+    private CompletableFuture<PopulationResult.StageResult> runStage(String sessionId, PopulationStage stage, Executor executor) {
+        final CompletableFuture<PopulationResult.StageResult> future = new CompletableFuture<>();
+
+        try {
+            executor.execute(() -> {
+                final Thread thread = Thread.currentThread();
+                final long startMillis = System.currentTimeMillis();
+                final Object lock = new Object();
+                final boolean[] finished = { false };
+
+                ScheduledFuture<?> timeout = TIMER.schedule(() -> {
+                    synchronized (lock) {
+                        if (finished[0]) return;
+                        finished[0] = true;
+                        thread.interrupt();
+                    }
+                    logger.error("stage " + stage.getName() + " for session=" + sessionId + " timed out after " +
+                            stage.getTimeoutMillis() + "ms (failurePolicy=" + stage.getFailurePolicy() + ") - interrupted");
+                    future.complete(new PopulationResult.StageResult(stage, PopulationResult.Status.TIMED_OUT,
+                            startMillis, System.currentTimeMillis(), "timed out after " + stage.getTimeoutMillis() + "ms"));
+                }, stage.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+
+                Throwable error = null;
+                try {
+                    stage.getTask().run();
+
+                } catch (Throwable t) {
+                    error = t;
+
+                } finally {
+                    timeout.cancel(false);
+                }
+
+                boolean timedOut;
+                synchronized (lock) {
+                    timedOut = finished[0];
+                    finished[0] = true;
+                }
+
+                if (timedOut) {
+                    // the timer has already completed the stage.  don't leak its interrupt into the next task
+                    Thread.interrupted();
+
+                } else if (error == null) {
+                    future.complete(new PopulationResult.StageResult(stage, PopulationResult.Status.SUCCEEDED,
+                            startMillis, System.currentTimeMillis(), null));
+
+                } else {
+                    future.complete(failed(sessionId, stage, startMillis, error));
+                }
+            });
+
+        } catch (RejectedExecutionException e) {
+            future.complete(failed(sessionId, stage, System.currentTimeMillis(), e));
+        }
+
+        return future;
+    }
+
+    private PopulationResult.StageResult failed(String sessionId, PopulationStage stage, long startMillis, Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ?
+                t.getCause() :
+                t;
+
+        logger.error("caught " + cause.getClass().getName() + " executing stage " + stage.getName() +
+                " for session=" + sessionId + " (failurePolicy=" + stage.getFailurePolicy() + ") - " +
+                cause.getMessage(), cause);
+
+        return new PopulationResult.StageResult(stage, PopulationResult.Status.FAILED, startMillis,
+                System.currentTimeMillis(), cause.getClass().getSimpleName() + " - " + cause.getMessage());
+    }
+}
@@ -0,0 +1,141 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import java.util.*;
+
+/**
+ * The outcome of executing a PopulationGraph, capturing per-stage status and timing, from which the critical path
+ * (the chain of dependent stages that determined overall population latency) may be derived.
+ */
+public class PopulationResult {
+    public enum Status {
+        SUCCEEDED,
+        FAILED,
+        TIMED_OUT,
+        SKIPPED
+    }
+
+    public static class StageResult {
+        private final PopulationStage stage;
+        private final Status status;
+        private final long startMillis;
+        private final long endMillis;
+        private final String message;
+
+        public StageResult(PopulationStage stage, Status status, long startMillis, long endMillis, String message) {
+            this.stage = stage;
+            this.status = status;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.message = message;
+        }
+
+        public PopulationStage getStage() {
+            return stage;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public long getDurationMillis() {
+            return endMillis - startMillis;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return true if stages that depend on this one should not be permitted to execute
+         */
+        public boolean isBlocking() {
+            return status == Status.SKIPPED ||
+                    (status != Status.SUCCEEDED && stage.getFailurePolicy() == PopulationStage.FailurePolicy.ABORT);
+        }
+    }
+
+    private final long startMillis;
+    private final long endMillis;
+    private final Map<String, StageResult> stageResults;
+
+    public PopulationResult(long startMillis, long endMillis, Map<String, StageResult> stageResults) {
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.stageResults = Collections.unmodifiableMap(stageResults);
+    }
+
+    public long getDurationMillis() {
+        return endMillis - startMillis;
+    }
+
+    public Map<String, StageResult> getStageResults() {
+        return stageResults;
+    }
+
+    public boolean isSuccessful() {
+        for (StageResult result : stageResults.values()) {
+            if (result.getStatus() != Status.SUCCEEDED) return false;
+        }
+        return true;
+    }
+
+    public List<StageResult> getUnsuccessfulStages() {
+        List<StageResult> list = new ArrayList<>();
+        for (StageResult result : stageResults.values()) {
+            if (result.getStatus() != Status.SUCCEEDED) {
+                list.add(result);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * The critical path is obtained by starting with the stage that finished last, and repeatedly stepping back to
+     * whichever of its dependencies finished last, until a stage with no dependencies is reached.
+     * @return the critical path, in execution order
+     */
+    public List<StageResult> getCriticalPath() {
+        LinkedList<StageResult> path = new LinkedList<>();
+
+        StageResult current = latestFinishing(stageResults.keySet());
+        while (current != null) {
+            path.addFirst(current);
+            current = latestFinishing(current.getStage().getDependsOn());
+        }
+
+        return path;
+    }
+
+    public String getCriticalPathString() {
+        StringBuilder sb = new StringBuilder();
+        for (StageResult result : getCriticalPath()) {
+            if (sb.length() > 0) sb.append(" -> ");
+            sb.append(result.getStage().getName())
+                    .append("(").append(result.getDurationMillis()).append("ms");
+            if (result.getStatus() != Status.SUCCEEDED) {
+                sb.append(", ").append(result.getStatus());
+            }
+            sb.append(")");
+        }
+        return sb.toString();
+    }
+
+    private StageResult latestFinishing(Collection<String> names) {
+        StageResult latest = null;
+        for (String name : names) {
+            StageResult result = stageResults.get(name);
+            if (result != null && (latest == null || result.getEndMillis() > latest.getEndMillis())) {
+                latest = result;
+            }
+        }
+        return latest;
+    }
+}
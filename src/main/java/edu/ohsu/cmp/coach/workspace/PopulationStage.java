@@ -0,0 +1,62 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A single unit of work performed while populating a UserWorkspace, along with the names of the stages that must
+ * complete before it may begin.  Stages are assembled into a PopulationGraph, which executes independent stages
+ * concurrently.
+ */
+public class PopulationStage {
+    public enum FailurePolicy {
+        CONTINUE,   // log the failure, but permit dependent stages to execute anyway
+        ABORT       // skip all stages that depend (directly or transitively) on this one
+    }
+
+    private final String name;
+    private final long timeoutMillis;
+    private final FailurePolicy failurePolicy;
+    private final Set<String> dependsOn;
+    private final Runnable task;
+
+    public PopulationStage(String name, long timeoutMillis, FailurePolicy failurePolicy, Runnable task, String ... dependsOn) {
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+        this.failurePolicy = failurePolicy;
+        this.task = task;
+        this.dependsOn = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(dependsOn)));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public FailurePolicy getFailurePolicy() {
+        return failurePolicy;
+    }
+
+    public Set<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    public Runnable getTask() {
+        return task;
+    }
+
+    @Override
+    public String toString() {
+        return "PopulationStage{" +
+                "name='" + name + '\'' +
+                ", timeoutMillis=" + timeoutMillis +
+                ", failurePolicy=" + failurePolicy +
+                ", dependsOn=" + dependsOn +
+                '}';
+    }
+}
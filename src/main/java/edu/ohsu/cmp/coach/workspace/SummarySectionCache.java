@@ -0,0 +1,79 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Memoizes the sections of a session's summary.  Each section is stored with a key built from the inputs it was
+ * built from, and is only rebuilt once that key changes.  Inputs held in the workspace cache are replaced rather than
+ * modified when they're refreshed, so keys may refer to them by identity (see identity()).
+ * <p>
+ * A section built while invalidateAll() is underway is never returned, since it may have been built from inputs
+ * that are no longer current.
+ */
+public class SummarySectionCache {
+    private static final class Section {
+        private final long generation;
+        private final List<?> key;
+        private final Object value;
+
+        private Section(long generation, List<?> key, Object value) {
+            this.generation = generation;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class IdentityKey {
+        private final Object value;
+
+        private IdentityKey(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+
+    private final Map<String, Section> sections = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong(0);
+
+    /**
+     * @return an element for use in a section key, which matches only the same instance of value
+     */
+    public static Object identity(Object value) {
+        return new IdentityKey(value);
+    }
+
+    /**
+     * @return the value of the named section if it was last built from inputs matching key, otherwise the value
+     * returned by builder, which is then stored against key
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String name, List<?> key, Supplier<T> builder) {
+        long current = generation.get();
+        Section section = sections.get(name);
+        if (section != null && section.generation == current && section.key.equals(key)) {
+            return (T) section.value;
+        }
+
+        T value = builder.get();
+        sections.put(name, new Section(current, key, value));
+        return value;
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        sections.clear();
+    }
+}
@@ -4,11 +4,10 @@ import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.auth0.jwt.impl.JWTParser;
 import com.auth0.jwt.interfaces.Payload;
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import edu.ohsu.cmp.coach.entity.MyPatient;
 import edu.ohsu.cmp.coach.entity.Summary;
 import edu.ohsu.cmp.coach.exception.DataException;
+import edu.ohsu.cmp.coach.fhir.BundleIndex;
 import edu.ohsu.cmp.coach.fhir.CompositeBundle;
 import edu.ohsu.cmp.coach.fhir.FhirConfigManager;
 import edu.ohsu.cmp.coach.fhir.FhirQueryManager;
@@ -37,31 +36,35 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Calendar;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
 public class UserWorkspace {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    public static final int POOL_SIZE = 5;
-
-    private static final String CACHE_PATIENT = "Patient";
-    private static final String CACHE_ENCOUNTER = "Encounter";
-    private static final String CACHE_PROTOCOL = "Protocol";
-    private static final String CACHE_BP = "BP";
-    private static final String CACHE_PULSE = "Pulse";
-    private static final String CACHE_ADVERSE_EVENT = "AdverseEvent";
-    private static final String CACHE_GOAL = "Goal";
-    private static final String CACHE_MEDICATION = "Medication";
-    private static final String CACHE_ORDER_SERVICE_REQUEST = "OrderServiceRequest";
-
-    private static final String CACHE_CONDITION_ENCOUNTER_DIAGNOSIS = "EncounterDiagnosisCondition";
-    private static final String CACHE_PROBLEM_LIST_CONDITION = "ProblemListCondition";
-    private static final String CACHE_SMOKING_OBSERVATIONS = "SmokingObservations";
-    private static final String CACHE_DRINKING_OBSERVATIONS = "DrinkingObservations";
-    private static final String CACHE_OTHER_SUPPLEMENTAL_RESOURCES = "OtherSupplementalResources";
+    // population stages
+    private static final String STAGE_PATIENT = "Patient";
+    private static final String STAGE_ORDER_SERVICE_REQUESTS = "OrderServiceRequests";
+    private static final String STAGE_GOALS = "Goals";
+    private static final String STAGE_BP_GOAL_CHECK = "BPGoalCheck";
+    private static final String STAGE_ENCOUNTERS = "Encounters";
+    private static final String STAGE_PROTOCOL = "Protocol";
+    private static final String STAGE_BP = "BP";
+    private static final String STAGE_PULSE = "Pulse";
+    private static final String STAGE_ENCOUNTER_DIAGNOSIS_CONDITIONS = "EncounterDiagnosisConditions";
+    private static final String STAGE_ADVERSE_EVENTS = "AdverseEvents";
+    private static final String STAGE_MEDICATIONS = "Medications";
+    private static final String STAGE_PROBLEM_LIST_CONDITIONS = "ProblemListConditions";
+    private static final String STAGE_SMOKING = "Smoking";
+    private static final String STAGE_DRINKING = "Drinking";
+    private static final String STAGE_OTHER_SUPPLEMENTAL = "OtherSupplemental";
+    private static final String STAGE_HYPOTENSION_ADVERSE_EVENTS = "HypotensionAdverseEvents";
+    private static final String STAGE_CARDS = "Cards";
+
+    private static final long FETCH_STAGE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long CARDS_STAGE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
     private final ApplicationContext ctx;
     private final String sessionId;
@@ -75,13 +78,17 @@ public class UserWorkspace {
     private final Long internalPatientId;
     private VendorTransformer vendorTransformer = null;
 
-    private final Cache cache;
-    private final Cache cardCache;
-    private final Cache<String, Bundle> bundleCache;
-    private final ExecutorService executorService;
+    private final WorkspaceCache cache;
+    private final WorkspaceExecutor executor;
 
     private final AuditService auditService;
 
+    // summary writes are coalesced: a request made while a write is underway causes one more write once it finishes
+    private final AtomicBoolean summaryWriteRequested = new AtomicBoolean(false);
+    private final AtomicBoolean summaryWriting = new AtomicBoolean(false);
+    private volatile SummaryFingerprint lastSummaryFingerprint = null;
+    private final SummarySectionCache summarySections = new SummarySectionCache();
+
     // Omron stuff
     private OmronTokenData omronTokenData = null;
     private Date omronLastUpdated = null;
@@ -96,7 +103,8 @@ public class UserWorkspace {
                             RandomizationGroup randomizationGroup,
                             boolean requiresEnrollment, boolean hasCompletedStudy,
                             FHIRCredentialsWithClient fhirCredentialsWithClient,
-                            FhirQueryManager fqm, FhirConfigManager fcm) {
+                            FhirQueryManager fqm, FhirConfigManager fcm, WorkspaceCache cache,
+                            WorkspaceExecutor executor) {
         this.ctx = ctx;
         this.sessionId = sessionId;
         this.audience = audience;
@@ -107,6 +115,8 @@ public class UserWorkspace {
         this.fhirCredentialsWithClient = fhirCredentialsWithClient;
         this.fqm = fqm;
         this.fcm = fcm;
+        this.cache = cache;
+        this.executor = executor;
 
         this.auditService = ctx.getBean(AuditService.class);
 
@@ -129,20 +139,6 @@ public class UserWorkspace {
             this.confirmedEndOfStudy = false;
         }
 
-        cache = Caffeine.newBuilder()
-                .expireAfterWrite(6, TimeUnit.HOURS)
-                .build();
-
-        cardCache = Caffeine.newBuilder()
-                .expireAfterWrite(6, TimeUnit.HOURS)
-                .build();
-
-        bundleCache = Caffeine.newBuilder()
-                .expireAfterWrite(6, TimeUnit.HOURS)
-                .build();
-
-        executorService = Executors.newFixedThreadPool(POOL_SIZE);
-
         setupAutoShutdownJob();
     }
 
@@ -223,35 +219,75 @@ public class UserWorkspace {
     }
 
     public void populate() {
-        Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-                long start = System.currentTimeMillis();
-                logger.info("BEGIN populating workspace for session=" + sessionId);
-                getPatient();
-                getOrderServiceRequests();
-                getRemoteGoals();
-                doBPGoalCheck();
-                getEncounters();
-                getProtocolObservations();
-                getRemoteBloodPressures();
-                getRemotePulses();
-                getEncounterDiagnosisConditions();
-                getRemoteAdverseEvents();
-                getMedications();
-                getProblemListConditions();
-                getSmokingObservations();
-                getDrinkingObservations();
-                getOtherSupplementalResources();
-                refreshHypotensionAdverseEvents();
-                getAllCards();
-                logger.info("DONE populating workspace for session=" + sessionId +
-                        " (took " + (System.currentTimeMillis() - start) + "ms)");
+        logger.info("BEGIN populating workspace for session=" + sessionId);
+        buildPopulationGraph().execute(sessionId, executor)
+                .thenAccept(result -> {
+                    logger.info("DONE populating workspace for session=" + sessionId +
+                            " (took " + result.getDurationMillis() + "ms)");
+                    logger.info("critical path for session=" + sessionId + ": " + result.getCriticalPathString());
+
+                    for (PopulationResult.StageResult stageResult : result.getUnsuccessfulStages()) {
+                        if (stageResult.getStatus() != PopulationResult.Status.SKIPPED) {
+                            auditService.doAudit(sessionId, AuditSeverity.ERROR, "cache population", "stage " +
+                                    stageResult.getStage().getName() + " " + stageResult.getStatus() + " - " +
+                                    stageResult.getMessage());
+                        }
+                    }
 
-                writeSummary();
-            }
-        };
-        executorService.submit(runnable);
+                    PopulationResult.StageResult cardsResult = result.getStageResults().get(STAGE_CARDS);
+                    if (cardsResult != null && cardsResult.getStatus() == PopulationResult.Status.SUCCEEDED) {
+                        writeSummary();
+
+                    } else {
+                        logger.warn("not writing summary for session=" + sessionId + " - cards were not generated");
+                    }
+                })
+                .exceptionally(t -> {
+                    Throwable cause = t instanceof CompletionException && t.getCause() != null ?
+                            t.getCause() :
+                            t;
+                    logger.error("caught " + cause.getClass().getName() + " populating workspace for session=" +
+                            sessionId + " - " + cause.getMessage(), cause);
+                    auditService.doAudit(sessionId, AuditSeverity.ERROR, "cache population", "failed - " +
+                            cause.getClass().getSimpleName() + " - " + cause.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * defines the order in which workspace resources are populated.  stages with no dependency on each other are
+     * executed concurrently.  Patient is the only stage whose failure aborts population, as it's required for
+     * system operation; all others are tolerated, as they were when population was performed serially.
+     */
+    private PopulationGraph buildPopulationGraph() {
+        return new PopulationGraph()
+                .add(new PopulationStage(STAGE_PATIENT, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.ABORT, this::getPatient))
+                .add(new PopulationStage(STAGE_ORDER_SERVICE_REQUESTS, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getOrderServiceRequests))
+                .add(new PopulationStage(STAGE_ENCOUNTERS, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getEncounters))
+                .add(new PopulationStage(STAGE_PROTOCOL, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getProtocolObservations))
+                .add(new PopulationStage(STAGE_ENCOUNTER_DIAGNOSIS_CONDITIONS, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getEncounterDiagnosisConditions))
+                .add(new PopulationStage(STAGE_MEDICATIONS, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getMedications))
+                .add(new PopulationStage(STAGE_PROBLEM_LIST_CONDITIONS, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getProblemListConditions))
+                .add(new PopulationStage(STAGE_SMOKING, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getSmokingObservations))
+                .add(new PopulationStage(STAGE_DRINKING, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getDrinkingObservations))
+                .add(new PopulationStage(STAGE_OTHER_SUPPLEMENTAL, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getOtherSupplementalResources))
+                .add(new PopulationStage(STAGE_GOALS, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getRemoteGoals,
+                        STAGE_PATIENT, STAGE_ORDER_SERVICE_REQUESTS))
+                .add(new PopulationStage(STAGE_BP_GOAL_CHECK, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::doBPGoalCheck,
+                        STAGE_GOALS))
+                .add(new PopulationStage(STAGE_BP, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getRemoteBloodPressures,
+                        STAGE_ENCOUNTERS, STAGE_PROTOCOL))
+                .add(new PopulationStage(STAGE_PULSE, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getRemotePulses,
+                        STAGE_ENCOUNTERS, STAGE_PROTOCOL))
+                .add(new PopulationStage(STAGE_ADVERSE_EVENTS, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getRemoteAdverseEvents,
+                        STAGE_PATIENT, STAGE_ENCOUNTERS, STAGE_ENCOUNTER_DIAGNOSIS_CONDITIONS))
+                .add(new PopulationStage(STAGE_HYPOTENSION_ADVERSE_EVENTS, FETCH_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::refreshHypotensionAdverseEvents,
+                        STAGE_BP))
+                .add(new PopulationStage(STAGE_CARDS, CARDS_STAGE_TIMEOUT_MILLIS, PopulationStage.FailurePolicy.CONTINUE, this::getAllCards,
+                        STAGE_PATIENT, STAGE_ORDER_SERVICE_REQUESTS, STAGE_ENCOUNTERS, STAGE_PROTOCOL,
+                        STAGE_ENCOUNTER_DIAGNOSIS_CONDITIONS, STAGE_MEDICATIONS, STAGE_PROBLEM_LIST_CONDITIONS,
+                        STAGE_SMOKING, STAGE_DRINKING, STAGE_OTHER_SUPPLEMENTAL, STAGE_GOALS, STAGE_BP_GOAL_CHECK,
+                        STAGE_BP, STAGE_PULSE, STAGE_ADVERSE_EVENTS, STAGE_HYPOTENSION_ADVERSE_EVENTS));
     }
 
     public void runRecommendations() {
@@ -263,14 +299,13 @@ public class UserWorkspace {
                 writeSummary();
             }
         };
-        executorService.submit(runnable);
+        executor.execute(runnable);
     }
 
     public void clearCaches() {
         logger.info("clearing caches for session=" + sessionId);
         cache.invalidateAll();
-        cardCache.invalidateAll();
-        bundleCache.invalidateAll();
+        summarySections.invalidateAll();
         clearRedcapCaches();
     }
 
@@ -287,19 +322,18 @@ public class UserWorkspace {
 
     public void clearVitalsCaches() {
         logger.info("clearing BP and Pulse caches for session=" + sessionId);
-        cache.invalidate(CACHE_BP);
-        cache.invalidate(CACHE_PULSE);
+        cache.invalidate(WorkspaceCacheKey.BP);
+        cache.invalidate(WorkspaceCacheKey.BP_TIMELINE);
+        cache.invalidate(WorkspaceCacheKey.PULSE);
     }
 
     public void shutdown() {
         logger.info("shutting down workspace for session=" + sessionId);
-        executorService.shutdown();
+        executor.cancel();
 
         clearCaches();
 
-        cache.cleanUp();
-        cardCache.cleanUp();
-        bundleCache.cleanUp();
+        cache.close();
 
         shutdownJobs();
     }
@@ -397,7 +431,7 @@ public class UserWorkspace {
     public List<Encounter> getEncounters() {
         List<Encounter> list = new ArrayList<>();
         Set<String> foundIds = new HashSet<>();
-        for (Encounter encounter : getEncounterMap().values()) {
+        for (Encounter encounter : getEncounterIndex().getResources(Encounter.class)) {
             if ( ! foundIds.contains(encounter.getId()) ) {
                 list.add(encounter);
                 foundIds.add(encounter.getId());
@@ -407,30 +441,21 @@ public class UserWorkspace {
     }
 
     public Encounter getEncounter(Reference encounterReference) {
-        Map<String, Encounter> map = getEncounterMap();
-        for (String key : FhirUtil.buildKeys(encounterReference)) {
-            if (map.containsKey(key)) {
-                return map.get(key);
-            }
-        }
-        return null;
+        return getEncounterIndex().getResource(encounterReference, Encounter.class);
     }
 
-    @SuppressWarnings("unchecked")
-    private Map<String, Encounter> getEncounterMap() {
-        return (Map<String, Encounter>) cache.get(CACHE_ENCOUNTER, new Function<String, Map<String, Encounter>>() {
+    private BundleIndex getEncounterIndex() {
+        return cache.get(WorkspaceCacheKey.ENCOUNTER, new Function<String, BundleIndex>() {
             @Override
-            public Map<String, Encounter> apply(String s) {
+            public BundleIndex apply(String s) {
                 long start = System.currentTimeMillis();
                 logger.info("BEGIN build Encounters for session=" + sessionId);
 
                 EHRService svc = ctx.getBean(EHRService.class);
-                Map<String, Encounter> map = new LinkedHashMap<>();
+                BundleIndex index = new BundleIndex(fcm.getCodingClassifier());
                 try {
                     for (Encounter encounter : svc.getEncounters(sessionId)) {
-                        for (String key : FhirUtil.buildKeys(encounter.getId(), encounter.getIdentifier())) {
-                            map.put(key, encounter);
-                        }
+                        index.add(encounter);
                     }
                 } catch (Exception e) {
                     if (e instanceof ForbiddenOperationException) {
@@ -447,15 +472,15 @@ public class UserWorkspace {
                 }
 
                 logger.info("DONE building Encounters for session=" + sessionId +
-                        " (size=" + map.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+                        " (size=" + index.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
 
-                return map;
+                return index;
             }
         });
     }
 
     public PatientModel getPatient() {
-        return (PatientModel) cache.get(CACHE_PATIENT, new Function<String, PatientModel>() {
+        return cache.get(WorkspaceCacheKey.PATIENT, new Function<String, PatientModel>() {
             @Override
             public PatientModel apply(String s) {
                 long start = System.currentTimeMillis();
@@ -490,7 +515,7 @@ public class UserWorkspace {
     }
 
     public Bundle getProtocolObservations() {
-        return bundleCache.get(CACHE_PROTOCOL, new Function<String, Bundle>() {
+        return cache.get(WorkspaceCacheKey.PROTOCOL, new Function<String, Bundle>() {
             @Override
             public Bundle apply(String s) {
                 long start = System.currentTimeMillis();
@@ -500,7 +525,7 @@ public class UserWorkspace {
                 CompositeBundle compositeBundle = new CompositeBundle();
 
                 try {
-                    compositeBundle.consume(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getProtocolCoding()), fcm.getProtocolLookbackPeriod(), null));
+                    compositeBundle.adopt(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getProtocolCoding()), fcm.getProtocolLookbackPeriod(), null));
                 } catch (Exception e) {
                     if (e instanceof ForbiddenOperationException) {
                         logger.warn("attempt to retrieve Protocol Observations was forbidden - will not include Protocol Observations for this session");
@@ -523,9 +548,8 @@ public class UserWorkspace {
         });
     }
 
-    @SuppressWarnings("unchecked")
     public List<BloodPressureModel> getRemoteBloodPressures() {
-        return (List<BloodPressureModel>) cache.get(CACHE_BP, new Function<String, List<BloodPressureModel>>() {
+        return cache.get(WorkspaceCacheKey.BP, new Function<String, List<BloodPressureModel>>() {
             @Override
             public List<BloodPressureModel> apply(String s) {
                 long start = System.currentTimeMillis();
@@ -559,9 +583,84 @@ public class UserWorkspace {
         });
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * @return this session's remote and local blood pressure readings, merged and sorted newest first
+     */
+    public BloodPressureTimeline getBloodPressureTimeline() {
+        return cache.get(WorkspaceCacheKey.BP_TIMELINE, new Function<String, BloodPressureTimeline>() {
+            @Override
+            public BloodPressureTimeline apply(String s) {
+                long start = System.currentTimeMillis();
+                logger.info("BEGIN build Blood Pressure timeline for session=" + sessionId);
+
+                BloodPressureService svc = ctx.getBean(BloodPressureService.class);
+                BloodPressureTimeline timeline;
+                try {
+                    timeline = svc.buildBloodPressureTimeline(sessionId);
+                } catch (DataException e) {
+                    throw new RuntimeException(e);
+                }
+
+                logger.info("DONE building Blood Pressure timeline for session=" + sessionId +
+                        " (size=" + timeline.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+
+                return timeline;
+            }
+        });
+    }
+
+    /**
+     * @return the blood pressure timeline if it has already been built, otherwise null
+     */
+    public BloodPressureTimeline getBloodPressureTimelineIfPresent() {
+        return cache.getIfPresent(WorkspaceCacheKey.BP_TIMELINE);
+    }
+
+    public void clearBloodPressureTimeline() {
+        cache.invalidate(WorkspaceCacheKey.BP_TIMELINE);
+    }
+
+    /**
+     * adds readings created remotely by vitals writeback to the remote BP list and timeline, if they've been built.
+     * readings already present (e.g. because the list was rebuilt after they were written) are skipped
+     */
+    public void addRemoteBloodPressures(List<BloodPressureModel> list) {
+        if (list == null || list.isEmpty()) return;
+
+        List<BloodPressureModel> current = cache.getIfPresent(WorkspaceCacheKey.BP);
+        if (current == null) {
+            // the timeline will include these readings once it's rebuilt from the remote list
+            clearBloodPressureTimeline();
+            return;
+        }
+
+        Set<String> keys = new HashSet<>();
+        for (BloodPressureModel bpm : current) {
+            keys.add(bpm.getLogicalEqualityKey());
+        }
+
+        List<BloodPressureModel> added = new ArrayList<>();
+        for (BloodPressureModel bpm : list) {
+            if (keys.add(bpm.getLogicalEqualityKey())) {
+                added.add(bpm);
+            }
+        }
+        if (added.isEmpty()) return;
+
+        List<BloodPressureModel> updated = new ArrayList<>(current);
+        updated.addAll(added);
+        cache.put(WorkspaceCacheKey.BP, updated);
+
+        BloodPressureTimeline timeline = getBloodPressureTimelineIfPresent();
+        if (timeline != null) {
+            for (BloodPressureModel bpm : added) {
+                timeline.addRemote(bpm);
+            }
+        }
+    }
+
     public List<PulseModel> getRemotePulses() {
-        return (List<PulseModel>) cache.get(CACHE_PULSE, new Function<String, List<PulseModel>>() {
+        return cache.get(WorkspaceCacheKey.PULSE, new Function<String, List<PulseModel>>() {
             @Override
             public List<PulseModel> apply(String s) {
                 long start = System.currentTimeMillis();
@@ -595,8 +694,35 @@ public class UserWorkspace {
         });
     }
 
+    /**
+     * adds readings created remotely by vitals writeback to the remote pulse list, if it's been built.  readings
+     * already present are skipped
+     */
+    public void addRemotePulses(List<PulseModel> list) {
+        if (list == null || list.isEmpty()) return;
+
+        List<PulseModel> current = cache.getIfPresent(WorkspaceCacheKey.PULSE);
+        if (current == null) return;
+
+        Set<String> keys = new HashSet<>();
+        for (PulseModel pm : current) {
+            keys.add(pm.getLogicalEqualityKey());
+        }
+
+        List<PulseModel> updated = new ArrayList<>(current);
+        for (PulseModel pm : list) {
+            if (keys.add(pm.getLogicalEqualityKey())) {
+                updated.add(pm);
+            }
+        }
+
+        if (updated.size() > current.size()) {
+            cache.put(WorkspaceCacheKey.PULSE, updated);
+        }
+    }
+
     public Bundle getEncounterDiagnosisConditions() {
-        return bundleCache.get(CACHE_CONDITION_ENCOUNTER_DIAGNOSIS, new Function<String, Bundle>() {
+        return cache.get(WorkspaceCacheKey.CONDITION_ENCOUNTER_DIAGNOSIS, new Function<String, Bundle>() {
             @Override
             public Bundle apply(String s) {
                 long start = System.currentTimeMillis();
@@ -606,7 +732,7 @@ public class UserWorkspace {
                 CompositeBundle compositeBundle = new CompositeBundle();
 
                 try {
-                    compositeBundle.consume(svc.getEncounterDiagnosisConditions(sessionId));
+                    compositeBundle.adopt(svc.getEncounterDiagnosisConditions(sessionId));
                 } catch (Exception e) {
                     if (e instanceof ForbiddenOperationException) {
                         logger.warn("attempt to retrieve Encounter Diagnosis Conditions was forbidden - will not include Encounter Diagnosis Conditions for this session");
@@ -629,9 +755,8 @@ public class UserWorkspace {
         });
     }
 
-    @SuppressWarnings("unchecked")
     public List<AdverseEventModel> getRemoteAdverseEvents() {
-        return (List<AdverseEventModel>) cache.get(CACHE_ADVERSE_EVENT, new Function<String, List<AdverseEventModel>>() {
+        return cache.get(WorkspaceCacheKey.ADVERSE_EVENT, new Function<String, List<AdverseEventModel>>() {
             @Override
             public List<AdverseEventModel> apply(String s) {
                 long start = System.currentTimeMillis();
@@ -666,7 +791,7 @@ public class UserWorkspace {
     }
 
     public Bundle getOrderServiceRequests() {
-        return bundleCache.get(CACHE_ORDER_SERVICE_REQUEST, new Function<String, Bundle>() {
+        return cache.get(WorkspaceCacheKey.ORDER_SERVICE_REQUEST, new Function<String, Bundle>() {
             @Override
             public Bundle apply(String s) {
                 long start = System.currentTimeMillis();
@@ -676,7 +801,7 @@ public class UserWorkspace {
                 CompositeBundle compositeBundle = new CompositeBundle();
 
                 try {
-                    compositeBundle.consume(svc.getOrderServiceRequests(sessionId));
+                    compositeBundle.adopt(svc.getOrderServiceRequests(sessionId));
                 } catch (Exception e) {
                     if (e instanceof ForbiddenOperationException) {
                         logger.warn("attempt to retrieve Order Service Requests was forbidden - will not include Order Service Requests for this session");
@@ -699,9 +824,8 @@ public class UserWorkspace {
         });
     }
 
-    @SuppressWarnings("unchecked")
     public List<GoalModel> getRemoteGoals() {
-        return (List<GoalModel>) cache.get(CACHE_GOAL, new Function<String, List<GoalModel>>() {
+        return cache.get(WorkspaceCacheKey.GOAL, new Function<String, List<GoalModel>>() {
             @Override
             public List<GoalModel> apply(String s) {
                 long start = System.currentTimeMillis();
@@ -747,9 +871,8 @@ public class UserWorkspace {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public List<MedicationModel> getMedications() {
-        return (List<MedicationModel>) cache.get(CACHE_MEDICATION, new Function<String, List<MedicationModel>>() {
+        return cache.get(WorkspaceCacheKey.MEDICATION, new Function<String, List<MedicationModel>>() {
             @Override
             public List<MedicationModel> apply(String s) {
                 long start = System.currentTimeMillis();
@@ -784,7 +907,7 @@ public class UserWorkspace {
     }
 
     public Bundle getProblemListConditions() {
-        return bundleCache.get(CACHE_PROBLEM_LIST_CONDITION, new Function<String, Bundle>() {
+        return cache.get(WorkspaceCacheKey.PROBLEM_LIST_CONDITION, new Function<String, Bundle>() {
             @Override
             public Bundle apply(String s) {
                 long start = System.currentTimeMillis();
@@ -794,7 +917,7 @@ public class UserWorkspace {
                 CompositeBundle compositeBundle = new CompositeBundle();
 
                 try {
-                    compositeBundle.consume(svc.getProblemListConditions(sessionId));
+                    compositeBundle.adopt(svc.getProblemListConditions(sessionId));
                 } catch (Exception e) {
                     if (e instanceof ForbiddenOperationException) {
                         logger.warn("attempt to retrieve Problem List Conditions was forbidden - will not include Problem List Conditions for this session");
@@ -818,7 +941,7 @@ public class UserWorkspace {
     }
 
     public Bundle getSmokingObservations() {
-        return bundleCache.get(CACHE_SMOKING_OBSERVATIONS, new Function<String, Bundle>() {
+        return cache.get(WorkspaceCacheKey.SMOKING_OBSERVATIONS, new Function<String, Bundle>() {
             @Override
             public Bundle apply(String s) {
                 long start = System.currentTimeMillis();
@@ -828,7 +951,7 @@ public class UserWorkspace {
                 CompositeBundle compositeBundle = new CompositeBundle();
 
                 try {
-                    compositeBundle.consume(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getSmokingCodings()), fcm.getSmokingLookbackPeriod(), null));
+                    compositeBundle.adopt(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getSmokingCodings()), fcm.getSmokingLookbackPeriod(), null));
                 } catch (Exception e) {
                     if (e instanceof ForbiddenOperationException) {
                         logger.warn("attempt to retrieve Tobacco Smoking Observations was forbidden - will not include Tobacco Smoking Observations for this session");
@@ -852,7 +975,7 @@ public class UserWorkspace {
     }
 
     public Bundle getDrinkingObservations() {
-        return bundleCache.get(CACHE_DRINKING_OBSERVATIONS, new Function<String, Bundle>() {
+        return cache.get(WorkspaceCacheKey.DRINKING_OBSERVATIONS, new Function<String, Bundle>() {
             @Override
             public Bundle apply(String s) {
                 long start = System.currentTimeMillis();
@@ -865,7 +988,7 @@ public class UserWorkspace {
                     String lookback = fcm.isDrinkingIncludeLookbackInQuery() ?
                             fcm.getDrinkingLookbackPeriod() :
                             null;
-                    compositeBundle.consume(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getDrinkingCodings()), lookback, null));
+                    compositeBundle.adopt(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getDrinkingCodings()), lookback, null));
                 } catch (Exception e) {
                     if (e instanceof ForbiddenOperationException) {
                         logger.warn("attempt to retrieve Alcohol Drinking Observations was forbidden - will not include Alcohol Drinking Observations for this session");
@@ -889,7 +1012,7 @@ public class UserWorkspace {
     }
 
     public Bundle getOtherSupplementalResources() {
-        return bundleCache.get(CACHE_OTHER_SUPPLEMENTAL_RESOURCES, new Function<String, Bundle>() {
+        return cache.get(WorkspaceCacheKey.OTHER_SUPPLEMENTAL_RESOURCES, new Function<String, Bundle>() {
             @Override
             public Bundle apply(String s) {
                 long start = System.currentTimeMillis();
@@ -899,8 +1022,8 @@ public class UserWorkspace {
                 CompositeBundle compositeBundle = new CompositeBundle();
 
                 try {
-                    compositeBundle.consume(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getBmiCoding()), fcm.getBmiLookbackPeriod(),null));
-                    compositeBundle.consume(svc.getCounselingProcedures(sessionId));
+                    compositeBundle.adopt(svc.getObservations(sessionId, FhirUtil.toCodeParamString(fcm.getBmiCoding()), fcm.getBmiLookbackPeriod(),null));
+                    compositeBundle.adopt(svc.getCounselingProcedures(sessionId));
                 } catch (Exception e) {
                     if (e instanceof ForbiddenOperationException) {
                         logger.warn("attempt to retrieve Supplemental Resources was forbidden - will not include Supplemental Resources for this session");
@@ -939,30 +1062,57 @@ public class UserWorkspace {
         Map<String, List<Card>> map = new LinkedHashMap<>();
         RecommendationService svc = ctx.getBean(RecommendationService.class);
         try {
+            Map<String, List<Card>> present = cache.getPresent(WorkspaceCacheKey.CARDS);
+
+            List<String> hookIds = new ArrayList<>();
+            List<String> missingHookIds = new ArrayList<>();
             for (CDSHook hook : svc.getOrderedCDSHooks(sessionId)) {
+                hookIds.add(hook.getId());
+                if ( ! present.containsKey(hook.getId()) ) {
+                    missingHookIds.add(hook.getId());
+                }
+            }
+
+            Map<String, List<Card>> built = new HashMap<>();
+            if ( ! missingHookIds.isEmpty() ) {
+                long start = System.currentTimeMillis();
+                logger.info("BEGIN build Cards for session=" + sessionId + ", hooks=" + missingHookIds);
+
                 try {
-                    map.put(hook.getId(), getCards(hook.getId()));
+                    // the prefetch is built once for all missing hooks, which are then evaluated concurrently.  each
+                    // hook's cards are cached as soon as they arrive, so they can be displayed before the rest finish
+                    built = svc.getCards(sessionId, missingHookIds,
+                            (hookId, cards) -> cache.put(WorkspaceCacheKey.cards(hookId), cards));
 
                 } catch (Exception e) {
-                    logger.error("caught " + e.getClass().getName() + " getting cards for hook=" + hook.getId() + " - " +
+                    logger.error("caught " + e.getClass().getName() + " getting cards for hooks=" + missingHookIds + " - " +
                             e.getMessage(), e);
 
                     auditService.doAudit(sessionId, AuditSeverity.ERROR, "recommendation exception", "encountered " +
-                            e.getClass().getSimpleName() + " getting recommendations for " + hook.getId() + " - " +
+                            e.getClass().getSimpleName() + " getting recommendations for " + missingHookIds + " - " +
                             e.getMessage());
 
                     throw new RuntimeException(e);
                 }
+
+                logger.info("DONE building Cards for session=" + sessionId +
+                        " (hooks=" + missingHookIds.size() + ", took " + (System.currentTimeMillis() - start) + "ms)");
+            }
+
+            for (String hookId : hookIds) {
+                map.put(hookId, built.containsKey(hookId) ?
+                        built.get(hookId) :
+                        present.get(hookId));
             }
+
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
         return map;
     }
 
-    @SuppressWarnings("unchecked")
     public List<Card> getCards(String recommendationId) {
-        return (List<Card>) cardCache.get(recommendationId, new Function<String, List<Card>>() {
+        return cache.get(WorkspaceCacheKey.cards(recommendationId), new Function<String, List<Card>>() {
             @Override
             public List<Card> apply(String s) {
                 long start = System.currentTimeMillis();
@@ -985,11 +1135,11 @@ public class UserWorkspace {
     }
 
     public void deleteCards(String recommendationId) {
-        cardCache.invalidate(recommendationId);
+        cache.invalidate(WorkspaceCacheKey.cards(recommendationId));
     }
 
     public void deleteAllCards() {
-        cardCache.invalidateAll();
+        cache.invalidateAll(WorkspaceCacheKey.CARDS);
     }
 
     /**
@@ -1000,8 +1150,8 @@ public class UserWorkspace {
      */
     public boolean deleteSuggestion(String id) {
         boolean rval = false;
-        for (Map.Entry<String, List<Card>> entry : ((Map<String, List<Card>>) cardCache.asMap()).entrySet()) {
-            for (Card c : entry.getValue()) {
+        for (List<Card> cards : cache.<List<Card>>getPresent(WorkspaceCacheKey.CARDS).values()) {
+            for (Card c : cards) {
                 if (c.getSuggestions() != null) {
                     Iterator<Suggestion> iter = c.getSuggestions().iterator();
                     while (iter.hasNext()) {
@@ -1020,6 +1170,7 @@ public class UserWorkspace {
     public void clearSupplementalData() {
         HomeBloodPressureReadingService hbprService = ctx.getBean(HomeBloodPressureReadingService.class);
         hbprService.deleteAll(sessionId);
+        cache.invalidate(WorkspaceCacheKey.BP_TIMELINE);
 
         // todo : also clear hypotension adverse events
 
@@ -1055,8 +1206,15 @@ public class UserWorkspace {
         return omronTokenData;
     }
 
-    public void setOmronTokenData(OmronTokenData omronTokenData) {
+    public synchronized void setOmronTokenData(OmronTokenData omronTokenData) {
+        String previousOmronUserId = this.omronTokenData != null ?
+                this.omronTokenData.getUserIdToken() :
+                null;
+
         this.omronTokenData = omronTokenData;
+
+        ctx.getBean(UserWorkspaceService.class).updateOmronUserIdIndex(sessionId, previousOmronUserId,
+                omronTokenData != null ? omronTokenData.getUserIdToken() : null);
     }
 
     public void initiateSynchronousOmronUpdate() {
@@ -1093,7 +1251,7 @@ public class UserWorkspace {
             }
         };
 
-        executorService.submit(runnable);
+        executor.execute(runnable);
     }
 
     public Boolean isOmronSynchronizing() {
@@ -1129,11 +1287,38 @@ public class UserWorkspace {
         }
     }
 
+    public SummaryFingerprint getLastSummaryFingerprint() {
+        return lastSummaryFingerprint;
+    }
+
+    public void setLastSummaryFingerprint(SummaryFingerprint lastSummaryFingerprint) {
+        this.lastSummaryFingerprint = lastSummaryFingerprint;
+    }
+
+    public SummarySectionCache getSummarySections() {
+        return summarySections;
+    }
+
     private void writeSummary() {
+        summaryWriteRequested.set(true);
+        while (summaryWriteRequested.get() && summaryWriting.compareAndSet(false, true)) {
+            try {
+                while (summaryWriteRequested.getAndSet(false)) {
+                    doWriteSummary();
+                }
+            } finally {
+                summaryWriting.set(false);
+            }
+        }
+    }
+
+    private void doWriteSummary() {
         SummaryService svc = ctx.getBean(SummaryService.class);
         try {
             Summary summary = svc.buildSummary(sessionId);
-            svc.create(sessionId, summary);
+            if (summary != null) {
+                svc.createIfChanged(sessionId, summary);
+            }
 
         } catch (Exception e) {
             logger.error("caught " + e.getClass().getName() + " writing summary for session=" + sessionId + " - " +
@@ -9,17 +9,22 @@ import edu.ohsu.cmp.coach.model.Audience;
 import edu.ohsu.cmp.coach.model.OmronTokenData;
 import edu.ohsu.cmp.coach.model.fhir.FHIRCredentialsWithClient;
 import edu.ohsu.cmp.coach.model.redcap.RandomizationGroup;
-import org.apache.commons.lang3.StringUtils;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class UserWorkspaceService {
@@ -39,8 +44,42 @@ public class UserWorkspaceService {
 
     private final Map<String, UserWorkspace> map;
 
-    public UserWorkspaceService() {
+    // Omron user id -> ids of the sessions authorized as that Omron user, for routing Omron notifications
+    private final Map<String, Set<String>> omronUserIdIndex = new ConcurrentHashMap<>();
+
+    // internal patient id -> ids of the sessions for that patient, for finding a patient's workspace from background work
+    private final Map<Long, Set<String>> internalPatientIdIndex = new ConcurrentHashMap<>();
+    private final WorkspaceExecutionService executionService;
+    private final WorkspaceCacheRegistry cacheRegistry;
+
+    public UserWorkspaceService(@Value("${workspace.executor.global-limit:64}") int globalLimit,
+                                @Value("${workspace.executor.per-session-limit:5}") int perSessionLimit,
+                                @Value("${workspace.cache.max-weight-mb:512}") long cacheMaxWeightMB,
+                                @Value("${workspace.cache.expire-after-write-hours:6}") long cacheExpireAfterWriteHours) {
         map = new ConcurrentHashMap<>();
+        executionService = new WorkspaceExecutionService(globalLimit, perSessionLimit);
+        cacheRegistry = new WorkspaceCacheRegistry(cacheMaxWeightMB * 1024 * 1024,
+                TimeUnit.HOURS.toMillis(cacheExpireAfterWriteHours));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executionService.shutdown();
+        cacheRegistry.shutdown();
+    }
+
+    public WorkspaceExecutionService getExecutionService() {
+        return executionService;
+    }
+
+    public WorkspaceCacheRegistry getCacheRegistry() {
+        return cacheRegistry;
+    }
+
+    @Scheduled(fixedDelayString = "${workspace.cache.stats-log-interval-ms:900000}",
+            initialDelayString = "${workspace.cache.stats-log-interval-ms:900000}")
+    public void logCacheStats() {
+        cacheRegistry.logStats();
     }
 
     public boolean exists(String sessionId) {
@@ -55,9 +94,11 @@ public class UserWorkspaceService {
                         " during init, which we shut down.  this is weird, as this should have been cleared earlier.  ???");
             }
 
-            UserWorkspace workspace = new UserWorkspace(ctx, sessionId, audience, randomizationGroup, requiresEnrollment, hasCompletedStudy, fcc, fqm, fcm);
+            UserWorkspace workspace = new UserWorkspace(ctx, sessionId, audience, randomizationGroup, requiresEnrollment, hasCompletedStudy, fcc, fqm, fcm,
+                    cacheRegistry.forSession(sessionId), executionService.forSession(sessionId));
             workspace.setVendorTransformer(buildVendorTransformer(workspace));
             map.put(sessionId, workspace);
+            addToInternalPatientIdIndex(workspace.getInternalPatientId(), sessionId);
 
         } catch (Exception e) {
             throw new ConfigurationException(e);
@@ -73,11 +114,50 @@ public class UserWorkspaceService {
         }
     }
 
+    /**
+     * @return the workspace for sessionId, or null if there isn't one
+     */
+    public UserWorkspace getIfPresent(String sessionId) {
+        return map.get(sessionId);
+    }
+
+    /**
+     * @return a workspace for the patient with internal id patId, or null if the patient has no session
+     */
+    public UserWorkspace getByInternalPatientId(Long patId) {
+        Set<String> sessionIds = patId != null ?
+                internalPatientIdIndex.get(patId) :
+                null;
+
+        if (sessionIds != null) {
+            for (String sessionId : sessionIds) {
+                UserWorkspace workspace = map.get(sessionId);
+                if (workspace != null) {
+                    return workspace;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the internal ids of the patients who currently have a session
+     */
+    public Set<Long> getInternalPatientIds() {
+        return Collections.unmodifiableSet(internalPatientIdIndex.keySet());
+    }
+
     public UserWorkspace getByOmronUserId(String omronUserId) throws SessionMissingException {
-        for (UserWorkspace workspace : map.values()) {
-            OmronTokenData tokenData = workspace.getOmronTokenData();
-            if (tokenData != null && StringUtils.equals(tokenData.getUserIdToken(), omronUserId)) {
-                return workspace;
+        Set<String> sessionIds = omronUserId != null ?
+                omronUserIdIndex.get(omronUserId) :
+                null;
+
+        if (sessionIds != null) {
+            for (String sessionId : sessionIds) {
+                UserWorkspace workspace = map.get(sessionId);
+                if (workspace != null) {
+                    return workspace;
+                }
             }
         }
         throw new SessionMissingException("no session found for Omron User with id=" + omronUserId);
@@ -86,12 +166,64 @@ public class UserWorkspaceService {
     public boolean shutdown(String sessionId) {
         if (map.containsKey(sessionId)) {
             UserWorkspace workspace = map.remove(sessionId);
+            removeFromInternalPatientIdIndex(workspace.getInternalPatientId(), sessionId);
+            OmronTokenData tokenData = workspace.getOmronTokenData();
+            if (tokenData != null) {
+                removeFromOmronUserIdIndex(tokenData.getUserIdToken(), sessionId);
+            }
             workspace.shutdown();
             return true;
         }
         return false;
     }
 
+    /**
+     * called by a workspace when its Omron token data changes, to keep the Omron user id index current
+     */
+    void updateOmronUserIdIndex(String sessionId, String previousOmronUserId, String omronUserId) {
+        if (Objects.equals(previousOmronUserId, omronUserId)) return;
+
+        if (previousOmronUserId != null) {
+            removeFromOmronUserIdIndex(previousOmronUserId, sessionId);
+        }
+
+        if (omronUserId != null) {
+            omronUserIdIndex.compute(omronUserId, (k, sessionIds) -> {
+                if (sessionIds == null) sessionIds = ConcurrentHashMap.newKeySet();
+                sessionIds.add(sessionId);
+                return sessionIds;
+            });
+        }
+    }
+
+    private void removeFromOmronUserIdIndex(String omronUserId, String sessionId) {
+        if (omronUserId == null) return;
+
+        omronUserIdIndex.computeIfPresent(omronUserId, (k, sessionIds) -> {
+            sessionIds.remove(sessionId);
+            return sessionIds.isEmpty() ? null : sessionIds;
+        });
+    }
+
+    private void addToInternalPatientIdIndex(Long patId, String sessionId) {
+        if (patId == null) return;
+
+        internalPatientIdIndex.compute(patId, (k, sessionIds) -> {
+            if (sessionIds == null) sessionIds = ConcurrentHashMap.newKeySet();
+            sessionIds.add(sessionId);
+            return sessionIds;
+        });
+    }
+
+    private void removeFromInternalPatientIdIndex(Long patId, String sessionId) {
+        if (patId == null) return;
+
+        internalPatientIdIndex.computeIfPresent(patId, (k, sessionIds) -> {
+            sessionIds.remove(sessionId);
+            return sessionIds.isEmpty() ? null : sessionIds;
+        });
+    }
+
     private VendorTransformer buildVendorTransformer(UserWorkspace workspace) throws ClassNotFoundException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
         return (VendorTransformer) Class.forName(vendorTransformerClass)
                     .getDeclaredConstructor(UserWorkspace.class)
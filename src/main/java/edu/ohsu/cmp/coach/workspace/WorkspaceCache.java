@@ -0,0 +1,228 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * A single session's cache of workspace resources, keyed by WorkspaceCacheKey.  The weight of every entry is tracked
+ * by the owning WorkspaceCacheRegistry, which evicts entries from the least recently active sessions first whenever
+ * the global memory budget is exceeded.  Eviction happens asynchronously, shortly after the budget is exceeded.
+ */
+public class WorkspaceCache {
+    private static class Entry {
+        private final Object value;
+        private final long weight;
+
+        private Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static class Load {
+        private final Thread thread = Thread.currentThread();
+        private final CompletableFuture<Entry> future = new CompletableFuture<>();
+
+        private Entry await() {
+            try {
+                return future.join();
+
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+    }
+
+    private final WorkspaceCacheRegistry registry;
+    private final String sessionId;
+    private final Cache<WorkspaceCacheKey<?>, Entry> cache;
+    private final Map<WorkspaceCacheKey<?>, Load> loading = new ConcurrentHashMap<>();
+    private volatile long lastAccessMillis;
+
+    WorkspaceCache(WorkspaceCacheRegistry registry, String sessionId, long expireAfterWriteMillis) {
+        this.registry = registry;
+        this.sessionId = sessionId;
+        this.lastAccessMillis = System.currentTimeMillis();
+        this.cache = Caffeine.newBuilder()
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .executor(Runnable::run)    // process removals on the calling thread so weight accounting stays current
+                .removalListener((WorkspaceCacheKey<?> key, Entry entry, RemovalCause cause) -> {
+                    if (key != null && entry != null) {
+                        registry.removed(key, entry.weight, cause.wasEvicted());
+                    }
+                })
+                .build();
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public long getLastAccessMillis() {
+        return lastAccessMillis;
+    }
+
+    /**
+     * Returns the value associated with key, obtaining it from loader if it isn't already present.  loader is called
+     * outside of the underlying cache, so it may itself get other keys, e.g. to build a value from other cached
+     * values, and a slow load doesn't block access to other keys.  concurrent calls for the same key share one load.
+     * @param key
+     * @param loader called with key.getId() if the value isn't cached.  if the loader returns null, nothing is cached
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(WorkspaceCacheKey<V> key, Function<String, V> loader) {
+        lastAccessMillis = System.currentTimeMillis();
+
+        final WorkspaceCacheStats stats = registry.getStats(key.getName());
+
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            stats.recordHit();
+            return (V) entry.value;
+        }
+
+        Load load = new Load();
+        Load existing = loading.putIfAbsent(key, load);
+        if (existing != null) {
+            // another thread is already loading key.  wait for it rather than loading key again
+            if (existing.thread == Thread.currentThread()) {
+                throw new IllegalStateException("recursive load of " + key + " for session=" + sessionId);
+            }
+            stats.recordHit();
+            entry = existing.await();
+            return entry != null ?
+                    (V) entry.value :
+                    null;
+        }
+
+        stats.recordMiss();
+        long start = System.nanoTime();
+        try {
+            V value = loader.apply(key.getId());
+            stats.recordLoadSuccess(System.nanoTime() - start);
+
+            Entry e = value != null ?
+                    new Entry(value, WorkspaceCacheWeigher.weigh(value)) :
+                    null;
+
+            // only publish the value if key wasn't invalidated while it was being loaded
+            loading.computeIfPresent(key, (k, current) -> {
+                if (current != load) return current;
+                if (e != null) {
+                    registry.added(key, e.weight);
+                    cache.put(key, e);
+                }
+                return null;
+            });
+            load.future.complete(e);
+
+            if (e != null) {
+                registry.requestEnforcement();
+            }
+            return value;
+
+        } catch (RuntimeException re) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            loading.remove(key, load);
+            load.future.completeExceptionally(re);
+            throw re;
+        }
+    }
+
+    /**
+     * Associates value with key, replacing any value already present.  used to publish values that were built
+     * outside of get(), e.g. as part of a batch
+     */
+    public <V> void put(WorkspaceCacheKey<V> key, V value) {
+        lastAccessMillis = System.currentTimeMillis();
+
+        Entry e = new Entry(value, WorkspaceCacheWeigher.weigh(value));
+        registry.added(key, e.weight);
+        cache.put(key, e);      // any replaced entry fires removal listener with cause REPLACED
+        registry.requestEnforcement();
+    }
+
+    /**
+     * @return the value associated with key, or null if none is present.  does not affect statistics or trigger loading
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V getIfPresent(WorkspaceCacheKey<V> key) {
+        Entry entry = cache.getIfPresent(key);
+        return entry != null ?
+                (V) entry.value :
+                null;
+    }
+
+    /**
+     * @param name the name of the keys of interest, e.g. WorkspaceCacheKey.CARDS
+     * @return the values currently cached under keys with the specified name, keyed by ID.  does not affect
+     * statistics or trigger loading
+     */
+    @SuppressWarnings("unchecked")
+    public <V> Map<String, V> getPresent(String name) {
+        Map<String, V> map = new LinkedHashMap<>();
+        for (Map.Entry<WorkspaceCacheKey<?>, Entry> e : cache.asMap().entrySet()) {
+            if (e.getKey().getName().equals(name)) {
+                map.put(e.getKey().getId(), (V) e.getValue().value);
+            }
+        }
+        return map;
+    }
+
+    public void invalidate(WorkspaceCacheKey<?> key) {
+        loading.remove(key);
+        cache.invalidate(key);
+    }
+
+    public void invalidateAll(String name) {
+        loading.keySet().removeIf(key -> key.getName().equals(name));
+
+        List<WorkspaceCacheKey<?>> keys = new ArrayList<>();
+        for (WorkspaceCacheKey<?> key : cache.asMap().keySet()) {
+            if (key.getName().equals(name)) {
+                keys.add(key);
+            }
+        }
+        cache.invalidateAll(keys);
+    }
+
+    public void invalidateAll() {
+        loading.clear();
+        cache.invalidateAll();
+    }
+
+    /**
+     * Invalidates everything in this cache and removes it from the registry.  Called when the workspace shuts down.
+     */
+    public void close() {
+        cache.invalidateAll();
+        cache.cleanUp();
+        registry.release(this);
+    }
+
+    /**
+     * evicts entries from this cache, heaviest first, until done returns true or nothing remains
+     */
+    void evictUntil(BooleanSupplier done) {
+        List<Map.Entry<WorkspaceCacheKey<?>, Entry>> entries = new ArrayList<>(cache.asMap().entrySet());
+        entries.sort((o1, o2) -> Long.compare(o2.getValue().weight, o1.getValue().weight));
+
+        for (Map.Entry<WorkspaceCacheKey<?>, Entry> e : entries) {
+            if (done.getAsBoolean()) break;
+            if (cache.asMap().remove(e.getKey(), e.getValue())) {   // fires removal listener with cause EXPLICIT
+                registry.getStats(e.getKey().getName()).recordEviction();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import edu.ohsu.cmp.coach.fhir.BundleIndex;
+import edu.ohsu.cmp.coach.model.*;
+import edu.ohsu.cmp.coach.model.recommendation.Card;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Identifies a single item in a WorkspaceCache, and the type of value stored under it.  There is one key per
+ * resource type, except Cards, for which there is one key per recommendation.  Statistics are reported by name.
+ * @param <V> the type of value stored under this key
+ */
+public final class WorkspaceCacheKey<V> {
+    public static final WorkspaceCacheKey<PatientModel> PATIENT = new WorkspaceCacheKey<>("Patient");
+    public static final WorkspaceCacheKey<BundleIndex> ENCOUNTER = new WorkspaceCacheKey<>("Encounter");
+    public static final WorkspaceCacheKey<Bundle> PROTOCOL = new WorkspaceCacheKey<>("Protocol");
+    public static final WorkspaceCacheKey<List<BloodPressureModel>> BP = new WorkspaceCacheKey<>("BP");
+    public static final WorkspaceCacheKey<BloodPressureTimeline> BP_TIMELINE = new WorkspaceCacheKey<>("BPTimeline");
+    public static final WorkspaceCacheKey<List<PulseModel>> PULSE = new WorkspaceCacheKey<>("Pulse");
+    public static final WorkspaceCacheKey<List<AdverseEventModel>> ADVERSE_EVENT = new WorkspaceCacheKey<>("AdverseEvent");
+    public static final WorkspaceCacheKey<List<GoalModel>> GOAL = new WorkspaceCacheKey<>("Goal");
+    public static final WorkspaceCacheKey<List<MedicationModel>> MEDICATION = new WorkspaceCacheKey<>("Medication");
+    public static final WorkspaceCacheKey<Bundle> ORDER_SERVICE_REQUEST = new WorkspaceCacheKey<>("OrderServiceRequest");
+    public static final WorkspaceCacheKey<Bundle> CONDITION_ENCOUNTER_DIAGNOSIS = new WorkspaceCacheKey<>("EncounterDiagnosisCondition");
+    public static final WorkspaceCacheKey<Bundle> PROBLEM_LIST_CONDITION = new WorkspaceCacheKey<>("ProblemListCondition");
+    public static final WorkspaceCacheKey<Bundle> SMOKING_OBSERVATIONS = new WorkspaceCacheKey<>("SmokingObservations");
+    public static final WorkspaceCacheKey<Bundle> DRINKING_OBSERVATIONS = new WorkspaceCacheKey<>("DrinkingObservations");
+    public static final WorkspaceCacheKey<Bundle> OTHER_SUPPLEMENTAL_RESOURCES = new WorkspaceCacheKey<>("OtherSupplementalResources");
+
+    public static final String CARDS = "Cards";
+
+    public static WorkspaceCacheKey<List<Card>> cards(String recommendationId) {
+        return new WorkspaceCacheKey<>(CARDS, recommendationId);
+    }
+
+    private final String name;
+    private final String id;
+
+    private WorkspaceCacheKey(String name) {
+        this(name, name);
+    }
+
+    private WorkspaceCacheKey(String name, String id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    /**
+     * @return the name of the type of item stored under this key, which is used for reporting statistics
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the identifier of this item within its type.  for most keys this is the same as the name; for Cards,
+     * it is the recommendation ID
+     */
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        WorkspaceCacheKey<?> that = (WorkspaceCacheKey<?>) o;
+        return name.equals(that.name) && id.equals(that.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, id);
+    }
+
+    @Override
+    public String toString() {
+        return name.equals(id) ? name : name + ":" + id;
+    }
+}
@@ -0,0 +1,150 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application-wide registry of WorkspaceCaches.  Tracks the estimated weight of everything cached across all sessions,
+ * enforces a global memory budget, and collects per-key statistics.
+ * <p>
+ * The budget is enforced on a dedicated thread, never on the thread that added to a cache.  values are often added
+ * while a loader is still running inside another cache's compute (e.g. BP_TIMELINE loading BP), and evicting from
+ * that thread could deadlock against, or recursively update, a cache it's computing in.
+ */
+public class WorkspaceCacheRegistry {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final long maxWeight;
+    private final long expireAfterWriteMillis;
+    private final Map<String, WorkspaceCache> caches;
+    private final Map<String, WorkspaceCacheStats> stats;
+    private final AtomicLong totalWeight;
+    private final ExecutorService enforcer;
+    private final AtomicBoolean enforcementPending = new AtomicBoolean(false);
+
+    public WorkspaceCacheRegistry(long maxWeight, long expireAfterWriteMillis) {
+        this.maxWeight = maxWeight;
+        this.expireAfterWriteMillis = expireAfterWriteMillis;
+        this.caches = new ConcurrentHashMap<>();
+        this.stats = new ConcurrentHashMap<>();
+        this.totalWeight = new AtomicLong();
+        this.enforcer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "workspace-cache-enforcer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        logger.info("created workspace cache registry (maxWeight=" + maxWeight + " bytes, expireAfterWrite=" +
+                expireAfterWriteMillis + "ms)");
+    }
+
+    public WorkspaceCache forSession(String sessionId) {
+        return caches.computeIfAbsent(sessionId, s -> new WorkspaceCache(this, s, expireAfterWriteMillis));
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getTotalWeight() {
+        return totalWeight.get();
+    }
+
+    public int getSessionCount() {
+        return caches.size();
+    }
+
+    /**
+     * @return statistics for each key name, ordered by name
+     */
+    public List<WorkspaceCacheStats> getStats() {
+        List<WorkspaceCacheStats> list = new ArrayList<>(stats.values());
+        list.sort(Comparator.comparing(WorkspaceCacheStats::getName));
+        return list;
+    }
+
+    WorkspaceCacheStats getStats(String name) {
+        return stats.computeIfAbsent(name, WorkspaceCacheStats::new);
+    }
+
+    void added(WorkspaceCacheKey<?> key, long weight) {
+        getStats(key.getName()).addWeight(weight);
+        totalWeight.addAndGet(weight);
+    }
+
+    void removed(WorkspaceCacheKey<?> key, long weight, boolean evicted) {
+        WorkspaceCacheStats s = getStats(key.getName());
+        s.addWeight(-weight);
+        if (evicted) s.recordEviction();
+        totalWeight.addAndGet(-weight);
+    }
+
+    void release(WorkspaceCache cache) {
+        caches.remove(cache.getSessionId(), cache);
+    }
+
+    /**
+     * If the global budget has been exceeded, schedules enforcement on the enforcer thread, unless it's already
+     * scheduled.  never blocks, so it's safe to call from within a loader
+     */
+    void requestEnforcement() {
+        if (totalWeight.get() <= maxWeight) return;
+
+        if (enforcementPending.compareAndSet(false, true)) {
+            try {
+                enforcer.execute(() -> {
+                    enforcementPending.set(false);
+                    try {
+                        enforceBudget();
+                    } catch (Exception e) {
+                        logger.error("caught " + e.getClass().getName() + " enforcing workspace cache budget - " + e.getMessage(), e);
+                    }
+                });
+
+            } catch (RejectedExecutionException e) {
+                enforcementPending.set(false);      // shutting down
+            }
+        }
+    }
+
+    public void shutdown() {
+        enforcer.shutdownNow();
+    }
+
+    /**
+     * If the global budget has been exceeded, evict entries from the least recently active sessions first until
+     * the total weight is back within budget.  runs only on the enforcer thread
+     */
+    private void enforceBudget() {
+        if (totalWeight.get() <= maxWeight) return;
+
+        long before = totalWeight.get();
+
+        List<WorkspaceCache> list = new ArrayList<>(caches.values());
+        list.sort(Comparator.comparingLong(WorkspaceCache::getLastAccessMillis));   // idle sessions first
+
+        for (WorkspaceCache cache : list) {
+            if (totalWeight.get() <= maxWeight) break;
+            cache.evictUntil(() -> totalWeight.get() <= maxWeight);
+        }
+
+        logger.info("workspace cache exceeded budget of " + maxWeight + " bytes - evicted " +
+                (before - totalWeight.get()) + " bytes (now " + totalWeight.get() + ")");
+    }
+
+    public void logStats() {
+        logger.info("workspace cache: sessions=" + caches.size() + ", totalWeight=" + totalWeight.get() +
+                ", maxWeight=" + maxWeight);
+        for (WorkspaceCacheStats s : getStats()) {
+            logger.info(" - " + s);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit, miss, load and eviction statistics for one WorkspaceCacheKey name, aggregated across all sessions.
+ */
+public class WorkspaceCacheStats {
+    private final String name;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadSuccesses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder totalLoadTimeNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final AtomicLong weight = new AtomicLong();
+
+    public WorkspaceCacheStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long requests = getHits() + getMisses();
+        return requests == 0 ? 1.0 : (double) getHits() / requests;
+    }
+
+    public long getLoadSuccesses() {
+        return loadSuccesses.sum();
+    }
+
+    public long getLoadFailures() {
+        return loadFailures.sum();
+    }
+
+    public long getAverageLoadMillis() {
+        long loads = getLoadSuccesses() + getLoadFailures();
+        return loads == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLoadTimeNanos.sum() / loads);
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the estimated number of bytes currently held under this name, across all sessions
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordLoadSuccess(long loadTimeNanos) {
+        loadSuccesses.increment();
+        totalLoadTimeNanos.add(loadTimeNanos);
+    }
+
+    void recordLoadFailure(long loadTimeNanos) {
+        loadFailures.increment();
+        totalLoadTimeNanos.add(loadTimeNanos);
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    void addWeight(long delta) {
+        weight.addAndGet(delta);
+    }
+
+    @Override
+    public String toString() {
+        return "WorkspaceCacheStats{" +
+                "name='" + name + '\'' +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", hitRate=" + String.format("%.3f", getHitRate()) +
+                ", loadSuccesses=" + getLoadSuccesses() +
+                ", loadFailures=" + getLoadFailures() +
+                ", averageLoadMillis=" + getAverageLoadMillis() +
+                ", evictions=" + getEvictions() +
+                ", weight=" + getWeight() +
+                '}';
+    }
+}
@@ -0,0 +1,72 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import edu.ohsu.cmp.coach.fhir.BundleIndex;
+import edu.ohsu.cmp.coach.model.AbstractVitalsModel;
+import edu.ohsu.cmp.coach.model.recommendation.Card;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates the number of heap bytes retained by a value stored in a WorkspaceCache.  These are rough, per-item
+ * estimates based on observed sizes of parsed R4 resources; they are intended to keep the global cache budget
+ * proportional to actual memory use, not to measure it precisely.
+ */
+public class WorkspaceCacheWeigher {
+    private static final long BASE_BYTES = 256;
+    private static final long RESOURCE_BYTES = 4096;
+    private static final long VITALS_MODEL_BYTES = 3 * RESOURCE_BYTES;  // source Observation(s), Encounter, protocol Observation
+    private static final long MODEL_BYTES = RESOURCE_BYTES;
+    private static final long CARD_BYTES = 2048;
+    private static final long TIMELINE_ITEM_BYTES = 64;  // array slot, logical key and series columns
+
+    public static long weigh(Object value) {
+        if (value == null) {
+            return 0;
+
+        } else if (value instanceof Bundle) {
+            Bundle bundle = (Bundle) value;
+            return BASE_BYTES + (bundle.hasEntry() ? bundle.getEntry().size() * RESOURCE_BYTES : 0);
+
+        } else if (value instanceof BundleIndex) {
+            return BASE_BYTES + ((BundleIndex) value).size() * RESOURCE_BYTES;
+
+        } else if (value instanceof BloodPressureTimeline) {
+            // remote readings are weighed under WorkspaceCacheKey.BP, so only local readings are counted here in full
+            BloodPressureTimeline timeline = (BloodPressureTimeline) value;
+            return BASE_BYTES + timeline.size() * TIMELINE_ITEM_BYTES + timeline.localSize() * MODEL_BYTES;
+
+        } else if (value instanceof Map) {
+            // a map may store the same value under several keys.  count each value only once
+            Set<Object> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+            distinct.addAll(((Map<?, ?>) value).values());
+            long weight = BASE_BYTES;
+            for (Object o : distinct) {
+                weight += weighItem(o);
+            }
+            return weight;
+
+        } else if (value instanceof Collection) {
+            long weight = BASE_BYTES;
+            for (Object o : (Collection<?>) value) {
+                weight += weighItem(o);
+            }
+            return weight;
+
+        } else {
+            return BASE_BYTES + weighItem(value);
+        }
+    }
+
+    private static long weighItem(Object o) {
+        if (o instanceof Resource)                  return RESOURCE_BYTES;
+        else if (o instanceof AbstractVitalsModel)  return VITALS_MODEL_BYTES;
+        else if (o instanceof Card)                 return CARD_BYTES;
+        else                                        return MODEL_BYTES;
+    }
+}
@@ -0,0 +1,155 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application-wide execution service for work performed on behalf of UserWorkspaces.  All sessions share a single
+ * pool of threads, sized to the global limit.  Each session may run at most perSessionLimit tasks at once, and
+ * when more work is pending than there are free threads, sessions are served round-robin so that no one session
+ * can starve the others.
+ */
+public class WorkspaceExecutionService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final int globalLimit;
+    private final int perSessionLimit;
+    private final ExecutorService pool;
+    private final Map<String, WorkspaceExecutor> executors;
+
+    // sessions with pending tasks that are eligible to run another task, in the order they should be served.
+    // guarded by synchronized(this), as are the running count and all WorkspaceExecutor queue state
+    private final Deque<WorkspaceExecutor> ready;
+    private int running = 0;
+
+    public WorkspaceExecutionService(int globalLimit, int perSessionLimit) {
+        this.globalLimit = globalLimit;
+        this.perSessionLimit = perSessionLimit;
+        this.executors = new ConcurrentHashMap<>();
+        this.ready = new ArrayDeque<>();
+
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        this.pool = Executors.newFixedThreadPool(globalLimit, r -> {
+            Thread t = new Thread(r, "workspace-exec-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        logger.info("created workspace execution service (globalLimit=" + globalLimit +
+                ", perSessionLimit=" + perSessionLimit + ")");
+    }
+
+    public int getGlobalLimit() {
+        return globalLimit;
+    }
+
+    public int getPerSessionLimit() {
+        return perSessionLimit;
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public synchronized int getPendingCount() {
+        int pending = 0;
+        for (WorkspaceExecutor executor : executors.values()) {
+            pending += executor.getPendingCount();
+        }
+        return pending;
+    }
+
+    public WorkspaceExecutor forSession(String sessionId) {
+        return executors.computeIfAbsent(sessionId, s -> new WorkspaceExecutor(this, s));
+    }
+
+    /**
+     * Cancels all pending and in-flight tasks for the specified session.  Pending tasks are discarded, and threads
+     * running tasks on the session's behalf are interrupted.  Any subsequent attempt to submit work for this session
+     * through its previously obtained WorkspaceExecutor is rejected.
+     * @param sessionId
+     */
+    public void cancel(String sessionId) {
+        WorkspaceExecutor executor = executors.get(sessionId);
+        if (executor != null) {
+            cancel(executor);
+        }
+    }
+
+    void cancel(WorkspaceExecutor executor) {
+        executors.remove(executor.getSessionId(), executor);
+        int discarded;
+        synchronized (this) {
+            ready.remove(executor);
+            discarded = executor.discard();
+        }
+        logger.info("cancelled workspace tasks for session=" + executor.getSessionId() +
+                " (discarded " + discarded + " pending)");
+    }
+
+    public void shutdown() {
+        logger.info("shutting down workspace execution service");
+        for (String sessionId : executors.keySet()) {
+            cancel(sessionId);
+        }
+        pool.shutdownNow();
+        try {
+            if ( ! pool.awaitTermination(10, TimeUnit.SECONDS) ) {
+                logger.warn("workspace execution service did not terminate within 10 seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+///////////////////////////////////////////////////////////////////////////////////////
+// methods called by WorkspaceExecutor
+//
+
+    synchronized void enqueued(WorkspaceExecutor executor) {
+        if (executor.isEligible() && ! ready.contains(executor)) {
+            ready.addLast(executor);
+        }
+        dispatch();
+    }
+
+    private synchronized void completed(WorkspaceExecutor executor) {
+        running --;
+        executor.release();
+        if (executor.isEligible() && ! ready.contains(executor)) {
+            ready.addLast(executor);
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        // only ever called while holding the lock on this
+        while (running < globalLimit && ! ready.isEmpty()) {
+            WorkspaceExecutor executor = ready.pollFirst();
+            Runnable task = executor.acquire();
+            if (task == null) continue;
+
+            running ++;
+            pool.execute(() -> {
+                try {
+                    executor.run(task);
+                } finally {
+                    completed(executor);
+                }
+            });
+
+            if (executor.isEligible()) {
+                ready.addLast(executor);        // go to the back of the line, behind other sessions
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package edu.ohsu.cmp.coach.workspace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A per-session view onto the shared WorkspaceExecutionService.  Tasks submitted here are queued for the session,
+ * and are handed off to the shared pool as the session's concurrency limit and the global limit permit.
+ */
+public class WorkspaceExecutor implements Executor {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final WorkspaceExecutionService service;
+    private final String sessionId;
+
+    // all of the following are guarded by synchronized(service)
+    private final Queue<Runnable> pending = new ArrayDeque<>();
+    private final Set<Thread> activeThreads = new HashSet<>();
+    private int active = 0;
+    private boolean cancelled = false;
+
+    WorkspaceExecutor(WorkspaceExecutionService service, String sessionId) {
+        this.service = service;
+        this.sessionId = sessionId;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (service) {
+            if (cancelled) {
+                throw new RejectedExecutionException("workspace tasks for session=" + sessionId + " have been cancelled");
+            }
+            pending.add(task);
+            service.enqueued(this);
+        }
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    boolean isEligible() {
+        return ! cancelled && ! pending.isEmpty() && active < service.getPerSessionLimit();
+    }
+
+    Runnable acquire() {
+        Runnable task = cancelled ? null : pending.poll();
+        if (task != null) {
+            active ++;
+        }
+        return task;
+    }
+
+    void release() {
+        active --;
+    }
+
+    /**
+     * Cancels all pending and in-flight tasks for this session by way of the shared WorkspaceExecutionService.
+     * Once cancelled, this executor rejects any further tasks.
+     */
+    public void cancel() {
+        service.cancel(this);
+    }
+
+    int discard() {
+        cancelled = true;
+        int discarded = pending.size();
+        pending.clear();
+        for (Thread t : activeThreads) {
+            t.interrupt();
+        }
+        return discarded;
+    }
+
+    void run(Runnable task) {
+        Thread thread = Thread.currentThread();
+        synchronized (service) {
+            if (cancelled) return;
+            activeThreads.add(thread);
+        }
+
+        try {
+            task.run();
+
+        } catch (Throwable t) {
+            logger.error("caught " + t.getClass().getName() + " running workspace task for session=" + sessionId +
+                    " - " + t.getMessage(), t);
+
+        } finally {
+            synchronized (service) {
+                activeThreads.remove(thread);
+            }
+            Thread.interrupted();   // don't leak an interrupt from cancellation into the next task run on this thread
+        }
+    }
+}
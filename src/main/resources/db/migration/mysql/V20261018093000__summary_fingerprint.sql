@@ -0,0 +1 @@
+alter table summary add fingerprint char(64);
@@ -0,0 +1,2 @@
+alter table summary add fingerprint char(64);
+go
@@ -0,0 +1,20 @@
+drop table if exists writeback_outbox;
+create table writeback_outbox (
+    id int not null identity(1,1) primary key,
+    patId int not null,
+    idempotencyKey varchar(64) unique not null,
+    vitalsType varchar(10) not null,
+    strategy varchar(10) not null,
+    description varchar(255),
+    bundle text not null,
+    status varchar(10) not null,
+    attempts int not null constraint c_writeback_outbox_attempts default 0,
+    nextAttemptDate datetime not null,
+    lastError varchar(1000),
+    createdDate datetime not null constraint c_writeback_outbox_createdDate default current_timestamp,
+    constraint wb_outbox_fk1 foreign key (patId) references patient (id) on delete cascade
+);
+
+create index idxPatIdStatus on writeback_outbox (patId, status, nextAttemptDate);
+create index idxStatus on writeback_outbox (status, nextAttemptDate);
+go
@@ -0,0 +1,80 @@
+package edu.ohsu.cmp.coach.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import edu.ohsu.cmp.coach.util.FhirUtil;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Measures the per-launch cost of getting a FHIR client and parsing a Patient with it, three ways:
+ * <ul>
+ *     <li>forR4 - a new FhirContext per launch, as launches did before FhirClientFactory</li>
+ *     <li>shared - a new client built from the application's shared FhirContext</li>
+ *     <li>cached - a client reused by FhirClientFactory</li>
+ * </ul>
+ * No requests are made; the server URL is never contacted.  Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=edu.ohsu.cmp.coach.fhir.FhirClientBenchmark [-Dexec.args="forR4Iterations otherIterations"]
+ * </pre>
+ */
+public class FhirClientBenchmark {
+    private static final String SERVER_URL = "https://fhir.example.org/R4";
+    private static final String BEARER_TOKEN = "benchmark-token";
+
+    private static final String PATIENT_JSON = "{\"resourceType\":\"Patient\",\"id\":\"example\"," +
+            "\"name\":[{\"family\":\"Doe\",\"given\":[\"Jane\"]}],\"gender\":\"female\",\"birthDate\":\"1970-01-01\"}";
+
+    public static void main(String[] args) {
+        int forR4Iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int otherIterations = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        FhirClientFactory factory = new FhirClientFactory(300000, 1000, 60);
+
+        run("forR4", forR4Iterations, () -> {
+            IGenericClient client = FhirContext.forR4().newRestfulGenericClient(SERVER_URL);
+            client.registerInterceptor(new BearerTokenAuthInterceptor(BEARER_TOKEN));
+            return client;
+        });
+        run("shared", otherIterations, () -> FhirUtil.buildClient(SERVER_URL, BEARER_TOKEN));
+        run("cached", otherIterations, () -> factory.getClient(SERVER_URL, BEARER_TOKEN));
+    }
+
+    private static void run(String name, int iterations, Supplier<IGenericClient> launch) {
+        int warmup = Math.max(1, iterations / 10);
+        for (int i = 0; i < warmup; i ++) {
+            launchOnce(launch);
+        }
+
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i ++) {
+            long start = System.nanoTime();
+            launchOnce(launch);
+            nanos[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(nanos);
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+
+        System.out.println(String.format("%-8s iterations=%-6d mean=%10.1fus  p50=%10.1fus  p99=%10.1fus",
+                name, iterations,
+                total / (double) iterations / 1000,
+                nanos[iterations / 2] / 1000.0,
+                nanos[Math.min(iterations - 1, (int) (iterations * 0.99))] / 1000.0));
+    }
+
+    private static void launchOnce(Supplier<IGenericClient> launch) {
+        IGenericClient client = launch.get();
+        Patient p = client.getFhirContext().newJsonParser().parseResource(Patient.class, PATIENT_JSON);
+        if ( ! p.hasName() ) {
+            throw new IllegalStateException("failed to parse Patient");
+        }
+    }
+}